@@ -0,0 +1,42 @@
+package rdp.proxy.server;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the stock JMH main, the same arguments work, but
+ * with allocation profiling on and the results written as JSON named after
+ * rdp.benchmark.id, e.g. -Drdp.benchmark.id=$(git rev-parse --short HEAD), so
+ * the files of two commits can be compared side by side.
+ */
+public class RdpProxyBenchmarks {
+
+  public static final String RDP_BENCHMARK_ID = "rdp.benchmark.id";
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    ChainedOptionsBuilder builder = new OptionsBuilder().parent(commandLine);
+    if (commandLine.getProfilers()
+                   .isEmpty()) {
+      builder.addProfiler(GCProfiler.class);
+    }
+    if (!commandLine.getResultFormat()
+                    .hasValue()) {
+      builder.resultFormat(ResultFormatType.JSON);
+    }
+    if (!commandLine.getResult()
+                    .hasValue()) {
+      builder.result("jmh-result-" + System.getProperty(RDP_BENCHMARK_ID, "local") + ".json");
+    }
+    new Runner(builder.build()).run();
+  }
+
+}
@@ -0,0 +1,84 @@
+package rdp.proxy.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import rdp.proxy.server.relay.SessionCounters;
+
+/**
+ * What the relay records for every forwarded PDU, one recorder at a time and
+ * all together like the relay loop does. The default Dropwizard timer is the
+ * baseline for the latency recorder.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+  private static final int PDU_LENGTH = 1024;
+
+  @Param({ "1", "16" })
+  public int sampleRate;
+
+  private SessionCounters.Direction _counter;
+  private Meter _meter;
+  private LatencyRecorder _latency;
+  private Timer _timer;
+
+  @Setup
+  public void setup() {
+    MetricRegistry metrics = new MetricRegistry();
+    _counter = new SessionCounters().getClientToServer();
+    _meter = metrics.meter("meter");
+    _latency = new LatencyRecorder(metrics, "latency", sampleRate);
+    _timer = metrics.timer("timer");
+  }
+
+  @Benchmark
+  public void sessionCounter() {
+    _counter.add(PDU_LENGTH);
+  }
+
+  @Benchmark
+  public void meter() {
+    _meter.mark(PDU_LENGTH);
+  }
+
+  @Benchmark
+  public void latencyRecorder() {
+    _latency.stop(_latency.start());
+  }
+
+  @Benchmark
+  public void defaultTimer() {
+    _timer.time()
+          .stop();
+  }
+
+  @Benchmark
+  public void perPdu() {
+    long start = _latency.start();
+    _latency.stop(start);
+    _counter.add(PDU_LENGTH);
+    _meter.mark(PDU_LENGTH);
+  }
+
+}
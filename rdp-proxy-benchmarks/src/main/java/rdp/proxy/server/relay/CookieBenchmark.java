@@ -0,0 +1,71 @@
+package rdp.proxy.server.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cookie parsing of the X.224 connection request, once per new session.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class CookieBenchmark {
+
+  @Param({ "Cookie: mstshash=jsmith", "Cookie: msts=3640205228.15629.0000" })
+  public String cookie;
+
+  private byte[] _request;
+
+  @Setup
+  public void setup() {
+    _request = createConnectionRequest(cookie);
+  }
+
+  @Benchmark
+  public String findCookie() {
+    return RdpConnectionRelay.findCookie(_request, 0, _request.length);
+  }
+
+  @Benchmark
+  public String findCookieAndUser() {
+    return RdpConnectionRelay.getUser(RdpConnectionRelay.findCookie(_request, 0, _request.length));
+  }
+
+  /**
+   * TPKT, X.224 connection request, cookie and the RDP negotiation request
+   * like mstsc sends it.
+   */
+  static byte[] createConnectionRequest(String cookie) {
+    byte[] cookieBytes = (cookie + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] negotiation = { 1, 0, 8, 0, 11, 0, 0, 0 };
+    int length = 11 + cookieBytes.length + negotiation.length;
+    ByteArrayOutputStream output = new ByteArrayOutputStream(length);
+    output.write(3);
+    output.write(0);
+    output.write(length >>> 8);
+    output.write(length);
+    output.write(length - 5);
+    output.write(0xE0);
+    output.write(new byte[5], 0, 5);
+    output.write(cookieBytes, 0, cookieBytes.length);
+    output.write(negotiation, 0, negotiation.length);
+    return output.toByteArray();
+  }
+
+}
@@ -0,0 +1,79 @@
+package rdp.proxy.server.relay;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Framing throughput of {@link PduFramer} over a whole {@link PduMix} stream
+ * read in TCP segment sized chunks. Besides the stream rate the bytes and PDUs
+ * per second are reported as secondary results.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class PduFramerBenchmark {
+
+  private static final int STREAM_SIZE = 4 * 1024 * 1024;
+
+  @Param({ "INPUT", "GRAPHICS", "MIXED" })
+  public String mix;
+
+  @Param({ "1460", "65536" })
+  public int segmentSize;
+
+  @Param({ "65536" })
+  public int bufferSize;
+
+  private BufferPool _bufferPool;
+  private PduMix.SegmentedInputStream _input;
+  private int _streamSize;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    byte[] stream = PduMix.create(mix, STREAM_SIZE);
+    _streamSize = stream.length;
+    _input = new PduMix.SegmentedInputStream(stream, segmentSize);
+    _bufferPool = new BufferPool(false, Long.MAX_VALUE, new MetricRegistry());
+  }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long bytes;
+    public long pdus;
+  }
+
+  @Benchmark
+  public int frame(Counters counters) throws IOException {
+    _input.reset();
+    int pdus = 0;
+    try (PduFramer framer = new PduFramer(_input, _bufferPool, bufferSize)) {
+      while (framer.next()) {
+        pdus += framer.getPduCount();
+      }
+    }
+    counters.bytes += _streamSize;
+    counters.pdus += pdus;
+    return pdus;
+  }
+
+}
@@ -0,0 +1,156 @@
+package rdp.proxy.server.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * A relay stream for the benchmarks, always built from the same seed so runs
+ * of different commits frame exactly the same bytes. The built in mixes
+ * follow the size distributions seen on a desktop session, a mix starting
+ * with file: is a raw stream captured from one direction of a real session.
+ */
+public class PduMix {
+
+  private static final String FILE_PREFIX = "file:";
+  private static final long SEED = 0x5EED;
+
+  public enum Mix {
+    /**
+     * Client to server while working, mostly small fast-path input events.
+     */
+    INPUT,
+    /**
+     * Server to client, fast-path updates and full TLS records.
+     */
+    GRAPHICS,
+    /**
+     * Every PDU type in equal parts, including slow-path TPKTs.
+     */
+    MIXED
+  }
+
+  public static byte[] create(String mix, int size) throws IOException {
+    if (mix.startsWith(FILE_PREFIX)) {
+      return Files.readAllBytes(Paths.get(mix.substring(FILE_PREFIX.length())));
+    }
+    return create(Mix.valueOf(mix), size);
+  }
+
+  /**
+   * Whole PDUs only, so the stream can be repeated back to back.
+   */
+  public static byte[] create(Mix mix, int size) {
+    Random random = new Random(SEED);
+    ByteArrayOutputStream output = new ByteArrayOutputStream(size + 0x10000);
+    while (output.size() < size) {
+      int pick = random.nextInt(100);
+      switch (mix) {
+      case INPUT:
+        if (pick < 90) {
+          writeFastPath(output, random, 6 + random.nextInt(34));
+        } else if (pick < 98) {
+          writeTls(output, random, 32 + random.nextInt(200));
+        } else {
+          writeTpkt(output, random, 20 + random.nextInt(300));
+        }
+        break;
+      case GRAPHICS:
+        if (pick < 60) {
+          writeFastPath(output, random, 100 + random.nextInt(4000));
+        } else if (pick < 95) {
+          writeTls(output, random, 16384);
+        } else {
+          writeTls(output, random, 500 + random.nextInt(8000));
+        }
+        break;
+      default:
+        if (pick < 33) {
+          writeFastPath(output, random, 3 + random.nextInt(400));
+        } else if (pick < 66) {
+          writeTls(output, random, random.nextInt(16384));
+        } else {
+          writeTpkt(output, random, 4 + random.nextInt(3000));
+        }
+        break;
+      }
+    }
+    return output.toByteArray();
+  }
+
+  private static void writeTpkt(ByteArrayOutputStream output, Random random, int length) {
+    output.write(3);
+    output.write(0);
+    output.write(length >>> 8);
+    output.write(length);
+    writeRandom(output, random, length - 4);
+  }
+
+  private static void writeTls(ByteArrayOutputStream output, Random random, int payload) {
+    output.write(23);
+    output.write(3);
+    output.write(3);
+    output.write(payload >>> 8);
+    output.write(payload);
+    writeRandom(output, random, payload);
+  }
+
+  private static void writeFastPath(ByteArrayOutputStream output, Random random, int length) {
+    output.write(96);
+    if (length < 0x80) {
+      output.write(length);
+      writeRandom(output, random, length - 2);
+    } else {
+      output.write(0x80 | (length >>> 8));
+      output.write(length);
+      writeRandom(output, random, length - 3);
+    }
+  }
+
+  private static void writeRandom(ByteArrayOutputStream output, Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    output.write(bytes, 0, length);
+  }
+
+  /**
+   * Serves the stream in reads of at most the given size, like TCP segments
+   * arriving one by one.
+   */
+  public static class SegmentedInputStream extends InputStream {
+
+    private final byte[] _stream;
+    private final int _segmentSize;
+    private int _position;
+
+    public SegmentedInputStream(byte[] stream, int segmentSize) {
+      _stream = stream;
+      _segmentSize = segmentSize;
+    }
+
+    public void reset() {
+      _position = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return _position < _stream.length ? _stream[_position++] & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (_position >= _stream.length) {
+        return -1;
+      }
+      int count = Math.min(Math.min(len, _segmentSize), _stream.length - _position);
+      System.arraycopy(_stream, _position, b, off, count);
+      _position += count;
+      return count;
+    }
+
+  }
+
+}
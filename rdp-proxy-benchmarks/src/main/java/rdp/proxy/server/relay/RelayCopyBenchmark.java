@@ -0,0 +1,157 @@
+package rdp.proxy.server.relay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.codahale.metrics.MetricRegistry;
+
+import rdp.proxy.server.util.Utils;
+
+/**
+ * The blocking client to server loop over loopback sockets: a writer thread
+ * plays the client sending a {@link PduMix} over and over, the benchmark
+ * thread frames and forwards it and a reader thread plays the backend. The
+ * raw copy without framing is the baseline. Each op is one forwarded batch,
+ * the bytes per second are a secondary result.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+@State(Scope.Thread)
+public class RelayCopyBenchmark {
+
+  private static final int STREAM_SIZE = 4 * 1024 * 1024;
+
+  @Param({ "INPUT", "GRAPHICS" })
+  public String mix;
+
+  @Param({ "65536" })
+  public int bufferSize;
+
+  private ServerSocket _relayServerSocket;
+  private ServerSocket _backendServerSocket;
+  private Socket _client;
+  private Socket _relayClientSide;
+  private Socket _relayServerSide;
+  private Socket _backend;
+  private Thread _writer;
+  private Thread _reader;
+  private BufferPool _bufferPool;
+  private PduFramer _framer;
+  private InputStream _relayInput;
+  private OutputStream _relayOutput;
+  private SessionCounters.Direction _counter;
+  private byte[] _copyBuffer;
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long bytes;
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    byte[] stream = PduMix.create(mix, STREAM_SIZE);
+    InetAddress loopback = InetAddress.getLoopbackAddress();
+    _relayServerSocket = new ServerSocket(0, 1, loopback);
+    _backendServerSocket = new ServerSocket(0, 1, loopback);
+    _client = new Socket(loopback, _relayServerSocket.getLocalPort());
+    _relayClientSide = _relayServerSocket.accept();
+    _relayServerSide = new Socket();
+    _relayServerSide.connect(new InetSocketAddress(loopback, _backendServerSocket.getLocalPort()));
+    _backend = _backendServerSocket.accept();
+    for (Socket socket : new Socket[] { _client, _relayClientSide, _relayServerSide, _backend }) {
+      socket.setTcpNoDelay(true);
+    }
+
+    _writer = new Thread(() -> {
+      try (OutputStream output = _client.getOutputStream()) {
+        while (true) {
+          output.write(stream);
+        }
+      } catch (IOException e) {
+        // closed on tear down
+      }
+    }, "benchmark-client");
+    _reader = new Thread(() -> {
+      byte[] buffer = new byte[bufferSize];
+      try (InputStream input = _backend.getInputStream()) {
+        while (input.read(buffer) >= 0) {
+        }
+      } catch (IOException e) {
+        // closed on tear down
+      }
+    }, "benchmark-backend");
+    _writer.setDaemon(true);
+    _reader.setDaemon(true);
+    _writer.start();
+    _reader.start();
+
+    _bufferPool = new BufferPool(false, Long.MAX_VALUE, new MetricRegistry());
+    _relayInput = _relayClientSide.getInputStream();
+    _relayOutput = _relayServerSide.getOutputStream();
+    _framer = new PduFramer(_relayInput, _bufferPool, bufferSize);
+    _counter = new SessionCounters().getClientToServer();
+    _copyBuffer = new byte[bufferSize];
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws InterruptedException {
+    Utils.closeQuietly(_client);
+    Utils.closeQuietly(_relayClientSide);
+    Utils.closeQuietly(_relayServerSide);
+    Utils.closeQuietly(_backend);
+    Utils.closeQuietly(_relayServerSocket);
+    Utils.closeQuietly(_backendServerSocket);
+    _writer.join();
+    _reader.join();
+    _framer.close();
+  }
+
+  @Benchmark
+  public int framed(Counters counters) throws IOException {
+    if (!_framer.next()) {
+      throw new IOException("Stream ended");
+    }
+    int length = _framer.getLength();
+    _relayOutput.write(_framer.getBuffer(), _framer.getOffset(), length);
+    _counter.add(length);
+    counters.bytes += length;
+    return length;
+  }
+
+  @Benchmark
+  public int raw(Counters counters) throws IOException {
+    int length = _relayInput.read(_copyBuffer);
+    if (length < 0) {
+      throw new IOException("Stream ended");
+    }
+    _relayOutput.write(_copyBuffer, 0, length);
+    counters.bytes += length;
+    return length;
+  }
+
+}
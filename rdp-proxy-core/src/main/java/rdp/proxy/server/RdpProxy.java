@@ -6,32 +6,50 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import rdp.proxy.server.admin.ConnectionInfoAdminPage;
-import rdp.proxy.server.admin.ConnectionInfoAdminPage.ConnectionInfoAdminPageBuilder;
+import rdp.proxy.server.admin.BackendHealthAdminPage;
+import rdp.proxy.server.admin.ConnectionQuery;
+import rdp.proxy.server.admin.ConnectionQuery.ConnectionQueryBuilder;
 import rdp.proxy.server.metrics.JsonCounter;
 import rdp.proxy.server.metrics.JsonHistogram;
 import rdp.proxy.server.metrics.JsonMeter;
 import rdp.proxy.server.metrics.JsonReport;
 import rdp.proxy.server.metrics.JsonReporter;
 import rdp.proxy.server.metrics.JsonTimer;
+import rdp.proxy.server.metrics.OpenMetricsWriter;
+import rdp.proxy.server.metrics.SerializedReport;
 import rdp.proxy.server.metrics.SetupJvmMetrics;
+import rdp.proxy.server.metrics.SetupStoreCacheMetrics;
+import rdp.proxy.server.metrics.SetupVirtualThreadMetrics;
+import rdp.proxy.server.relay.BackendHealth;
+import rdp.proxy.server.relay.BandwidthLimit;
+import rdp.proxy.server.relay.BandwidthShaper;
 import rdp.proxy.server.relay.ConnectionProxyInstance;
 import rdp.proxy.server.relay.RdpConnectionRelay;
-import rdp.proxy.server.relay.SocketInfo;
+import rdp.proxy.server.relay.RdpRelay;
+import rdp.proxy.server.relay.SessionDrainer;
+import rdp.proxy.server.relay.SessionShaper;
 import rdp.proxy.server.util.Utils;
 import rdp.proxy.spi.RdpSetting;
 import rdp.proxy.spi.RdpStore;
+import rdp.proxy.spi.cache.ResolverCache;
 import spark.ModelAndView;
+import spark.Request;
 import spark.ResponseTransformer;
 import spark.Route;
 import spark.Service;
@@ -39,6 +57,8 @@ import spark.template.freemarker.FreeMarkerEngine;
 
 public class RdpProxy implements Closeable {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(RdpProxy.class);
+
   private static final String RDP_FILE_USER = "/rdp-file/:user";
   private static final String RDP_JSON_USER = "/rdp-json/:user";
   private static final String RDP_INFO_USER = "/rdp-info/:user";
@@ -47,9 +67,29 @@ public class RdpProxy implements Closeable {
   private static final String LISTEN_ENABLE = "/listen/enable";
   private static final String KILL_ID = "/kill/:id";
   private static final String STATS = "/stats";
+  private static final String API_CONNECTIONS = "/api/connections";
+  private static final String API_SESSIONS_COUNT = "/api/sessions/count";
+  private static final String API_SESSIONS_KILL = "/api/sessions/kill";
+  private static final String METRICS = "/metrics";
+  private static final String HEALTH = "/health";
+  private static final String DRAIN = "/drain";
+  private static final String DRAIN_CANCEL = "/drain/cancel";
+  private static final String BANDWIDTH = "/bandwidth";
+  private static final String BANDWIDTH_DEFAULT = "/bandwidth/default";
+  private static final String BANDWIDTH_USER_DEFAULT = "/bandwidth/user-default";
+  private static final String BANDWIDTH_USER = "/bandwidth/user/:user";
+  private static final String BANDWIDTH_SESSION_ID = "/bandwidth/session/:id";
+  private static final String CLIENT_TO_SERVER = "clientToServer";
+  private static final String SERVER_TO_CLIENT = "serverToClient";
   private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
   private static final String CONTENT_DISPOSITION = "Content-Disposition";
   private static final String CONTENT_TYPE = "Content-Type";
+  private static final String CONTENT_ENCODING = "Content-Encoding";
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String ETAG = "ETag";
+  private static final String IF_NONE_MATCH = "If-None-Match";
+  private static final String VARY = "Vary";
+  private static final String GZIP = "gzip";
   private static final String LOADBALANCEINFO = "loadbalanceinfo";
   private static final String USERNAME = "username";
   private static final String FULL_ADDRESS = "full address";
@@ -74,7 +114,8 @@ public class RdpProxy implements Closeable {
   private final RdpStore _store;
   private final RdpProxyConfig _config;
   private final String _hostnameAdvertised;
-  private final RdpConnectionRelay _relay;
+  private final RdpRelay _relay;
+  private final SessionDrainer _drainer;
   private final MetricRegistry _metrics = new MetricRegistry();
   private final JsonReporter _reporter;
   private final int _rdpPortAdvertised;
@@ -85,31 +126,167 @@ public class RdpProxy implements Closeable {
     _rdpPortAdvertised = config.getRdpPortAdvertised();
     _gatewayService = Utils.igniteGatewayService(config);
     _adminService = Utils.igniteAdminService(config);
-    _store = Utils.getRdpMetaStore(config);
+    _store = Utils.getRdpMetaStore(config, _metrics);
     _reporter = new JsonReporter(_metrics);
     _reporter.start(0, 5, TimeUnit.SECONDS);
-    _relay = new RdpConnectionRelay(_config, _store, _metrics);
+    _relay = Utils.createRdpRelay(_config, _store, _metrics);
+    _drainer = new SessionDrainer(_config, _relay);
     SetupJvmMetrics.setup(_metrics);
+    SetupStoreCacheMetrics.setup(_metrics, ResolverCache.getInstance());
+    if (config.isRdpVirtualThreads()) {
+      SetupVirtualThreadMetrics.setup(_metrics);
+    }
   }
 
   public boolean isListening() {
     return _relay.isListening();
   }
 
+  public MetricRegistry getMetrics() {
+    return _metrics;
+  }
+
   public void start() {
     _relay.startListening();
   }
 
   public void initAdmin() {
-    ResponseTransformer jsonTransformer = model -> new ObjectMapper().writeValueAsString(model);
-    _adminService.get(STATS, (Route) (request, response) -> _reporter.getReport(), jsonTransformer);
+    _adminService.get(STATS, (request, response) -> {
+      SerializedReport report = _reporter.getSerializedReport();
+      response.header(ETAG, report.getEtag());
+      response.header(VARY, ACCEPT_ENCODING);
+      if (report.matches(request.headers(IF_NONE_MATCH))) {
+        response.status(HttpServletResponse.SC_NOT_MODIFIED);
+        return "";
+      }
+      response.type("application/json");
+      byte[] body = report.getJson();
+      String acceptEncoding = request.headers(ACCEPT_ENCODING);
+      if (acceptEncoding != null && acceptEncoding.contains(GZIP)) {
+        response.header(CONTENT_ENCODING, GZIP);
+        body = report.getGzip();
+      }
+      // written and committed here, otherwise spark would gzip it again
+      HttpServletResponse servletResponse = response.raw();
+      servletResponse.setContentLength(body.length);
+      servletResponse.getOutputStream()
+                     .write(body);
+      servletResponse.flushBuffer();
+      return "";
+    });
+    // per session series only with ?sessions=true, they do not belong in a
+    // fleet wide scrape
+    _adminService.get(METRICS, (request, response) -> {
+      response.header(CONTENT_TYPE, OpenMetricsWriter.CONTENT_TYPE);
+      HttpServletResponse servletResponse = response.raw();
+      OpenMetricsWriter writer = new OpenMetricsWriter(servletResponse.getWriter());
+      writer.writeRegistry(_metrics);
+      if (Boolean.parseBoolean(request.queryParams("sessions"))) {
+        writer.writeSessions(_relay.getConnectionMap()
+                                   .values());
+      }
+      writer.finish();
+      return null;
+    });
+    // ?sort=bandwidth|lifetime|id&order=asc|desc&limit=&cursor= and the
+    // backend, client and cookie filters
+    _adminService.get(API_CONNECTIONS, (request, response) -> {
+      try {
+        return toConnectionQuery(request).run(_relay.getSessionRegistry());
+      } catch (IllegalArgumentException e) {
+        _adminService.halt(400, e.getMessage());
+        return null;
+      }
+    }, JSON_TRANSFORMER);
+    // same filters as the connections API, plus user
+    _adminService.get(API_SESSIONS_COUNT, (request, response) -> {
+      ConnectionQuery query = getConnectionQuery(request);
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("count", query.count(_relay.getSessionRegistry()));
+      return result;
+    }, JSON_TRANSFORMER);
+    // at least one filter, an empty kill would take down every session
+    _adminService.post(API_SESSIONS_KILL, (request, response) -> {
+      ConnectionQuery query = getConnectionQuery(request);
+      if (!query.isFiltered()) {
+        _adminService.halt(400, "No filter");
+      }
+      List<String> killed = new ArrayList<>();
+      for (ConnectionProxyInstance instance : query.select(_relay.getSessionRegistry())) {
+        _relay.kill(instance.getId());
+        killed.add(instance.getId());
+      }
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("count", killed.size());
+      result.put("killed", killed);
+      return result;
+    }, JSON_TRANSFORMER);
     _adminService.post(KILL_ID, (request, response) -> {
       String id = request.params("id");
       _relay.kill(id);
       response.redirect(ROOT);
       return null;
     });
+    _adminService.get(BANDWIDTH, (request, response) -> getBandwidthReport(), JSON_TRANSFORMER);
+    // limits are bytes/s per direction, 0 is unlimited, no parameters resets
+    // a user or session to the default
+    _adminService.post(BANDWIDTH_DEFAULT, (request, response) -> {
+      BandwidthLimit limit = toBandwidthLimit(request);
+      _relay.getBandwidthShaper()
+            .setSessionDefault(limit == null ? BandwidthLimit.UNLIMITED : limit);
+      return getBandwidthReport();
+    }, JSON_TRANSFORMER);
+    _adminService.post(BANDWIDTH_USER_DEFAULT, (request, response) -> {
+      BandwidthLimit limit = toBandwidthLimit(request);
+      _relay.getBandwidthShaper()
+            .setUserDefault(limit == null ? BandwidthLimit.UNLIMITED : limit);
+      return getBandwidthReport();
+    }, JSON_TRANSFORMER);
+    _adminService.post(BANDWIDTH_USER, (request, response) -> {
+      _relay.getBandwidthShaper()
+            .setUserLimit(request.params("user"), toBandwidthLimit(request));
+      return getBandwidthReport();
+    }, JSON_TRANSFORMER);
+    _adminService.post(BANDWIDTH_SESSION_ID, (request, response) -> {
+      ConnectionProxyInstance instance = _relay.getSessionRegistry()
+                                               .get(request.params("id"));
+      if (instance == null) {
+        _adminService.halt(404);
+      }
+      instance.getShaper()
+              .setLimit(toBandwidthLimit(request));
+      return getBandwidthReport();
+    }, JSON_TRANSFORMER);
+    // readiness for the load balancer, anything but ok is a 503
+    _adminService.get(HEALTH, (request, response) -> {
+      String status;
+      if (_drainer.getState() != SessionDrainer.State.RUNNING) {
+        status = _drainer.getState()
+                         .name()
+                         .toLowerCase();
+      } else {
+        status = _relay.isListening() ? "ok" : "not listening";
+      }
+      if (!"ok".equals(status)) {
+        response.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      }
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("status", status);
+      return result;
+    }, JSON_TRANSFORMER);
+    _adminService.get(DRAIN, (request, response) -> _drainer.getProgress(), JSON_TRANSFORMER);
+    // ?timeout= in ms, the configured drain timeout otherwise
+    _adminService.post(DRAIN, (request, response) -> {
+      String timeout = request.queryParams("timeout");
+      return _drainer.start(timeout == null || timeout.isEmpty() ? null : parseNonNegative("timeout", timeout));
+    }, JSON_TRANSFORMER);
+    _adminService.post(DRAIN_CANCEL, (request, response) -> {
+      _drainer.cancel();
+      _relay.startListening();
+      return _drainer.getProgress();
+    }, JSON_TRANSFORMER);
     _adminService.post(LISTEN_ENABLE, (request, response) -> {
+      _drainer.cancel();
       _relay.startListening();
       response.redirect(ROOT);
       return null;
@@ -141,9 +318,9 @@ public class RdpProxy implements Closeable {
       attributes.put("clientToServer999RelayLatency", clientToServer == null ? 0 : toMs(clientToServer.getP999th()));
 
       JsonTimer serverToClient = timers.get(RdpConnectionRelay.RDP_CONNECTION_TIMER_SERVER_TO_CLIENT);
-      attributes.put("serverToClientAvgRelayLatency", clientToServer == null ? 0 : toMs(serverToClient.getMean()));
-      attributes.put("serverToClient99RelayLatency", clientToServer == null ? 0 : toMs(serverToClient.getP99th()));
-      attributes.put("serverToClient999RelayLatency", clientToServer == null ? 0 : toMs(serverToClient.getP999th()));
+      attributes.put("serverToClientAvgRelayLatency", serverToClient == null ? 0 : toMs(serverToClient.getMean()));
+      attributes.put("serverToClient99RelayLatency", serverToClient == null ? 0 : toMs(serverToClient.getP99th()));
+      attributes.put("serverToClient999RelayLatency", serverToClient == null ? 0 : toMs(serverToClient.getP999th()));
 
       Map<String, JsonMeter> meters = jsonReport.getMeters();
       JsonMeter clientToServerMeterServer = meters.get(RdpConnectionRelay.RDP_CONNECTION_METER_CLIENT_TO_SERVER);
@@ -153,42 +330,24 @@ public class RdpProxy implements Closeable {
       attributes.put("serverToClientBandwidth",
           serverToClientMeterServer == null ? 0 : (long) serverToClientMeterServer.getOneMinuteRate());
 
-      Map<String, ConnectionProxyInstance> connectionMap = _relay.getConnectionMap();
-      List<ConnectionInfoAdminPage> list = new ArrayList<>();
-      for (Entry<String, ConnectionProxyInstance> e : connectionMap.entrySet()) {
-        String id = e.getKey();
-        ConnectionProxyInstance connectionProxyInstance = e.getValue();
-        SocketInfo rdpServer = connectionProxyInstance.getServer();
-        SocketInfo rdpClient = connectionProxyInstance.getClient();
-        String hostName = rdpServer.getInetAddress()
-                                   .getHostName();
-
-        ConnectionInfoAdminPageBuilder builder = ConnectionInfoAdminPage.builder()
-                                                                        .id(id);
-
-        JsonMeter clientToServerMeter = meters.get(RdpConnectionRelay.getClientToServerBandwidthName(id));
-        if (clientToServerMeter != null) {
-          builder.clientToServerBandwidth(toKiB(clientToServerMeter.getMeanRate()))
-                 .clientToServerBandwidthOneMinute(toKiB(clientToServerMeter.getOneMinuteRate()))
-                 .clientToServerBandwidthTotal(toKiB(clientToServerMeter.getCount()));
-        }
-
-        JsonMeter serverToClientMeter = meters.get(RdpConnectionRelay.getServerToClientBandwidthName(id));
-        if (serverToClientMeter != null) {
-          builder.serverToClientBandwidth(toKiB(serverToClientMeter.getMeanRate()))
-                 .serverToClientBandwidthOneMinute(toKiB(serverToClientMeter.getOneMinuteRate()))
-                 .serverToClientBandwidthTotal(toKiB(serverToClientMeter.getCount()));
-        }
-
-        list.add(builder.host(hostName)
-                        .rdpClient(rdpClient.getInfo())
-                        .rdpServer(rdpServer.getInfo())
-                        .build());
+
+      List<BackendHealthAdminPage> backends = new ArrayList<>();
+      for (BackendHealth health : _relay.getBackendHealthRegistry()
+                                        .getBackendHealth()) {
+        backends.add(BackendHealthAdminPage.builder()
+                                           .backend(health.toString())
+                                           .state(health.getState()
+                                                        .name())
+                                           .successCount(health.getSuccessCount())
+                                           .failureCount(health.getFailureCount())
+                                           .consecutiveFailures(health.getConsecutiveFailures())
+                                           .build());
       }
-      Collections.sort(list);
-      attributes.put("connections", list);
+      Collections.sort(backends);
+      attributes.put("backends", backends);
 
       attributes.put("listening", _relay.isListening());
+      attributes.put("drain", _drainer.getProgress());
 
       return new ModelAndView(attributes, "index.ftl");
 
@@ -199,14 +358,14 @@ public class RdpProxy implements Closeable {
     List<RdpSetting> defaultSettings = Utils.getRdpDefaults();
     Route infoRoute = (Route) (request, response) -> {
       String user = request.params("user");
-      if (!_store.isValidUser(user)) {
+      if (!awaitStore(_store.isValidUserAsync(user))) {
         _gatewayService.halt(404);
       }
 
-      String loadBalanceInfo = _store.getLoadBalanceInfo(user);
+      String loadBalanceInfo = awaitStore(_store.getLoadBalanceInfoAsync(user));
 
-      List<RdpSetting> rdpSettings = _store.getRdpSettings(defaultSettings, user, loadBalanceInfo, _hostnameAdvertised,
-          _rdpPortAdvertised);
+      List<RdpSetting> rdpSettings = awaitStore(_store.getRdpSettingsAsync(defaultSettings, user, loadBalanceInfo,
+          _hostnameAdvertised, _rdpPortAdvertised));
       Map<String, RdpSetting> rdpSettingsMap = toMap(rdpSettings);
 
       addIfMissing(rdpSettingsMap, RdpSetting.create(FULL_ADDRESS, _hostnameAdvertised + ":" + _rdpPortAdvertised));
@@ -223,13 +382,15 @@ public class RdpProxy implements Closeable {
 
     Route rdpFileRoute = (request, response) -> {
       String user = request.params("user");
-      if (!_store.isValidUser(user)) {
+      if (!awaitStore(_store.isValidUserAsync(user))) {
         _gatewayService.halt(404);
       }
-      String loadBalanceInfo = _store.getLoadBalanceInfo(user);
+      // the filename does not depend on the other lookups, fetch it meanwhile
+      CompletableFuture<String> filenameFuture = _store.getFilenameAsync(user);
+      String loadBalanceInfo = awaitStore(_store.getLoadBalanceInfoAsync(user));
 
-      List<RdpSetting> rdpSettings = _store.getRdpSettings(defaultSettings, user, loadBalanceInfo, _hostnameAdvertised,
-          _rdpPortAdvertised);
+      List<RdpSetting> rdpSettings = awaitStore(_store.getRdpSettingsAsync(defaultSettings, user, loadBalanceInfo,
+          _hostnameAdvertised, _rdpPortAdvertised));
       Map<String, RdpSetting> rdpSettingsMap = toMap(rdpSettings);
 
       // full address:s:localhost:3389
@@ -241,7 +402,7 @@ public class RdpProxy implements Closeable {
       // loadbalanceinfo:s:
       addIfMissing(rdpSettingsMap, RdpSetting.create(LOADBALANCEINFO, loadBalanceInfo));
 
-      String filename = _store.getFilename(user);
+      String filename = awaitStore(filenameFuture);
       response.header(CONTENT_TYPE, "application/rdp; charset=utf-8");
       response.header(CONTENT_DISPOSITION, "attachment; filename=" + filename);
       HttpServletResponse servletResponse = response.raw();
@@ -262,7 +423,81 @@ public class RdpProxy implements Closeable {
   public void close() throws IOException {
     Utils.closeQuietly(() -> _gatewayService.stop());
     Utils.closeQuietly(() -> _adminService.stop());
+    Utils.closeQuietly(_drainer);
     Utils.closeQuietly(_relay);
+    if (_store instanceof Closeable) {
+      Utils.closeQuietly((Closeable) _store);
+    }
+  }
+
+  /**
+   * Spark routes are synchronous so the request thread waits, but never longer
+   * than the store timeout.
+   */
+  private <T> T awaitStore(CompletableFuture<T> future) throws IOException {
+    try {
+      return Utils.await(future, _config.getRdpStoreTimeout());
+    } catch (IOException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        LOGGER.error(e.getMessage());
+        throw _gatewayService.halt(503);
+      }
+      throw e;
+    }
+  }
+
+  private Map<String, Object> getBandwidthReport() {
+    BandwidthShaper bandwidthShaper = _relay.getBandwidthShaper();
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("sessionDefault", bandwidthShaper.getSessionDefault());
+    report.put("userDefault", bandwidthShaper.getUserDefault());
+    report.put("users", bandwidthShaper.getUserLimits());
+    Map<String, Object> sessions = new TreeMap<>();
+    for (ConnectionProxyInstance instance : _relay.getConnectionMap()
+                                                  .values()) {
+      SessionShaper shaper = instance.getShaper();
+      if (shaper == null) {
+        continue;
+      }
+      Map<String, Object> session = new LinkedHashMap<>();
+      session.put("user", instance.getUser());
+      session.put("limit", shaper.getLimit());
+      session.put("throttled", shaper.isThrottled());
+      session.put("throttledCount", shaper.getThrottledCount());
+      sessions.put(instance.getId(), session);
+    }
+    report.put("sessions", sessions);
+    return report;
+  }
+
+  private BandwidthLimit toBandwidthLimit(Request request) {
+    String clientToServer = request.queryParams(CLIENT_TO_SERVER);
+    String serverToClient = request.queryParams(SERVER_TO_CLIENT);
+    if (clientToServer == null && serverToClient == null) {
+      return null;
+    }
+    return BandwidthLimit.builder()
+                         .clientToServer(
+                             clientToServer == null ? 0 : parseNonNegative(CLIENT_TO_SERVER, clientToServer))
+                         .serverToClient(
+                             serverToClient == null ? 0 : parseNonNegative(SERVER_TO_CLIENT, serverToClient))
+                         .build();
+  }
+
+  /**
+   * A typo in an admin request is a 400, not a 500.
+   */
+  private long parseNonNegative(String name, String value) {
+    long parsed;
+    try {
+      parsed = Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      parsed = -1;
+    }
+    if (parsed < 0) {
+      _adminService.halt(400, name + " has to be a number of at least 0, not " + value);
+    }
+    return parsed;
   }
 
   private void addIfMissing(Map<String, RdpSetting> rdpSettingsMap, RdpSetting setting) {
@@ -279,9 +514,42 @@ public class RdpProxy implements Closeable {
     return map;
   }
 
-  private double toKiB(double rate) {
-    long r = (long) rate;
-    return (double) r / 1024.0;
+  /**
+   * A bad sort, limit or cursor is a 400, like on the connections API.
+   */
+  private ConnectionQuery getConnectionQuery(Request request) {
+    try {
+      return toConnectionQuery(request);
+    } catch (IllegalArgumentException e) {
+      _adminService.halt(400, e.getMessage());
+      return null;
+    }
+  }
+
+  private static ConnectionQuery toConnectionQuery(Request request) {
+    ConnectionQueryBuilder builder = ConnectionQuery.builder();
+    String sort = request.queryParams("sort");
+    if (sort != null) {
+      builder.sort(ConnectionQuery.Sort.valueOf(sort.toUpperCase()));
+    }
+    String order = request.queryParams("order");
+    if (order != null) {
+      builder.descending(!"asc".equalsIgnoreCase(order));
+    }
+    String limit = request.queryParams("limit");
+    if (limit != null) {
+      builder.limit(Integer.parseInt(limit));
+    }
+    return builder.cursor(emptyToNull(request.queryParams("cursor")))
+                  .backend(emptyToNull(request.queryParams("backend")))
+                  .client(emptyToNull(request.queryParams("client")))
+                  .cookie(emptyToNull(request.queryParams("cookie")))
+                  .user(emptyToNull(request.queryParams("user")))
+                  .build();
+  }
+
+  private static String emptyToNull(String value) {
+    return value == null || value.isEmpty() ? null : value;
   }
 
   private double toMs(double nanoSec) {
@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.concurrent.TimeUnit;
 
+import rdp.proxy.server.relay.RdpRelayMode;
+import rdp.proxy.spi.cache.StoreCache.EvictionPolicy;
+
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -43,24 +46,154 @@ public class RdpProxyConfig {
 
   String rdpMetaStoreClassname;
 
+  boolean rdpStoreCacheEnabled;
+
+  @Default
+  int rdpStoreCacheMaxSize = 10_000;
+
+  @Default
+  EvictionPolicy rdpStoreCacheEvictionPolicy = EvictionPolicy.LRU;
+
+  @Default
+  long rdpStoreCacheTtl = TimeUnit.MINUTES.toMillis(1);
+
+  @Default
+  long rdpStoreCacheNegativeTtl = TimeUnit.SECONDS.toMillis(5);
+
+  @Default
+  long rdpStoreCacheStaleTime = TimeUnit.MINUTES.toMillis(5);
+
+  @Default
+  long rdpStoreTimeout = TimeUnit.SECONDS.toMillis(30);
+
   @Default
   int rdpBacklog = 100;
 
+  @Default
+  int rdpAcceptors = 1;
+
+  int rdpMaxSessions;
+
+  int rdpMaxHandshakes;
+
+  double rdpNewSessionRate;
+
+  @Default
+  int rdpNewSessionBurst = 50;
+
+  long rdpSessionClientToServerRate;
+
+  long rdpSessionServerToClientRate;
+
+  long rdpUserClientToServerRate;
+
+  long rdpUserServerToClientRate;
+
+  @Default
+  long rdpBandwidthBurstBytes = 1024 * 1024;
+
   @Default
   int rdpRelayBufferSize = 10_000;
 
+  @Default
+  long rdpBufferPoolMaxBytes = 256L * 1024 * 1024;
+
   @Default
   int rdpRemoteTcpTimeout = (int) TimeUnit.MINUTES.toMillis(1);
 
   @Default
   int rdpSoTimeout = (int) TimeUnit.DAYS.toMillis(1);
 
+  @Default
+  long initialWaitTimeBetweenAttempts = 500;
+
   @Default
   long waitTimeBetweenAttempts = TimeUnit.SECONDS.toMillis(6);
 
+  @Default
+  long rdpConnectAttemptDelay = 250;
+
+  @Default
+  int rdpBackendFailureThreshold = 3;
+
+  @Default
+  long rdpBackendOpenTime = TimeUnit.SECONDS.toMillis(30);
+
+  long rdpBackendProbeInterval;
+
+  @Default
+  int rdpBackendProbeTimeout = (int) TimeUnit.SECONDS.toMillis(2);
+
   @Default
   int maxConnectionAttempts = 10;
 
+  @Default
+  RdpRelayMode rdpRelayMode = RdpRelayMode.BLOCKING;
+
+  boolean rdpVirtualThreads;
+
+  boolean rdpPassThroughAfterHandshake;
+
+  boolean rdpCoalesceServerToClient;
+
+  @Default
+  long rdpCoalesceWindowMicros = 500;
+
+  @Default
+  int rdpCoalesceMaxBytes = 64 * 1024;
+
+  @Default
+  int rdpCoalesceMinReadBytes = 256;
+
+  /**
+   * Relay latency is recorded for one out of this many writes, the count and
+   * rates of the latency timers still include every write.
+   */
+  @Default
+  int rdpRelayLatencySampleRate = 1;
+
+  /**
+   * Time a new client has to send its connection request, 0 waits for the
+   * socket timeout.
+   */
+  @Default
+  long rdpHandshakeTimeout = TimeUnit.SECONDS.toMillis(30);
+
+  /**
+   * A relayed session with no bytes in either direction for this long is
+   * closed, 0 never closes idle sessions.
+   */
+  long rdpIdleTimeout;
+
+  @Default
+  long rdpTimerTickDuration = 10;
+
+  @Default
+  int rdpTimerWheelSize = 1024;
+
+  /**
+   * Time a drain lets sessions run before closing idle ones.
+   */
+  @Default
+  long rdpDrainTimeout = TimeUnit.MINUTES.toMillis(30);
+
+  /**
+   * After the drain timeout a session without client input for this long is
+   * closed.
+   */
+  @Default
+  long rdpDrainIdleTime = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * Time after the drain timeout when the remaining sessions are closed.
+   */
+  @Default
+  long rdpDrainForceTime = TimeUnit.MINUTES.toMillis(5);
+
+  @Default
+  int rdpReactorThreads = Runtime.getRuntime()
+                                 .availableProcessors();
+
   public String getRdpHostname() throws IOException {
     String hostnameAdvertised = getRdpHostnameAdvertised();
     if (hostnameAdvertised != null) {
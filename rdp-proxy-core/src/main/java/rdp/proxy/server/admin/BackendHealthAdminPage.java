@@ -0,0 +1,24 @@
+package rdp.proxy.server.admin;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+@Value
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+@AllArgsConstructor
+@Builder(toBuilder = true)
+public class BackendHealthAdminPage implements Comparable<BackendHealthAdminPage> {
+  String backend;
+  String state;
+  long successCount;
+  long failureCount;
+  int consecutiveFailures;
+
+  @Override
+  public int compareTo(BackendHealthAdminPage o) {
+    return backend.compareTo(o.backend);
+  }
+}
@@ -1,10 +1,17 @@
 package rdp.proxy.server.admin;
 
+import java.util.concurrent.TimeUnit;
+
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.NoArgsConstructor;
 import lombok.Value;
+import rdp.proxy.server.relay.ConnectionProxyInstance;
+import rdp.proxy.server.relay.SessionCounters;
+import rdp.proxy.server.relay.SessionShaper;
+import rdp.proxy.server.relay.SocketInfo;
+import rdp.proxy.spi.cache.ResolverCache;
 
 @Value
 @NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
@@ -13,14 +20,57 @@ import lombok.Value;
 public class ConnectionInfoAdminPage implements Comparable<ConnectionInfoAdminPage> {
   String id;
   String host;
+  String user;
+  String cookie;
   String rdpServer;
   String rdpClient;
+  long lifetime;
   double clientToServerBandwidth;
   double serverToClientBandwidth;
   double clientToServerBandwidthOneMinute;
   double serverToClientBandwidthOneMinute;
   double clientToServerBandwidthTotal;
   double serverToClientBandwidthTotal;
+  long clientToServerPdus;
+  long serverToClientPdus;
+  boolean throttled;
+
+  public static ConnectionInfoAdminPage create(ConnectionProxyInstance instance) {
+    SocketInfo rdpServer = instance.getServer();
+    SocketInfo rdpClient = instance.getClient();
+    String hostName = ResolverCache.getInstance()
+                                   .getHostName(rdpServer.getInetAddress());
+    long lifetime = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - rdpClient.getStart());
+    ConnectionInfoAdminPageBuilder builder = ConnectionInfoAdminPage.builder()
+                                                                    .id(instance.getId())
+                                                                    .host(hostName)
+                                                                    .user(instance.getUser())
+                                                                    .cookie(instance.getCookie())
+                                                                    .rdpClient(rdpClient.toString())
+                                                                    .rdpServer(rdpServer.toString())
+                                                                    .lifetime(lifetime);
+    SessionCounters counters = instance.getCounters();
+    if (counters != null) {
+      SessionCounters.Direction clientToServer = counters.getClientToServer();
+      builder.clientToServerBandwidth(toKiB(clientToServer.getMeanRate()))
+             .clientToServerBandwidthOneMinute(toKiB(clientToServer.getOneMinuteRate()))
+             .clientToServerBandwidthTotal(toKiB(clientToServer.getBytes()))
+             .clientToServerPdus(clientToServer.getPdus());
+      SessionCounters.Direction serverToClient = counters.getServerToClient();
+      builder.serverToClientBandwidth(toKiB(serverToClient.getMeanRate()))
+             .serverToClientBandwidthOneMinute(toKiB(serverToClient.getOneMinuteRate()))
+             .serverToClientBandwidthTotal(toKiB(serverToClient.getBytes()))
+             .serverToClientPdus(serverToClient.getPdus());
+    }
+    SessionShaper shaper = instance.getShaper();
+    return builder.throttled(shaper != null && shaper.isThrottled())
+                  .build();
+  }
+
+  private static double toKiB(double rate) {
+    long r = (long) rate;
+    return (double) r / 1024.0;
+  }
 
   @Override
   public int compareTo(ConnectionInfoAdminPage o) {
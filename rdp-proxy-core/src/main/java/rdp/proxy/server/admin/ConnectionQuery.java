@@ -0,0 +1,317 @@
+package rdp.proxy.server.admin;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.net.InetAddresses;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Builder.Default;
+import lombok.Value;
+import rdp.proxy.server.relay.ConnectionProxyInstance;
+import rdp.proxy.server.relay.SessionCounters;
+import rdp.proxy.server.relay.SessionRegistry;
+import rdp.proxy.server.relay.SocketInfo;
+
+/**
+ * One page of the connections API. The sessions are scanned once, only the
+ * page itself is kept in a bounded heap and only its entries are resolved
+ * and turned into {@link ConnectionInfoAdminPage}s. The cursor is the sort
+ * key and id of the last entry of the previous page. Lifetime and id keys
+ * never change, so those pages stay stable while sessions come and go.
+ * Bandwidth moves between requests, a cursor would skip and repeat sessions,
+ * so a bandwidth sort only returns the top page and no cursor. When a filter
+ * has an index in the {@link SessionRegistry} only the sessions of that key
+ * are scanned.
+ */
+@Value
+@Builder(toBuilder = true)
+@AllArgsConstructor
+public class ConnectionQuery {
+
+  public static final int DEFAULT_LIMIT = 100;
+  public static final int MAX_LIMIT = 1000;
+
+  public enum Sort {
+    /**
+     * Both directions, one minute average. Only the top page, no cursor.
+     */
+    BANDWIDTH,
+    LIFETIME,
+    ID
+  }
+
+  @Default
+  Sort sort = Sort.LIFETIME;
+
+  @Default
+  boolean descending = true;
+
+  @Default
+  int limit = DEFAULT_LIMIT;
+
+  String cursor;
+
+  /**
+   * Backend address, with or without the port.
+   */
+  String backend;
+
+  /**
+   * Client address without the port.
+   */
+  String client;
+
+  String cookie;
+
+  String user;
+
+  public boolean isFiltered() {
+    return backend != null || client != null || cookie != null || user != null;
+  }
+
+  /**
+   * The sessions of the most selective filter that has an index, or all of
+   * them. They still have to pass the other filters.
+   */
+  public Collection<ConnectionProxyInstance> candidates(SessionRegistry registry) {
+    Collection<ConnectionProxyInstance> indexed = getIndexed(registry);
+    return indexed == null ? registry.asMap()
+                                     .values()
+        : indexed;
+  }
+
+  public List<ConnectionProxyInstance> select(SessionRegistry registry) {
+    List<ConnectionProxyInstance> selected = new ArrayList<>();
+    String clientAddress = normalizeClient();
+    String backendAddress = normalizeBackend();
+    for (ConnectionProxyInstance instance : candidates(registry)) {
+      if (matches(instance, clientAddress, backendAddress)) {
+        selected.add(instance);
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * With a single indexed filter this is the size of one index entry.
+   */
+  public int count(SessionRegistry registry) {
+    int filters = (backend == null ? 0 : 1) + (client == null ? 0 : 1) + (cookie == null ? 0 : 1)
+        + (user == null ? 0 : 1);
+    if (filters == 1) {
+      Collection<ConnectionProxyInstance> indexed = getIndexed(registry);
+      if (indexed != null) {
+        return indexed.size();
+      }
+    }
+    return select(registry).size();
+  }
+
+  public ConnectionsPage run(SessionRegistry registry) {
+    return run(candidates(registry));
+  }
+
+  public ConnectionsPage run(Iterable<ConnectionProxyInstance> sessions) {
+    int pageSize = Math.max(1, Math.min(MAX_LIMIT, limit));
+    Comparator<Entry> order = Comparator.comparingDouble((Entry entry) -> entry._key)
+                                        .thenComparing(entry -> entry._id);
+    if (descending) {
+      order = order.reversed();
+    }
+    Entry after = parseCursor(cursor);
+    if (after != null && sort == Sort.BANDWIDTH) {
+      throw new IllegalArgumentException("Bandwidth pages have no cursor");
+    }
+    // the head is the entry that drops out first when the heap is full
+    PriorityQueue<Entry> page = new PriorityQueue<>(pageSize + 1, order.reversed());
+    int matched = 0;
+    int remaining = 0;
+    String clientAddress = normalizeClient();
+    String backendAddress = normalizeBackend();
+    for (ConnectionProxyInstance instance : sessions) {
+      if (!matches(instance, clientAddress, backendAddress)) {
+        continue;
+      }
+      matched++;
+      Entry entry = new Entry(getKey(instance), instance.getId(), instance);
+      if (after != null && order.compare(entry, after) <= 0) {
+        continue;
+      }
+      remaining++;
+      page.add(entry);
+      if (page.size() > pageSize) {
+        page.poll();
+      }
+    }
+    List<Entry> entries = new ArrayList<>(page);
+    Collections.sort(entries, order);
+    List<ConnectionInfoAdminPage> connections = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      connections.add(ConnectionInfoAdminPage.create(entry._instance));
+    }
+    String nextCursor = null;
+    if (remaining > entries.size() && sort != Sort.BANDWIDTH) {
+      Entry last = entries.get(entries.size() - 1);
+      nextCursor = toCursor(last._key, last._id);
+    }
+    return ConnectionsPage.builder()
+                          .connections(connections)
+                          .matched(matched)
+                          .nextCursor(nextCursor)
+                          .build();
+  }
+
+  private Collection<ConnectionProxyInstance> getIndexed(SessionRegistry registry) {
+    if (cookie != null) {
+      return registry.getByCookie(cookie);
+    }
+    if (user != null) {
+      return registry.getByUser(user);
+    }
+    if (client != null) {
+      InetAddress address = toAddress(client);
+      if (address != null) {
+        return registry.getByClient(address);
+      }
+    }
+    if (backend != null && !InetAddresses.isInetAddress(backend)) {
+      // only addr:port is a key of the backend index
+      int colon = backend.lastIndexOf(':');
+      InetAddress address = colon > 0 ? toAddress(backend.substring(0, colon)) : null;
+      if (address != null) {
+        try {
+          int port = Integer.parseInt(backend.substring(colon + 1));
+          return registry.getByBackend(new InetSocketAddress(address, port));
+        } catch (IllegalArgumentException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Only address literals use the index, host names are never resolved. The
+   * filters compare the address as text, so a host name ends up matching
+   * nothing, just like a scan.
+   */
+  private static InetAddress toAddress(String host) {
+    return InetAddresses.isInetAddress(host) ? InetAddresses.forString(host) : null;
+  }
+
+  /**
+   * The filter in the form of {@link #getAddress(SocketInfo)}, so ::1 and
+   * 0:0:0:0:0:0:0:1 match the same sessions.
+   */
+  private static String normalize(String host) {
+    return InetAddresses.isInetAddress(host) ? InetAddresses.toAddrString(InetAddresses.forString(host)) : host;
+  }
+
+  private String normalizeClient() {
+    return client == null ? null : normalize(client);
+  }
+
+  private String normalizeBackend() {
+    if (backend == null) {
+      return null;
+    }
+    if (InetAddresses.isInetAddress(backend)) {
+      return normalize(backend);
+    }
+    int colon = backend.lastIndexOf(':');
+    return colon > 0 ? normalize(backend.substring(0, colon)) + backend.substring(colon) : backend;
+  }
+
+  private boolean matches(ConnectionProxyInstance instance, String clientAddress, String backendAddress) {
+    if (user != null && !user.equals(instance.getUser())) {
+      return false;
+    }
+    if (cookie != null && !cookie.equals(instance.getCookie())) {
+      return false;
+    }
+    if (clientAddress != null && !clientAddress.equals(getAddress(instance.getClient()))) {
+      return false;
+    }
+    if (backendAddress != null) {
+      SocketInfo server = instance.getServer();
+      String address = getAddress(server);
+      return backendAddress.equals(address) || backendAddress.equals(address + ":" + server.getPort());
+    }
+    return true;
+  }
+
+  private double getKey(ConnectionProxyInstance instance) {
+    switch (sort) {
+    case BANDWIDTH:
+      SessionCounters counters = instance.getCounters();
+      if (counters == null) {
+        return 0;
+      }
+      SessionCounters.Direction clientToServer = counters.getClientToServer();
+      SessionCounters.Direction serverToClient = counters.getServerToClient();
+      return clientToServer.getOneMinuteRate() + serverToClient.getOneMinuteRate();
+    case LIFETIME:
+      // the start does not move, so a lifetime cursor stays valid
+      SocketInfo socketInfo = instance.getClient();
+      return -socketInfo.getStart();
+    default:
+      return 0;
+    }
+  }
+
+  private static String getAddress(SocketInfo socketInfo) {
+    return InetAddresses.toAddrString(socketInfo.getInetAddress());
+  }
+
+  static String toCursor(double key, String id) {
+    String cursor = Double.toString(key) + "," + id;
+    return Base64.getUrlEncoder()
+                 .withoutPadding()
+                 .encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static Entry parseCursor(String cursor) {
+    if (cursor == null || cursor.isEmpty()) {
+      return null;
+    }
+    String decoded;
+    try {
+      decoded = new String(Base64.getUrlDecoder()
+                                 .decode(cursor),
+          StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Bad cursor " + cursor, e);
+    }
+    int comma = decoded.indexOf(',');
+    if (comma < 0) {
+      throw new IllegalArgumentException("Bad cursor " + cursor);
+    }
+    double key = Double.parseDouble(decoded.substring(0, comma));
+    return new Entry(key, decoded.substring(comma + 1), null);
+  }
+
+  private static class Entry {
+
+    final double _key;
+    final String _id;
+    final ConnectionProxyInstance _instance;
+
+    Entry(double key, String id, ConnectionProxyInstance instance) {
+      _key = key;
+      _id = id;
+      _instance = instance;
+    }
+
+  }
+
+}
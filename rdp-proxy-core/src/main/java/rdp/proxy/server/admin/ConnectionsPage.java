@@ -0,0 +1,16 @@
+package rdp.proxy.server.admin;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+@AllArgsConstructor
+public class ConnectionsPage {
+  List<ConnectionInfoAdminPage> connections;
+  int matched;
+  String nextCursor;
+}
@@ -0,0 +1,231 @@
+package rdp.proxy.server.metrics;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+/**
+ * A {@link Reservoir} kept as an HdrHistogram style log-linear histogram. Every
+ * power of two range is split into 64 buckets, so a recorded value is off by
+ * at most 1/64 of itself. Writers increment a bucket in one of a few stripes
+ * picked by thread id, which takes no lock and allocates nothing. Snapshots
+ * merge the stripes and cover the values recorded since the start of the
+ * previous window, so old outliers age out like they do with the default
+ * decaying reservoir.
+ */
+public class HdrReservoir implements Reservoir {
+
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+  private static final int MAX_VALUE_BITS = 44;
+  private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  private static final int BUCKETS = getIndex(MAX_VALUE) + 1;
+  private static final int MAX_STRIPES = 8;
+  private static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+  private final AtomicLongArray[] _stripes;
+  private final int _stripeMask;
+  private final long _window;
+  private final LongSupplier _nanoTime;
+  private long[] _previous = new long[BUCKETS];
+  private long[] _current = new long[BUCKETS];
+  private long _currentStart;
+
+  public HdrReservoir() {
+    this(DEFAULT_WINDOW, TimeUnit.NANOSECONDS);
+  }
+
+  public HdrReservoir(long window, TimeUnit unit) {
+    this(window, unit, System::nanoTime);
+  }
+
+  HdrReservoir(long window, TimeUnit unit, LongSupplier nanoTime) {
+    int cpus = Runtime.getRuntime()
+                      .availableProcessors();
+    int stripes = 1;
+    while (stripes < Math.min(MAX_STRIPES, cpus * 2)) {
+      stripes <<= 1;
+    }
+    _stripes = new AtomicLongArray[stripes];
+    for (int i = 0; i < stripes; i++) {
+      _stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+    _stripeMask = stripes - 1;
+    _window = unit.toNanos(window);
+    _nanoTime = nanoTime;
+    _currentStart = nanoTime.getAsLong();
+  }
+
+  @Override
+  public int size() {
+    return getSnapshot().size();
+  }
+
+  @Override
+  public void update(long value) {
+    long threadId = Thread.currentThread()
+                          .getId();
+    _stripes[(int) threadId & _stripeMask].incrementAndGet(getIndex(value));
+  }
+
+  @Override
+  public synchronized Snapshot getSnapshot() {
+    long[] counts = new long[BUCKETS];
+    for (AtomicLongArray stripe : _stripes) {
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] += stripe.get(i);
+      }
+    }
+    long now = _nanoTime.getAsLong();
+    if (now - _currentStart >= _window) {
+      _previous = _current;
+      _current = counts.clone();
+      _currentStart = now;
+    }
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] -= _previous[i];
+    }
+    return new HdrSnapshot(counts);
+  }
+
+  static int getIndex(long value) {
+    long v = Math.min(Math.max(value, 0), MAX_VALUE);
+    int bucket = 64 - Long.numberOfLeadingZeros(v | (SUB_BUCKET_HALF * 2 - 1)) - SUB_BUCKET_BITS;
+    return (bucket << (SUB_BUCKET_BITS - 1)) + (int) (v >>> bucket);
+  }
+
+  /**
+   * The middle of the range of values that share the bucket.
+   */
+  static long getValue(int index) {
+    int bucket = Math.max(0, (index >> (SUB_BUCKET_BITS - 1)) - 1);
+    long subBucket = index - (bucket << (SUB_BUCKET_BITS - 1));
+    return (subBucket << bucket) + ((1L << bucket) >> 1);
+  }
+
+  private static class HdrSnapshot extends Snapshot {
+
+    private final long[] _counts;
+    private final long _total;
+
+    HdrSnapshot(long[] counts) {
+      _counts = counts;
+      long total = 0;
+      for (long count : counts) {
+        total += count;
+      }
+      _total = total;
+    }
+
+    @Override
+    public double getValue(double quantile) {
+      if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+        throw new IllegalArgumentException(quantile + " is not in [0..1]");
+      }
+      if (_total == 0) {
+        return 0.0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * _total));
+      long seen = 0;
+      for (int i = 0; i < _counts.length; i++) {
+        seen += _counts[i];
+        if (seen >= rank) {
+          return HdrReservoir.getValue(i);
+        }
+      }
+      return getMax();
+    }
+
+    /**
+     * One value per non empty bucket, the full list could be millions long.
+     */
+    @Override
+    public long[] getValues() {
+      int size = 0;
+      for (long count : _counts) {
+        if (count > 0) {
+          size++;
+        }
+      }
+      long[] values = new long[size];
+      int v = 0;
+      for (int i = 0; i < _counts.length; i++) {
+        if (_counts[i] > 0) {
+          values[v++] = HdrReservoir.getValue(i);
+        }
+      }
+      return values;
+    }
+
+    @Override
+    public int size() {
+      return (int) Math.min(Integer.MAX_VALUE, _total);
+    }
+
+    @Override
+    public long getMax() {
+      for (int i = _counts.length - 1; i >= 0; i--) {
+        if (_counts[i] > 0) {
+          return HdrReservoir.getValue(i);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public double getMean() {
+      if (_total == 0) {
+        return 0.0;
+      }
+      double sum = 0;
+      for (int i = 0; i < _counts.length; i++) {
+        sum += _counts[i] * (double) HdrReservoir.getValue(i);
+      }
+      return sum / _total;
+    }
+
+    @Override
+    public long getMin() {
+      for (int i = 0; i < _counts.length; i++) {
+        if (_counts[i] > 0) {
+          return HdrReservoir.getValue(i);
+        }
+      }
+      return 0;
+    }
+
+    @Override
+    public double getStdDev() {
+      if (_total <= 1) {
+        return 0.0;
+      }
+      double mean = getMean();
+      double sum = 0;
+      for (int i = 0; i < _counts.length; i++) {
+        double diff = HdrReservoir.getValue(i) - mean;
+        sum += _counts[i] * diff * diff;
+      }
+      return Math.sqrt(sum / (_total - 1));
+    }
+
+    @Override
+    public void dump(OutputStream output) {
+      try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+        for (int i = 0; i < _counts.length; i++) {
+          if (_counts[i] > 0) {
+            out.printf("%d %d%n", HdrReservoir.getValue(i), _counts[i]);
+          }
+        }
+      }
+    }
+
+  }
+
+}
@@ -1,11 +1,15 @@
 package rdp.proxy.server.metrics;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Histogram;
@@ -14,6 +18,7 @@ import com.codahale.metrics.MetricFilter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.ScheduledReporter;
 import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
@@ -23,9 +28,13 @@ import rdp.proxy.server.metrics.JsonReport.JsonReportBuilder;
 @SuppressWarnings("rawtypes")
 public class JsonReporter extends ScheduledReporter {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(JsonReporter.class);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
   private final AtomicReference<JsonReport> _reportRef = new AtomicReference<JsonReport>(JsonReport.builder()
                                                                                                    .build());
   private final AtomicReference<List<Metric>> _metricRef = new AtomicReference<>(ImmutableList.of());
+  private final AtomicReference<SerializedReport> _serializedRef = new AtomicReference<>();
 
   public JsonReporter(MetricRegistry registry) {
     super(registry, "json-reporter", MetricFilter.ALL, TimeUnit.SECONDS, TimeUnit.MILLISECONDS);
@@ -35,6 +44,18 @@ public class JsonReporter extends ScheduledReporter {
     return _reportRef.get();
   }
 
+  /**
+   * The latest report as bytes, serialized once per reporting interval.
+   */
+  public SerializedReport getSerializedReport() throws IOException {
+    SerializedReport serialized = _serializedRef.get();
+    if (serialized == null) {
+      serialized = SerializedReport.create(OBJECT_MAPPER, getReport());
+      _serializedRef.compareAndSet(null, serialized);
+    }
+    return serialized;
+  }
+
   public List<Metric> getMetricRef() {
     return _metricRef.get();
   }
@@ -81,6 +102,12 @@ public class JsonReporter extends ScheduledReporter {
     JsonReport report = reportBuilder.build();
     _reportRef.set(report);
     _metricRef.set(Metric.flatten(report));
+    try {
+      _serializedRef.set(SerializedReport.create(OBJECT_MAPPER, report));
+    } catch (IOException e) {
+      LOGGER.error("Could not serialize report", e);
+      _serializedRef.set(null);
+    }
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+package rdp.proxy.server.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Records relay latencies into a {@link Timer} backed by an
+ * {@link HdrReservoir}, optionally only one out of every n events. The count
+ * and rates of the timer still cover every event, only the percentiles are
+ * sampled. Unlike {@link Timer#time()} nothing is allocated per event.
+ */
+public class LatencyRecorder {
+
+  public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+  private final SampledTimer _timer;
+  private final int _sampleRate;
+
+  public LatencyRecorder(MetricRegistry metrics, String name, int sampleRate) {
+    _timer = (SampledTimer) metrics.timer(name, () -> new SampledTimer());
+    _sampleRate = Math.max(1, sampleRate);
+  }
+
+  /**
+   * The start time if this event is sampled, otherwise {@link #NOT_SAMPLED}.
+   */
+  public long start() {
+    return isSampled() ? System.nanoTime() : NOT_SAMPLED;
+  }
+
+  public void stop(long start) {
+    _timer.mark();
+    if (start != NOT_SAMPLED) {
+      _timer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public void record(long nanos) {
+    _timer.mark();
+    if (isSampled()) {
+      _timer.update(nanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private boolean isSampled() {
+    return _sampleRate == 1 || ThreadLocalRandom.current()
+                                                .nextInt(_sampleRate) == 0;
+  }
+
+  /**
+   * Takes its count and rates from a meter marked for every event instead of
+   * from the sampled updates.
+   */
+  private static class SampledTimer extends Timer {
+
+    private final Meter _events = new Meter();
+
+    SampledTimer() {
+      super(new HdrReservoir());
+    }
+
+    void mark() {
+      _events.mark();
+    }
+
+    @Override
+    public long getCount() {
+      return _events.getCount();
+    }
+
+    @Override
+    public double getFifteenMinuteRate() {
+      return _events.getFifteenMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate() {
+      return _events.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getMeanRate() {
+      return _events.getMeanRate();
+    }
+
+    @Override
+    public double getOneMinuteRate() {
+      return _events.getOneMinuteRate();
+    }
+
+  }
+
+}
@@ -0,0 +1,303 @@
+package rdp.proxy.server.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import rdp.proxy.server.relay.BackendHealthRegistry;
+import rdp.proxy.server.relay.ConnectionProxyInstance;
+import rdp.proxy.server.relay.SessionCounters;
+
+/**
+ * Writes the registry in the OpenMetrics text format straight to the response.
+ * Parts of the registry names that vary, the direction, the backend and the
+ * cache name, become labels so every node exposes the same metric families.
+ * Meters become counters and timers summaries in seconds. Counters can be
+ * decremented, so they are written as gauges.
+ */
+public class OpenMetricsWriter {
+
+  public static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+  private static final String CLIENT_TO_SERVER = ".client.to.server";
+  private static final String SERVER_TO_CLIENT = ".server.to.client";
+  private static final String BACKEND = ".backend.";
+  private static final String[] CACHE_PREFIXES = { SetupStoreCacheMetrics.RDP_STORE_CACHE,
+      SetupStoreCacheMetrics.RDP_DNS_CACHE };
+  private static final String[] TYPE_SUFFIXES = { ".gauge", ".counter", ".meter", ".timer" };
+  private static final double[] QUANTILES = { 0.5, 0.75, 0.95, 0.99, 0.999 };
+  private static final double SECONDS_PER_NANO = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+  private final Writer _writer;
+
+  public OpenMetricsWriter(Writer writer) {
+    _writer = writer;
+  }
+
+  public void writeRegistry(MetricRegistry registry) throws IOException {
+    Map<String, Metric> metrics = registry.getMetrics();
+    List<Series> seriesList = new ArrayList<>(metrics.size());
+    for (Entry<String, Metric> e : metrics.entrySet()) {
+      Series series = Series.create(e.getKey(), e.getValue());
+      if (series != null) {
+        seriesList.add(series);
+      }
+    }
+    // samples of a family have to be written together
+    Collections.sort(seriesList);
+    String family = null;
+    for (Series series : seriesList) {
+      if (!series._family.equals(family)) {
+        family = series._family;
+        writeType(family, series._type);
+      }
+      writeSeries(series);
+    }
+  }
+
+  /**
+   * One series per session and direction, labelled with the session id. Only
+   * meant for a handful of sessions, it is off in the default scrape.
+   */
+  public void writeSessions(Collection<ConnectionProxyInstance> sessions) throws IOException {
+    writeType("rdp_session_bytes", "counter");
+    for (ConnectionProxyInstance session : sessions) {
+      SessionCounters counters = session.getCounters();
+      if (counters != null) {
+        SessionCounters.Direction clientToServer = counters.getClientToServer();
+        SessionCounters.Direction serverToClient = counters.getServerToClient();
+        writeSession("rdp_session_bytes_total", session, "client_to_server", clientToServer.getBytes());
+        writeSession("rdp_session_bytes_total", session, "server_to_client", serverToClient.getBytes());
+      }
+    }
+    writeType("rdp_session_pdus", "counter");
+    for (ConnectionProxyInstance session : sessions) {
+      SessionCounters counters = session.getCounters();
+      if (counters != null) {
+        SessionCounters.Direction clientToServer = counters.getClientToServer();
+        SessionCounters.Direction serverToClient = counters.getServerToClient();
+        writeSession("rdp_session_pdus_total", session, "client_to_server", clientToServer.getPdus());
+        writeSession("rdp_session_pdus_total", session, "server_to_client", serverToClient.getPdus());
+      }
+    }
+  }
+
+  public void finish() throws IOException {
+    _writer.write("# EOF\n");
+    _writer.flush();
+  }
+
+  private void writeType(String family, String type) throws IOException {
+    _writer.write("# TYPE ");
+    _writer.write(family);
+    _writer.write(' ');
+    _writer.write(type);
+    _writer.write('\n');
+  }
+
+  private void writeSession(String name, ConnectionProxyInstance session, String direction, long value)
+      throws IOException {
+    _writer.write(name);
+    _writer.write("{id=\"");
+    _writer.write(escape(session.getId()));
+    _writer.write("\",user=\"");
+    _writer.write(escape(session.getUser()));
+    _writer.write("\",direction=\"");
+    _writer.write(direction);
+    _writer.write("\"} ");
+    _writer.write(Long.toString(value));
+    _writer.write('\n');
+  }
+
+  private void writeSeries(Series series) throws IOException {
+    Metric metric = series._metric;
+    if (metric instanceof Gauge) {
+      writeSample(series._family, series._labels, null, toString(((Gauge<?>) metric).getValue()));
+    } else if (metric instanceof Counter) {
+      writeSample(series._family, series._labels, null, Long.toString(((Counter) metric).getCount()));
+    } else if (metric instanceof Timer) {
+      Timer timer = (Timer) metric;
+      Snapshot snapshot = timer.getSnapshot();
+      for (double quantile : QUANTILES) {
+        writeSample(series._family, series._labels, quantile,
+            toString(snapshot.getValue(quantile) * SECONDS_PER_NANO));
+      }
+      writeSample(series._family + "_count", series._labels, null, Long.toString(timer.getCount()));
+    } else if (metric instanceof Meter) {
+      writeSample(series._family + "_total", series._labels, null, Long.toString(((Meter) metric).getCount()));
+    } else if (metric instanceof Histogram) {
+      Histogram histogram = (Histogram) metric;
+      Snapshot snapshot = histogram.getSnapshot();
+      for (double quantile : QUANTILES) {
+        writeSample(series._family, series._labels, quantile, toString(snapshot.getValue(quantile)));
+      }
+      writeSample(series._family + "_count", series._labels, null, Long.toString(histogram.getCount()));
+    }
+  }
+
+  private void writeSample(String name, String labels, Double quantile, String value) throws IOException {
+    if (value == null) {
+      return;
+    }
+    _writer.write(name);
+    if (labels != null || quantile != null) {
+      _writer.write('{');
+      if (labels != null) {
+        _writer.write(labels);
+      }
+      if (quantile != null) {
+        if (labels != null) {
+          _writer.write(',');
+        }
+        _writer.write("quantile=\"");
+        _writer.write(Double.toString(quantile));
+        _writer.write('"');
+      }
+      _writer.write('}');
+    }
+    _writer.write(' ');
+    _writer.write(value);
+    _writer.write('\n');
+  }
+
+  private static String toString(Object value) {
+    if (!(value instanceof Number)) {
+      return null;
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return toString(((Number) value).doubleValue());
+    }
+    return value.toString();
+  }
+
+  private static String toString(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    return Double.toString(value);
+  }
+
+  static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace("\n", "\\n");
+  }
+
+  static String sanitize(String name) {
+    StringBuilder builder = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      builder.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ? c : '_');
+    }
+    return builder.toString();
+  }
+
+  static class Series implements Comparable<Series> {
+
+    final String _family;
+    final String _labels;
+    final String _type;
+    final Metric _metric;
+
+    Series(String family, String labels, String type, Metric metric) {
+      _family = family;
+      _labels = labels;
+      _type = type;
+      _metric = metric;
+    }
+
+    /**
+     * Splits a registry name like 127.0.0.1:3389.backend.failure.gauge into
+     * the family rdp_backend_failure and the label backend="127.0.0.1:3389".
+     */
+    static Series create(String name, Metric metric) {
+      String type;
+      if (metric instanceof Gauge || metric instanceof Counter) {
+        type = "gauge";
+      } else if (metric instanceof Meter) {
+        type = "counter";
+      } else if (metric instanceof Timer || metric instanceof Histogram) {
+        type = "summary";
+      } else {
+        return null;
+      }
+      StringBuilder labels = new StringBuilder();
+      String rest = name;
+      if (rest.endsWith(CLIENT_TO_SERVER)) {
+        addLabel(labels, "direction", "client_to_server");
+        rest = rest.substring(0, rest.length() - CLIENT_TO_SERVER.length());
+      } else if (rest.endsWith(SERVER_TO_CLIENT)) {
+        addLabel(labels, "direction", "server_to_client");
+        rest = rest.substring(0, rest.length() - SERVER_TO_CLIENT.length());
+      }
+      int backend = rest.indexOf(BACKEND);
+      if (backend > 0 && (rest.endsWith(BackendHealthRegistry.BACKEND_STATE_GAUGE)
+          || rest.endsWith(BackendHealthRegistry.BACKEND_SUCCESS_GAUGE)
+          || rest.endsWith(BackendHealthRegistry.BACKEND_FAILURE_GAUGE))) {
+        addLabel(labels, "backend", rest.substring(0, backend));
+        rest = "rdp" + rest.substring(backend);
+      }
+      for (String prefix : CACHE_PREFIXES) {
+        int end = rest.indexOf('.', prefix.length());
+        if (rest.startsWith(prefix) && end > 0) {
+          addLabel(labels, "cache", rest.substring(prefix.length(), end));
+          rest = prefix + rest.substring(end + 1);
+        }
+      }
+      for (String suffix : TYPE_SUFFIXES) {
+        if (rest.endsWith(suffix)) {
+          rest = rest.substring(0, rest.length() - suffix.length());
+          break;
+        }
+      }
+      String family = sanitize(rest);
+      if (metric instanceof Timer) {
+        family += "_seconds";
+      }
+      return new Series(family, labels.length() == 0 ? null : labels.toString(), type, metric);
+    }
+
+    private static void addLabel(StringBuilder labels, String label, String value) {
+      if (labels.length() > 0) {
+        labels.append(',');
+      }
+      labels.append(label)
+            .append("=\"")
+            .append(escape(value))
+            .append('"');
+    }
+
+    @Override
+    public int compareTo(Series o) {
+      int compare = _family.compareTo(o._family);
+      if (compare != 0) {
+        return compare;
+      }
+      String labels = _labels == null ? "" : _labels;
+      return labels.compareTo(o._labels == null ? "" : o._labels);
+    }
+
+  }
+
+}
@@ -0,0 +1,56 @@
+package rdp.proxy.server.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+/**
+ * A report serialized once, plain and gzipped, with an ETag derived from the
+ * content so unchanged reports are not sent again.
+ */
+@Value
+@AllArgsConstructor
+public class SerializedReport {
+
+  byte[] json;
+  byte[] gzip;
+  String etag;
+
+  public static SerializedReport create(ObjectMapper objectMapper, Object report) throws IOException {
+    byte[] json = objectMapper.writeValueAsBytes(report);
+    ByteArrayOutputStream output = new ByteArrayOutputStream(json.length / 4 + 64);
+    try (GZIPOutputStream gzipOutput = new GZIPOutputStream(output)) {
+      gzipOutput.write(json);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(json, 0, json.length);
+    String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(json.length) + "\"";
+    return new SerializedReport(json, output.toByteArray(), etag);
+  }
+
+  /**
+   * True if an If-None-Match header names this report.
+   */
+  public boolean matches(String ifNoneMatch) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      String trimmed = tag.trim();
+      if (trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+      if (trimmed.equals("*") || trimmed.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
@@ -0,0 +1,75 @@
+package rdp.proxy.server.metrics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import rdp.proxy.spi.cache.CachingRdpStore;
+import rdp.proxy.spi.cache.ResolverCache;
+import rdp.proxy.spi.cache.StoreCache;
+import rdp.proxy.spi.cache.StoreCache.Listener;
+
+public class SetupStoreCacheMetrics {
+
+  public static final String RDP_STORE_CACHE = "rdp.store.cache.";
+  public static final String RDP_DNS_CACHE = "rdp.dns.cache.";
+  public static final String HIT_GAUGE = ".hit.gauge";
+  public static final String HIT_RATIO_GAUGE = ".hit.ratio.gauge";
+  public static final String STALE_HIT_GAUGE = ".stale.hit.gauge";
+  public static final String MISS_GAUGE = ".miss.gauge";
+  public static final String LOAD_FAILURE_GAUGE = ".load.failure.gauge";
+  public static final String EVICTION_GAUGE = ".eviction.gauge";
+  public static final String SIZE_GAUGE = ".size.gauge";
+  public static final String LOAD_TIMER = ".load.timer";
+
+  public static void setup(MetricRegistry registry, CachingRdpStore store) {
+    setup(registry, RDP_STORE_CACHE, store.getCaches());
+  }
+
+  /**
+   * Resolution latency goes to the rdp.dns.cache.*.load.timer timers.
+   */
+  public static void setup(MetricRegistry registry, ResolverCache resolverCache) {
+    setup(registry, RDP_DNS_CACHE, resolverCache.getCaches());
+    resolverCache.setListener(createListener(registry, RDP_DNS_CACHE));
+  }
+
+  private static void setup(MetricRegistry registry, String prefixName, List<StoreCache<?, ?>> caches) {
+    for (StoreCache<?, ?> cache : caches) {
+      String prefix = prefixName + cache.getName();
+      registry.gauge(prefix + HIT_GAUGE, () -> () -> cache.getHitCount());
+      registry.gauge(prefix + HIT_RATIO_GAUGE, () -> () -> getHitRatio(cache));
+      registry.gauge(prefix + STALE_HIT_GAUGE, () -> () -> cache.getStaleHitCount());
+      registry.gauge(prefix + MISS_GAUGE, () -> () -> cache.getMissCount());
+      registry.gauge(prefix + LOAD_FAILURE_GAUGE, () -> () -> cache.getLoadFailureCount());
+      registry.gauge(prefix + EVICTION_GAUGE, () -> () -> cache.getEvictionCount());
+      registry.gauge(prefix + SIZE_GAUGE, () -> () -> cache.size());
+    }
+  }
+
+  /**
+   * Records every store load in a per cache timer.
+   */
+  public static Listener createListener(MetricRegistry registry) {
+    return createListener(registry, RDP_STORE_CACHE);
+  }
+
+  private static Listener createListener(MetricRegistry registry, String prefix) {
+    return (cacheName, nanos, success) -> {
+      Timer timer = registry.timer(prefix + cacheName + LOAD_TIMER);
+      timer.update(nanos, TimeUnit.NANOSECONDS);
+    };
+  }
+
+  /**
+   * Hits, stale or not, over all lookups.
+   */
+  private static double getHitRatio(StoreCache<?, ?> cache) {
+    long hits = cache.getHitCount() + cache.getStaleHitCount();
+    long total = hits + cache.getMissCount();
+    return total == 0 ? 0.0 : (double) hits / total;
+  }
+
+}
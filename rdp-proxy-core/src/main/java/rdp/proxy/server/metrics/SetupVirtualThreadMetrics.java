@@ -0,0 +1,65 @@
+package rdp.proxy.server.metrics;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import rdp.proxy.server.util.VirtualThreads;
+
+public class SetupVirtualThreadMetrics {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SetupVirtualThreadMetrics.class);
+
+  public static final String JVM_VIRTUAL_THREADS_CARRIER_GAUGE = "jvm.virtual.threads.carrier.gauge";
+  public static final String JVM_VIRTUAL_THREADS_PINNED_COUNTER = "jvm.virtual.threads.pinned.counter";
+
+  private static final String RECORDING_STREAM_CLASSNAME = "jdk.jfr.consumer.RecordingStream";
+  private static final String EVENT_SETTINGS_CLASSNAME = "jdk.jfr.EventSettings";
+  private static final String VIRTUAL_THREAD_PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+  private static boolean SETUP = false;
+
+  public static synchronized void setup(MetricRegistry registry) {
+    if (SETUP) {
+      return;
+    }
+    SETUP = true;
+    registry.gauge(JVM_VIRTUAL_THREADS_CARRIER_GAUGE, () -> () -> VirtualThreads.getCarrierThreadCount());
+    Counter pinned = registry.counter(JVM_VIRTUAL_THREADS_PINNED_COUNTER);
+    if (VirtualThreads.isSupported()) {
+      startPinnedEventStream(pinned);
+    }
+  }
+
+  /**
+   * Counts every jdk.VirtualThreadPinned event, i.e. every time a virtual
+   * thread blocked while pinned to its carrier (for example inside a
+   * synchronized block).
+   */
+  private static void startPinnedEventStream(Counter pinned) {
+    try {
+      Class<?> recordingStreamClass = Class.forName(RECORDING_STREAM_CLASSNAME);
+      Object recordingStream = recordingStreamClass.getConstructor()
+                                                   .newInstance();
+      Object eventSettings = recordingStreamClass.getMethod("enable", String.class)
+                                                 .invoke(recordingStream, VIRTUAL_THREAD_PINNED_EVENT);
+      Method withThreshold = Class.forName(EVENT_SETTINGS_CLASSNAME)
+                                  .getMethod("withThreshold", Duration.class);
+      withThreshold.invoke(eventSettings, Duration.ZERO);
+      Consumer<Object> consumer = event -> pinned.inc();
+      recordingStreamClass.getMethod("onEvent", String.class, Consumer.class)
+                          .invoke(recordingStream, VIRTUAL_THREAD_PINNED_EVENT, consumer);
+      recordingStreamClass.getMethod("startAsync")
+                          .invoke(recordingStream);
+    } catch (Exception e) {
+      LOGGER.error("Could not start virtual thread pinned event stream", e);
+    }
+  }
+
+}
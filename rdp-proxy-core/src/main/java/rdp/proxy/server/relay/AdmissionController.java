@@ -0,0 +1,121 @@
+package rdp.proxy.server.relay;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import rdp.proxy.server.RdpProxyConfig;
+
+/**
+ * Decides at accept time whether a new session may start. A session is
+ * rejected when the node already has the maximum number of sessions, the
+ * maximum number of handshakes (sessions not relaying yet) or the new session
+ * rate is exceeded. Rejected clients get an RDP negotiation failure so they
+ * report an error instead of reconnecting in a tight loop.
+ */
+public class AdmissionController {
+
+  public static final String RDP_ADMISSION_ADMITTED_COUNTER = "rdp.admission.admitted.counter";
+  public static final String RDP_ADMISSION_REJECTED_COUNTER = "rdp.admission.rejected.counter";
+  public static final String RDP_ADMISSION_QUEUED_GAUGE = "rdp.admission.queued.gauge";
+  public static final String RDP_ADMISSION_SESSIONS_GAUGE = "rdp.admission.sessions.gauge";
+
+  /**
+   * MS-RDPBCGR has no overload failure code, INCONSISTENT_FLAGS ends the
+   * connect without suggesting a security setting change.
+   */
+  public static final int INCONSISTENT_FLAGS = 0x04;
+
+  private static final byte[] NEGOTIATION_FAILURE = createNegotiationFailure(INCONSISTENT_FLAGS);
+
+  private final int _maxSessions;
+  private final int _maxHandshakes;
+  private final TokenBucket _newSessions;
+  private final AtomicInteger _sessions = new AtomicInteger();
+  private final AtomicInteger _handshakes = new AtomicInteger();
+  private final Counter _admitted;
+  private final Counter _rejected;
+
+  public AdmissionController(RdpProxyConfig config, MetricRegistry metrics) {
+    _maxSessions = config.getRdpMaxSessions();
+    _maxHandshakes = config.getRdpMaxHandshakes();
+    _newSessions = new TokenBucket(config.getRdpNewSessionRate(), config.getRdpNewSessionBurst());
+    _admitted = metrics.counter(RDP_ADMISSION_ADMITTED_COUNTER);
+    _rejected = metrics.counter(RDP_ADMISSION_REJECTED_COUNTER);
+    metrics.gauge(RDP_ADMISSION_QUEUED_GAUGE, () -> () -> _handshakes.get());
+    metrics.gauge(RDP_ADMISSION_SESSIONS_GAUGE, () -> () -> _sessions.get());
+  }
+
+  /**
+   * On true the caller owns a session and a handshake slot, release them with
+   * {@link #handshakeDone()} and {@link #sessionClosed(boolean)}.
+   */
+  public boolean tryAdmit() {
+    if (!tryIncrement(_sessions, _maxSessions)) {
+      _rejected.inc();
+      return false;
+    }
+    if (!tryIncrement(_handshakes, _maxHandshakes)) {
+      _sessions.decrementAndGet();
+      _rejected.inc();
+      return false;
+    }
+    if (!_newSessions.tryAcquire(1)) {
+      _handshakes.decrementAndGet();
+      _sessions.decrementAndGet();
+      _rejected.inc();
+      return false;
+    }
+    _admitted.inc();
+    return true;
+  }
+
+  public void handshakeDone() {
+    _handshakes.decrementAndGet();
+  }
+
+  public void sessionClosed(boolean handshaking) {
+    if (handshaking) {
+      handshakeDone();
+    }
+    _sessions.decrementAndGet();
+  }
+
+  /**
+   * The X.224 connection confirm carrying an RDP_NEG_FAILURE, sent in reply to
+   * the client's connection request.
+   */
+  public static byte[] getNegotiationFailure() {
+    return NEGOTIATION_FAILURE.clone();
+  }
+
+  static byte[] createNegotiationFailure(int failureCode) {
+    return new byte[] {
+        // TPKT, version 3 and the length
+        0x03, 0x00, 0x00, 0x13,
+        // X.224 connection confirm, dst-ref, src-ref and class 0
+        0x0E, (byte) 0xD0, 0x00, 0x00, 0x00, 0x00, 0x00,
+        // RDP_NEG_FAILURE, flags and the length 8 little endian
+        0x03, 0x00, 0x08, 0x00,
+        // failure code little endian
+        (byte) failureCode, (byte) (failureCode >>> 8), (byte) (failureCode >>> 16), (byte) (failureCode >>> 24) };
+  }
+
+  private static boolean tryIncrement(AtomicInteger count, int max) {
+    if (max <= 0) {
+      count.incrementAndGet();
+      return true;
+    }
+    while (true) {
+      int current = count.get();
+      if (current >= max) {
+        return false;
+      }
+      if (count.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+package rdp.proxy.server.relay;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rdp.proxy.server.util.Utils;
+import rdp.proxy.spi.ConnectionInfo;
+import rdp.proxy.spi.cache.ResolverCache;
+
+/**
+ * Connects to the first reachable backend endpoint "happy eyeballs" style. A
+ * round starts one attempt per endpoint, staggered by the attempt delay or
+ * right away when the previous attempt fails. The first connect to succeed
+ * wins and the others are closed. When every attempt of a round fails the next
+ * round is scheduled after an exponential backoff, nothing sleeps in between.
+ * Every round tries backends with an open circuit last.
+ */
+public class BackendConnector {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BackendConnector.class);
+
+  private final ExecutorService _connectService;
+  private final HashedWheelTimer _timer;
+  private final int _connectTimeout;
+  private final int _soTimeout;
+  private final long _attemptDelay;
+  private final long _initialBackoff;
+  private final long _maxBackoff;
+  private final int _maxRounds;
+  private final BackendHealthRegistry _backendHealth;
+
+  public BackendConnector(ExecutorService connectService, HashedWheelTimer timer, int connectTimeout,
+      int soTimeout, long attemptDelay, long initialBackoff, long maxBackoff, int maxRounds,
+      BackendHealthRegistry backendHealth) {
+    _backendHealth = backendHealth;
+    _connectService = connectService;
+    _timer = timer;
+    _connectTimeout = connectTimeout;
+    _soTimeout = soTimeout;
+    _attemptDelay = attemptDelay;
+    _initialBackoff = initialBackoff;
+    _maxBackoff = maxBackoff;
+    _maxRounds = Math.max(1, maxRounds);
+  }
+
+  /**
+   * Blocks until a backend is connected or every round failed. Resolving host
+   * names happens on the calling thread.
+   */
+  public Socket connect(Collection<ConnectionInfo> connectionInfos) throws IOException, InterruptedException {
+    List<ConnectionInfo> endpoints = getConnectEndpoints(connectionInfos);
+    if (endpoints.isEmpty()) {
+      throw new IOException("No connectionInfos to connect to");
+    }
+    CompletableFuture<Socket> result = new CompletableFuture<>();
+    new Round(endpoints, 0, result).startNext();
+    try {
+      return result.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      result.cancel(false);
+    }
+  }
+
+  /**
+   * Expands every direct endpoint that was created from a host name to all of
+   * the addresses the name resolves to, then interleaves IPv6 and IPv4 starting
+   * with the family of the first endpoint.
+   */
+  public static List<ConnectionInfo> getConnectEndpoints(Collection<ConnectionInfo> connectionInfos) {
+    Set<ConnectionInfo> expanded = new LinkedHashSet<>();
+    for (ConnectionInfo connectionInfo : connectionInfos) {
+      InetAddress address = connectionInfo.getAddress();
+      String hostname = getHostname(address);
+      if (hostname == null || !isDirect(connectionInfo.getProxy())) {
+        expanded.add(connectionInfo);
+        continue;
+      }
+      try {
+        for (InetAddress resolved : ResolverCache.getInstance()
+                                                 .getAllByName(hostname)) {
+          expanded.add(new ConnectionInfo(connectionInfo.getProxy(), resolved, connectionInfo.getPort()));
+        }
+      } catch (UnknownHostException e) {
+        LOGGER.warn("Could not resolve {}, using {}", hostname, address);
+        expanded.add(connectionInfo);
+      }
+    }
+    List<ConnectionInfo> v6 = new ArrayList<>();
+    List<ConnectionInfo> v4 = new ArrayList<>();
+    for (ConnectionInfo connectionInfo : expanded) {
+      (connectionInfo.getAddress() instanceof Inet6Address ? v6 : v4).add(connectionInfo);
+    }
+    List<ConnectionInfo> first = v4;
+    List<ConnectionInfo> second = v6;
+    if (!expanded.isEmpty() && expanded.iterator()
+                                       .next()
+                                       .getAddress() instanceof Inet6Address) {
+      first = v6;
+      second = v4;
+    }
+    List<ConnectionInfo> endpoints = new ArrayList<>(expanded.size());
+    for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+      if (i < first.size()) {
+        endpoints.add(first.get(i));
+      }
+      if (i < second.size()) {
+        endpoints.add(second.get(i));
+      }
+    }
+    return endpoints;
+  }
+
+  /**
+   * Backoff before the round after the given one, doubling from the initial
+   * backoff up to the max.
+   */
+  public static long getBackoff(int round, long initialBackoff, long maxBackoff) {
+    long backoff = initialBackoff << Math.min(round, 30);
+    return backoff < 0 || backoff > maxBackoff ? maxBackoff : backoff;
+  }
+
+  public static boolean isDirect(Proxy proxy) {
+    return proxy == null || proxy.type() == Proxy.Type.DIRECT;
+  }
+
+  /**
+   * The host name the address was created from, without a reverse lookup, or
+   * null if it was created from a literal address.
+   */
+  private static String getHostname(InetAddress address) {
+    if (address == null) {
+      return null;
+    }
+    String s = address.toString();
+    int index = s.indexOf('/');
+    return index > 0 ? s.substring(0, index) : null;
+  }
+
+  private class Round {
+
+    private final List<ConnectionInfo> _endpoints;
+    private final int _round;
+    private final CompletableFuture<Socket> _result;
+    private final List<Socket> _sockets = new ArrayList<>();
+    private HashedWheelTimer.Timeout _nextAttempt;
+    private int _next;
+    private int _failed;
+    private boolean _done;
+
+    Round(List<ConnectionInfo> endpoints, int round, CompletableFuture<Socket> result) {
+      _endpoints = _backendHealth.order(endpoints);
+      _round = round;
+      _result = result;
+      _result.whenComplete((socket, t) -> {
+        if (t != null) {
+          closeAll();
+        }
+      });
+    }
+
+    synchronized void startNext() {
+      if (_done || _next >= _endpoints.size()) {
+        return;
+      }
+      if (_nextAttempt != null) {
+        _nextAttempt.cancel();
+      }
+      ConnectionInfo connectionInfo = _endpoints.get(_next++);
+      Socket socket = new Socket(connectionInfo.getProxy());
+      _sockets.add(socket);
+      _connectService.submit(() -> attempt(connectionInfo, socket));
+      if (_next < _endpoints.size()) {
+        _nextAttempt = _timer.newTimeout(() -> startNext(), _attemptDelay, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void attempt(ConnectionInfo connectionInfo, Socket socket) {
+      try {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(_soTimeout);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(connectionInfo.getAddress(), connectionInfo.getPort()), _connectTimeout);
+        _backendHealth.recordSuccess(connectionInfo);
+        succeeded(socket);
+      } catch (Exception e) {
+        failed(connectionInfo, socket, e);
+      }
+    }
+
+    private synchronized void succeeded(Socket socket) {
+      if (_done || !_result.complete(socket)) {
+        Utils.closeQuietly(socket);
+        return;
+      }
+      _done = true;
+      if (_nextAttempt != null) {
+        _nextAttempt.cancel();
+      }
+      for (Socket other : _sockets) {
+        if (other != socket) {
+          Utils.closeQuietly(other);
+        }
+      }
+    }
+
+    private synchronized void failed(ConnectionInfo connectionInfo, Socket socket, Exception e) {
+      Utils.closeQuietly(socket);
+      if (_done) {
+        return;
+      }
+      LOGGER.error("Could not connect to {}", connectionInfo);
+      LOGGER.error("Connection execption", e);
+      _backendHealth.recordFailure(connectionInfo);
+      _failed++;
+      if (_failed < _endpoints.size()) {
+        startNext();
+        return;
+      }
+      _done = true;
+      if (_result.isDone()) {
+        return;
+      }
+      if (_round + 1 < _maxRounds) {
+        long backoff = getBackoff(_round, _initialBackoff, _maxBackoff);
+        _timer.newTimeout(() -> new Round(_endpoints, _round + 1, _result).startNext(), backoff,
+            TimeUnit.MILLISECONDS);
+      } else {
+        _result.completeExceptionally(
+            new IOException("None of the connectionInfos " + _endpoints + " successfully connected"));
+      }
+    }
+
+    private synchronized void closeAll() {
+      _done = true;
+      if (_nextAttempt != null) {
+        _nextAttempt.cancel();
+      }
+      for (Socket socket : _sockets) {
+        Utils.closeQuietly(socket);
+      }
+    }
+
+  }
+
+}
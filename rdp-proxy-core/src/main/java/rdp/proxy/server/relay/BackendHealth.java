@@ -0,0 +1,97 @@
+package rdp.proxy.server.relay;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Passive and probed health of one backend address and port, with a simple
+ * circuit breaker. After the configured number of consecutive failures the
+ * circuit opens and the backend is tried last. Once the open time has passed
+ * it is half open, the next success closes it and the next failure opens it
+ * again.
+ */
+public class BackendHealth {
+
+  public enum State {
+    CLOSED, HALF_OPEN, OPEN
+  }
+
+  private final InetSocketAddress _address;
+  private final int _failureThreshold;
+  private final long _openTime;
+  private long _successCount;
+  private long _failureCount;
+  private int _consecutiveFailures;
+  private boolean _open;
+  private long _openedAt;
+  private volatile long _lastUsed = System.currentTimeMillis();
+
+  public BackendHealth(InetSocketAddress address, int failureThreshold, long openTime) {
+    _address = address;
+    _failureThreshold = failureThreshold;
+    _openTime = openTime;
+  }
+
+  public InetSocketAddress getAddress() {
+    return _address;
+  }
+
+  public synchronized void recordSuccess() {
+    _successCount++;
+    _consecutiveFailures = 0;
+    _open = false;
+  }
+
+  /**
+   * @return true if this failure opened the circuit
+   */
+  public synchronized boolean recordFailure() {
+    _failureCount++;
+    _consecutiveFailures++;
+    State state = getState();
+    if (state == State.HALF_OPEN || (state == State.CLOSED && _consecutiveFailures >= _failureThreshold)) {
+      _open = true;
+      _openedAt = System.currentTimeMillis();
+      return true;
+    }
+    return false;
+  }
+
+  public synchronized State getState() {
+    if (!_open) {
+      return State.CLOSED;
+    }
+    return System.currentTimeMillis() - _openedAt < _openTime ? State.OPEN : State.HALF_OPEN;
+  }
+
+  public boolean isAvailable() {
+    return getState() != State.OPEN;
+  }
+
+  public synchronized long getSuccessCount() {
+    return _successCount;
+  }
+
+  public synchronized long getFailureCount() {
+    return _failureCount;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return _consecutiveFailures;
+  }
+
+  void touch() {
+    _lastUsed = System.currentTimeMillis();
+  }
+
+  long getLastUsed() {
+    return _lastUsed;
+  }
+
+  @Override
+  public String toString() {
+    return _address.getAddress()
+                   .getHostAddress()
+        + ":" + _address.getPort();
+  }
+
+}
@@ -0,0 +1,159 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import rdp.proxy.server.RdpProxyConfig;
+import rdp.proxy.spi.ConnectionInfo;
+
+/**
+ * Tracks {@link BackendHealth} for every backend the relay connects to, keyed
+ * by address and port. Connect results are recorded passively, optional TCP
+ * probes run on a fixed interval and backends not used for an hour are
+ * dropped.
+ */
+public class BackendHealthRegistry implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BackendHealthRegistry.class);
+
+  public static final String BACKEND_STATE_GAUGE = ".backend.state.gauge";
+  public static final String BACKEND_SUCCESS_GAUGE = ".backend.success.gauge";
+  public static final String BACKEND_FAILURE_GAUGE = ".backend.failure.gauge";
+
+  private static final long EXPIRE_TIME = TimeUnit.HOURS.toMillis(1);
+  private static final long EXPIRE_CHECK_TIME = TimeUnit.MINUTES.toMillis(1);
+
+  private final Map<InetSocketAddress, BackendHealth> _backends = new ConcurrentHashMap<>();
+  private final MetricRegistry _metrics;
+  private final int _failureThreshold;
+  private final long _openTime;
+  private final int _probeTimeout;
+  private final ScheduledExecutorService _scheduler;
+  private final ExecutorService _probeService;
+
+  public BackendHealthRegistry(RdpProxyConfig config, MetricRegistry metrics) {
+    _metrics = metrics;
+    _failureThreshold = Math.max(1, config.getRdpBackendFailureThreshold());
+    _openTime = config.getRdpBackendOpenTime();
+    _probeTimeout = config.getRdpBackendProbeTimeout();
+    _scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("rdp-backend-health-%d")
+                                  .setDaemon(true)
+                                  .build());
+    _probeService = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("rdp-backend-probe-%d")
+                                                                            .setDaemon(true)
+                                                                            .build());
+    _scheduler.scheduleWithFixedDelay(() -> expire(), EXPIRE_CHECK_TIME, EXPIRE_CHECK_TIME, TimeUnit.MILLISECONDS);
+    long probeInterval = config.getRdpBackendProbeInterval();
+    if (probeInterval > 0) {
+      _scheduler.scheduleWithFixedDelay(() -> probe(), probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns the endpoints with every backend whose circuit is open moved to
+   * the end, otherwise in the given order.
+   */
+  public List<ConnectionInfo> order(Collection<ConnectionInfo> connectionInfos) {
+    List<ConnectionInfo> available = new ArrayList<>(connectionInfos.size());
+    List<ConnectionInfo> open = new ArrayList<>();
+    for (ConnectionInfo connectionInfo : connectionInfos) {
+      BackendHealth health = getBackendHealth(connectionInfo);
+      health.touch();
+      (health.isAvailable() ? available : open).add(connectionInfo);
+    }
+    available.addAll(open);
+    return available;
+  }
+
+  public void recordSuccess(ConnectionInfo connectionInfo) {
+    getBackendHealth(connectionInfo).recordSuccess();
+  }
+
+  public void recordFailure(ConnectionInfo connectionInfo) {
+    BackendHealth health = getBackendHealth(connectionInfo);
+    if (health.recordFailure()) {
+      LOGGER.warn("Backend {} circuit open after {} consecutive failures", health, health.getConsecutiveFailures());
+    }
+  }
+
+  public List<BackendHealth> getBackendHealth() {
+    return new ArrayList<>(_backends.values());
+  }
+
+  @Override
+  public void close() throws IOException {
+    _scheduler.shutdownNow();
+    _probeService.shutdownNow();
+  }
+
+  public static String getBackendStateGaugeName(BackendHealth health) {
+    return health + BACKEND_STATE_GAUGE;
+  }
+
+  public static String getBackendSuccessGaugeName(BackendHealth health) {
+    return health + BACKEND_SUCCESS_GAUGE;
+  }
+
+  public static String getBackendFailureGaugeName(BackendHealth health) {
+    return health + BACKEND_FAILURE_GAUGE;
+  }
+
+  private BackendHealth getBackendHealth(ConnectionInfo connectionInfo) {
+    InetSocketAddress address = new InetSocketAddress(connectionInfo.getAddress(), connectionInfo.getPort());
+    return _backends.computeIfAbsent(address, key -> {
+      BackendHealth health = new BackendHealth(key, _failureThreshold, _openTime);
+      _metrics.gauge(getBackendStateGaugeName(health), () -> () -> health.getState()
+                                                                       .ordinal());
+      _metrics.gauge(getBackendSuccessGaugeName(health), () -> () -> health.getSuccessCount());
+      _metrics.gauge(getBackendFailureGaugeName(health), () -> () -> health.getFailureCount());
+      return health;
+    });
+  }
+
+  private void expire() {
+    long now = System.currentTimeMillis();
+    for (BackendHealth health : _backends.values()) {
+      if (now - health.getLastUsed() > EXPIRE_TIME) {
+        _backends.remove(health.getAddress());
+        _metrics.remove(getBackendStateGaugeName(health));
+        _metrics.remove(getBackendSuccessGaugeName(health));
+        _metrics.remove(getBackendFailureGaugeName(health));
+      }
+    }
+  }
+
+  private void probe() {
+    for (BackendHealth health : _backends.values()) {
+      _probeService.submit(() -> {
+        try (Socket socket = new Socket()) {
+          socket.connect(health.getAddress(), _probeTimeout);
+          health.recordSuccess();
+        } catch (IOException e) {
+          LOGGER.debug("Probe of backend {} failed", health, e);
+          if (health.recordFailure()) {
+            LOGGER.warn("Backend {} circuit open after failed probe", health);
+          }
+        }
+      });
+    }
+  }
+
+}
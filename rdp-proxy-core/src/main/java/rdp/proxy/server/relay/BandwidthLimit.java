@@ -0,0 +1,23 @@
+package rdp.proxy.server.relay;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+
+/**
+ * Bytes per second for each direction, 0 is unlimited.
+ */
+@Value
+@NoArgsConstructor(force = true, access = AccessLevel.PRIVATE)
+@AllArgsConstructor
+@Builder(toBuilder = true)
+public class BandwidthLimit {
+
+  public static final BandwidthLimit UNLIMITED = new BandwidthLimit(0, 0);
+
+  long clientToServer;
+  long serverToClient;
+
+}
@@ -0,0 +1,129 @@
+package rdp.proxy.server.relay;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import rdp.proxy.server.RdpProxyConfig;
+
+/**
+ * Per session and per user rate limits for both directions. Every session gets
+ * its own buckets and shares a pair of buckets with the other sessions of the
+ * same user, a write waits for whichever of the two is further behind. The
+ * limits can be changed while sessions are running.
+ */
+public class BandwidthShaper {
+
+  public static final String RDP_BANDWIDTH_THROTTLED_SESSIONS_COUNTER = "rdp.bandwidth.throttled.sessions.counter";
+
+  private final long _burst;
+  private final Counter _throttled;
+  private final Map<String, BandwidthLimit> _userLimits = new ConcurrentHashMap<>();
+  private final Map<String, UserBuckets> _users = new ConcurrentHashMap<>();
+  private final Set<SessionShaper> _sessions = ConcurrentHashMap.newKeySet();
+  private volatile BandwidthLimit _sessionDefault;
+  private volatile BandwidthLimit _userDefault;
+
+  public BandwidthShaper(RdpProxyConfig config, MetricRegistry metrics) {
+    _burst = config.getRdpBandwidthBurstBytes();
+    _sessionDefault = new BandwidthLimit(config.getRdpSessionClientToServerRate(),
+        config.getRdpSessionServerToClientRate());
+    _userDefault = new BandwidthLimit(config.getRdpUserClientToServerRate(), config.getRdpUserServerToClientRate());
+    _throttled = metrics.counter(RDP_BANDWIDTH_THROTTLED_SESSIONS_COUNTER);
+  }
+
+  /**
+   * Starts shaping a new session, {@link SessionShaper#close()} ends it.
+   */
+  public SessionShaper open(String user) {
+    UserBuckets userBuckets = _users.compute(user, (key, existing) -> {
+      UserBuckets buckets = existing == null ? new UserBuckets(getUserLimit(key), _burst) : existing;
+      buckets._sessions++;
+      return buckets;
+    });
+    SessionShaper shaper = new SessionShaper(this, user, _sessionDefault, _burst, userBuckets._clientToServer,
+        userBuckets._serverToClient);
+    _sessions.add(shaper);
+    return shaper;
+  }
+
+  void closed(SessionShaper shaper) {
+    if (_sessions.remove(shaper)) {
+      _users.computeIfPresent(shaper.getUser(), (key, buckets) -> --buckets._sessions == 0 ? null : buckets);
+    }
+  }
+
+  void throttled() {
+    _throttled.inc();
+  }
+
+  public BandwidthLimit getSessionDefault() {
+    return _sessionDefault;
+  }
+
+  /**
+   * Applies to new sessions and to running ones without a limit of their own.
+   */
+  public void setSessionDefault(BandwidthLimit limit) {
+    _sessionDefault = limit;
+    for (SessionShaper shaper : _sessions) {
+      shaper.setDefaultLimit(limit);
+    }
+  }
+
+  public BandwidthLimit getUserDefault() {
+    return _userDefault;
+  }
+
+  public void setUserDefault(BandwidthLimit limit) {
+    _userDefault = limit;
+    _users.forEach((user, buckets) -> buckets.setLimit(getUserLimit(user), _burst));
+  }
+
+  public BandwidthLimit getUserLimit(String user) {
+    BandwidthLimit limit = _userLimits.get(user);
+    return limit == null ? _userDefault : limit;
+  }
+
+  /**
+   * A null limit goes back to the user default.
+   */
+  public void setUserLimit(String user, BandwidthLimit limit) {
+    if (limit == null) {
+      _userLimits.remove(user);
+    } else {
+      _userLimits.put(user, limit);
+    }
+    UserBuckets buckets = _users.get(user);
+    if (buckets != null) {
+      buckets.setLimit(getUserLimit(user), _burst);
+    }
+  }
+
+  public Map<String, BandwidthLimit> getUserLimits() {
+    return new TreeMap<>(_userLimits);
+  }
+
+  private static class UserBuckets {
+
+    final TokenBucket _clientToServer;
+    final TokenBucket _serverToClient;
+    int _sessions;
+
+    UserBuckets(BandwidthLimit limit, long burst) {
+      _clientToServer = new TokenBucket(limit.getClientToServer(), burst);
+      _serverToClient = new TokenBucket(limit.getServerToClient(), burst);
+    }
+
+    void setLimit(BandwidthLimit limit, long burst) {
+      _clientToServer.setRate(limit.getClientToServer(), burst);
+      _serverToClient.setRate(limit.getServerToClient(), burst);
+    }
+
+  }
+
+}
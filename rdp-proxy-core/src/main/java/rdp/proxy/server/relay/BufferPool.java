@@ -0,0 +1,138 @@
+package rdp.proxy.server.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Size classed pool of relay buffers shared by every session on the node.
+ * Sizes are rounded up to a power of two, released buffers are kept for reuse
+ * and the total of pooled plus leased bytes never exceeds the configured cap;
+ * idle pooled buffers are dropped first to make room before an acquire fails.
+ */
+public class BufferPool {
+
+  public static final String RDP_BUFFER_POOL_POOLED_GAUGE = "rdp.buffer.pool.pooled.gauge";
+  public static final String RDP_BUFFER_POOL_LEASED_GAUGE = "rdp.buffer.pool.leased.gauge";
+  public static final String RDP_BUFFER_POOL_PEAK_GAUGE = "rdp.buffer.pool.peak.gauge";
+
+  private static final int MIN_SIZE_CLASS_SHIFT = 10;
+  private static final int MAX_SIZE_CLASS_SHIFT = 30;
+
+  private final boolean _direct;
+  private final long _maxBytes;
+  private final ConcurrentLinkedDeque<ByteBuffer>[] _free;
+  private final AtomicLong _total = new AtomicLong();
+  private final AtomicLong _pooled = new AtomicLong();
+  private final AtomicLong _leased = new AtomicLong();
+  private final AtomicLong _peak = new AtomicLong();
+
+  @SuppressWarnings("unchecked")
+  public BufferPool(boolean direct, long maxBytes, MetricRegistry metrics) {
+    _direct = direct;
+    _maxBytes = maxBytes;
+    _free = new ConcurrentLinkedDeque[MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1];
+    for (int i = 0; i < _free.length; i++) {
+      _free[i] = new ConcurrentLinkedDeque<>();
+    }
+    metrics.gauge(RDP_BUFFER_POOL_POOLED_GAUGE, () -> () -> _pooled.get());
+    metrics.gauge(RDP_BUFFER_POOL_LEASED_GAUGE, () -> () -> _leased.get());
+    metrics.gauge(RDP_BUFFER_POOL_PEAK_GAUGE, () -> () -> _peak.get());
+  }
+
+  public boolean isDirect() {
+    return _direct;
+  }
+
+  /**
+   * Leases a cleared buffer with a capacity of at least size bytes. Heap
+   * buffers are always backed by an array starting at offset 0.
+   *
+   * @throws IOException
+   *           if the node cap would be exceeded.
+   */
+  public ByteBuffer acquire(int size) throws IOException {
+    int sizeClass = getSizeClass(size);
+    int capacity = 1 << (sizeClass + MIN_SIZE_CLASS_SHIFT);
+    ByteBuffer buffer = _free[sizeClass].pollFirst();
+    if (buffer != null) {
+      _pooled.addAndGet(-capacity);
+    } else {
+      reserve(capacity);
+      buffer = _direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+    long leased = _leased.addAndGet(capacity);
+    _peak.accumulateAndGet(leased, Math::max);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer from {@link #acquire(int)}, the caller must not touch it
+   * afterwards.
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    int capacity = buffer.capacity();
+    buffer.clear();
+    _leased.addAndGet(-capacity);
+    _pooled.addAndGet(capacity);
+    _free[getSizeClass(capacity)].offerFirst(buffer);
+  }
+
+  public long getPooledBytes() {
+    return _pooled.get();
+  }
+
+  public long getLeasedBytes() {
+    return _leased.get();
+  }
+
+  public long getPeakLeasedBytes() {
+    return _peak.get();
+  }
+
+  private void reserve(int capacity) throws IOException {
+    while (true) {
+      long total = _total.get();
+      if (total + capacity <= _maxBytes) {
+        if (_total.compareAndSet(total, total + capacity)) {
+          return;
+        }
+        continue;
+      }
+      if (!evictOne()) {
+        throw new IOException("Relay buffer pool exhausted, leased " + _leased.get() + " bytes of " + _maxBytes);
+      }
+    }
+  }
+
+  /**
+   * Drops one idle pooled buffer, largest first, so its bytes count against
+   * the cap no more.
+   */
+  private boolean evictOne() {
+    for (int i = _free.length - 1; i >= 0; i--) {
+      ByteBuffer buffer = _free[i].pollLast();
+      if (buffer != null) {
+        _pooled.addAndGet(-buffer.capacity());
+        _total.addAndGet(-buffer.capacity());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int getSizeClass(int size) {
+    int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    if (shift > MAX_SIZE_CLASS_SHIFT) {
+      throw new IllegalArgumentException("Buffer size " + size + " too large");
+    }
+    return Math.max(shift, MIN_SIZE_CLASS_SHIFT) - MIN_SIZE_CLASS_SHIFT;
+  }
+
+}
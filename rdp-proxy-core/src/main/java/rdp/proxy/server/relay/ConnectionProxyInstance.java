@@ -12,8 +12,13 @@ import lombok.Value;
 public class ConnectionProxyInstance {
 
   String id;
+  String user;
+  String cookie;
   SocketInfo client;
   SocketInfo server;
   AtomicBoolean alive;
+  SessionTeardown teardown;
+  SessionShaper shaper;
+  SessionCounters counters;
 
 }
@@ -0,0 +1,30 @@
+package rdp.proxy.server.relay;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Where a drain stands, updated once a second. Times are epoch millis, the
+ * rates are bytes per second over the last second.
+ */
+@Value
+@Builder(toBuilder = true)
+@AllArgsConstructor
+public class DrainProgress {
+
+  public static final DrainProgress RUNNING = DrainProgress.builder()
+                                                           .state(SessionDrainer.State.RUNNING)
+                                                           .build();
+
+  SessionDrainer.State state;
+  long startedAt;
+  long deadline;
+  long forceDeadline;
+  int remainingSessions;
+  long clientToServerBytesPerSecond;
+  long serverToClientBytesPerSecond;
+  int closedIdle;
+  int closedForced;
+
+}
@@ -0,0 +1,223 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hashed timing wheel for the many coarse timeouts of a relay: handshake
+ * deadlines, connect timeouts, backoffs and idle checks. Adding and cancelling
+ * a timeout only enqueues it, the worker thread moves it into or out of its
+ * bucket once per tick, so both are O(1) no matter how many are pending.
+ * Timeouts fire up to one tick late and run on the worker thread, so tasks
+ * have to be short and hand anything else to another thread.
+ */
+public class HashedWheelTimer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+  private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+  private final long _tickNanos;
+  private final Bucket[] _wheel;
+  private final int _mask;
+  private final Queue<Timeout> _added = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> _cancelled = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _pending = new AtomicInteger();
+  private final long _startTime;
+  private final Thread _worker;
+  private volatile boolean _running = true;
+  private long _tick;
+
+  public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+    _tickNanos = Math.max(1, unit.toNanos(tickDuration));
+    int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+    _wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      _wheel[i] = new Bucket();
+    }
+    _mask = size - 1;
+    _startTime = System.nanoTime();
+    _worker = new ThreadFactoryBuilder().setNameFormat(name)
+                                        .setDaemon(true)
+                                        .build()
+                                        .newThread(() -> run());
+    _worker.start();
+  }
+
+  public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+    Timeout timeout = new Timeout(task, System.nanoTime() - _startTime + unit.toNanos(Math.max(0, delay)));
+    _pending.incrementAndGet();
+    _added.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Timeouts added and not yet expired or cancelled.
+   */
+  public int getPendingTimeouts() {
+    return _pending.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    _running = false;
+    _worker.interrupt();
+  }
+
+  private void run() {
+    while (_running) {
+      long deadline = _tickNanos * (_tick + 1);
+      long sleep = deadline - (System.nanoTime() - _startTime);
+      if (sleep > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleep);
+        } catch (InterruptedException e) {
+          continue;
+        }
+      }
+      removeCancelled();
+      transferAdded();
+      _wheel[(int) (_tick & _mask)].expire();
+      _tick++;
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = _cancelled.poll()) != null) {
+      if (timeout._bucket != null) {
+        timeout._bucket.remove(timeout);
+        _pending.decrementAndGet();
+      }
+    }
+  }
+
+  private void transferAdded() {
+    for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+      Timeout timeout = _added.poll();
+      if (timeout == null) {
+        return;
+      }
+      if (timeout._state.get() == Timeout.CANCELLED) {
+        // never reached a bucket, removeCancelled skips it
+        _pending.decrementAndGet();
+        continue;
+      }
+      long ticks = timeout._deadline / _tickNanos;
+      timeout._remainingRounds = (ticks - _tick) / _wheel.length;
+      // already late, expire with the current tick
+      _wheel[(int) (Math.max(ticks, _tick) & _mask)].add(timeout);
+    }
+  }
+
+  private class Bucket {
+
+    private Timeout _head;
+    private Timeout _tail;
+
+    void add(Timeout timeout) {
+      timeout._bucket = this;
+      if (_head == null) {
+        _head = _tail = timeout;
+      } else {
+        _tail._next = timeout;
+        timeout._prev = _tail;
+        _tail = timeout;
+      }
+    }
+
+    void expire() {
+      Timeout timeout = _head;
+      while (timeout != null) {
+        Timeout next = timeout._next;
+        if (timeout._remainingRounds <= 0) {
+          remove(timeout);
+          _pending.decrementAndGet();
+          timeout.expire();
+        } else {
+          timeout._remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout._prev != null) {
+        timeout._prev._next = timeout._next;
+      } else {
+        _head = timeout._next;
+      }
+      if (timeout._next != null) {
+        timeout._next._prev = timeout._prev;
+      } else {
+        _tail = timeout._prev;
+      }
+      timeout._prev = null;
+      timeout._next = null;
+      timeout._bucket = null;
+    }
+
+  }
+
+  public class Timeout {
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Runnable _task;
+    private final long _deadline;
+    private final AtomicInteger _state = new AtomicInteger(WAITING);
+    // only touched by the worker thread
+    private long _remainingRounds;
+    private Bucket _bucket;
+    private Timeout _prev;
+    private Timeout _next;
+
+    private Timeout(Runnable task, long deadline) {
+      _task = task;
+      _deadline = deadline;
+    }
+
+    /**
+     * Returns false when the timeout already expired or was cancelled.
+     */
+    public boolean cancel() {
+      if (!_state.compareAndSet(WAITING, CANCELLED)) {
+        return false;
+      }
+      _cancelled.add(this);
+      return true;
+    }
+
+    public boolean isCancelled() {
+      return _state.get() == CANCELLED;
+    }
+
+    public boolean isExpired() {
+      return _state.get() == EXPIRED;
+    }
+
+    private void expire() {
+      if (!_state.compareAndSet(WAITING, EXPIRED)) {
+        return;
+      }
+      try {
+        _task.run();
+      } catch (Throwable t) {
+        LOGGER.error("Unknown error running timeout", t);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,77 @@
+package rdp.proxy.server.relay;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Closes a session once no bytes moved in either direction for the idle
+ * timeout. The counters are compared once per idle timeout on the wheel, so
+ * the relay loops pay nothing for it and an idle session is closed between
+ * one and two timeouts after its last byte.
+ */
+public class IdleReaper implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IdleReaper.class);
+
+  private final HashedWheelTimer _timer;
+  private final long _idleTimeout;
+  private final String _id;
+  private final SessionCounters _counters;
+  private final Runnable _onIdle;
+  private volatile HashedWheelTimer.Timeout _timeout;
+  private volatile boolean _cancelled;
+  private long _lastBytes = -1;
+
+  public IdleReaper(HashedWheelTimer timer, long idleTimeout, String id, SessionCounters counters, Runnable onIdle) {
+    _timer = timer;
+    _idleTimeout = idleTimeout;
+    _id = id;
+    _counters = counters;
+    _onIdle = onIdle;
+  }
+
+  /**
+   * Does nothing when the idle timeout is 0.
+   */
+  public void start() {
+    if (_idleTimeout > 0) {
+      schedule();
+    }
+  }
+
+  public void cancel() {
+    _cancelled = true;
+    HashedWheelTimer.Timeout timeout = _timeout;
+    if (timeout != null) {
+      timeout.cancel();
+    }
+  }
+
+  @Override
+  public void run() {
+    if (_cancelled) {
+      return;
+    }
+    long bytes = _counters.getClientToServer()
+                          .getBytes()
+        + _counters.getServerToClient()
+                   .getBytes();
+    if (bytes == _lastBytes) {
+      LOGGER.info("Connection {} idle for {} ms, closing", _id, _idleTimeout);
+      _onIdle.run();
+      return;
+    }
+    _lastBytes = bytes;
+    schedule();
+  }
+
+  private void schedule() {
+    _timeout = _timer.newTimeout(this, _idleTimeout, TimeUnit.MILLISECONDS);
+    if (_cancelled) {
+      _timeout.cancel();
+    }
+  }
+
+}
@@ -0,0 +1,899 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import rdp.proxy.server.RdpProxyConfig;
+import rdp.proxy.server.metrics.LatencyRecorder;
+import rdp.proxy.server.relay.NioReactor.ScheduledTask;
+import rdp.proxy.server.util.ReusePort;
+import rdp.proxy.server.util.Utils;
+import rdp.proxy.spi.ConnectionInfo;
+import rdp.proxy.spi.RdpStore;
+import rdp.proxy.spi.RdpStoreExecutor;
+
+/**
+ * Relay engine built on {@link java.nio.channels.Selector}. A fixed set of
+ * reactor threads own the accept, the X.224 connection request, the backend
+ * connect and the bidirectional copy for their sessions. Only the blocking
+ * {@link RdpStore} calls are handed off to a worker pool.
+ */
+public class NioRdpConnectionRelay implements RdpRelay {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NioRdpConnectionRelay.class);
+
+  private static final int TPKT_HEADER_LENGTH = 4;
+  private static final int MAX_ACCEPTS_PER_EVENT = 64;
+  private static final int REJECT_BUFFER_SIZE = 1024;
+  private static final long REJECT_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+  private final List<ServerSocketChannel> _serverChannels = new CopyOnWriteArrayList<>();
+  private final AtomicBoolean _listening = new AtomicBoolean();
+  private final AtomicInteger _nextReactor = new AtomicInteger();
+  private final ExecutorService _reactorService;
+  private final ExecutorService _setupService;
+  private final NioReactor[] _reactors;
+  private final RdpStore _store;
+  private final int _bufferSize;
+  private final int _remoteRdpTcpTimeout;
+  private final Counter _connectionCounter;
+  private final LatencyRecorder _relayLatencyClientToServer;
+  private final LatencyRecorder _relayLatencyServerToClient;
+  private final Timer _connectionTeardownTimer;
+  private final Meter _acceptMeter;
+  private final Timer _acceptHandoffTimer;
+  private final AdmissionController _admission;
+  private final BandwidthShaper _bandwidthShaper;
+  private final SessionRegistry _sessions = new SessionRegistry();
+  private final Map<String, Session> _sessionMap = new ConcurrentHashMap<>();
+  private final MetricRegistry _metrics;
+  private final Meter _connectionMeterServerToClient;
+  private final Meter _connectionMeterClientToServer;
+  private final RdpProxyConfig _config;
+  private final long _initialWaitTimeBetweenAttempts;
+  private final long _waitTimeBetweenAttempts;
+  private final long _connectAttemptDelay;
+  private final long _storeTimeout;
+  private final int _maxConnectionAttempts;
+  private final BufferPool _bufferPool;
+  private final BackendHealthRegistry _backendHealth;
+  private final HashedWheelTimer _timer;
+  private final long _handshakeTimeout;
+  private final long _idleTimeout;
+
+  public NioRdpConnectionRelay(RdpProxyConfig config, RdpStore store, MetricRegistry metrics) throws IOException {
+    _metrics = metrics;
+    _bufferSize = config.getRdpRelayBufferSize();
+    _remoteRdpTcpTimeout = config.getRdpRemoteTcpTimeout();
+    _store = store;
+    _initialWaitTimeBetweenAttempts = config.getInitialWaitTimeBetweenAttempts();
+    _waitTimeBetweenAttempts = config.getWaitTimeBetweenAttempts();
+    _connectAttemptDelay = config.getRdpConnectAttemptDelay();
+    _storeTimeout = config.getRdpStoreTimeout();
+    _maxConnectionAttempts = config.getMaxConnectionAttempts();
+    _config = config;
+    _bufferPool = new BufferPool(true, config.getRdpBufferPoolMaxBytes(), metrics);
+    _backendHealth = new BackendHealthRegistry(config, metrics);
+
+    _handshakeTimeout = config.getRdpHandshakeTimeout();
+    _idleTimeout = config.getRdpIdleTimeout();
+    _timer = new HashedWheelTimer("rdp-timer-%d", config.getRdpTimerTickDuration(), TimeUnit.MILLISECONDS,
+        config.getRdpTimerWheelSize());
+    metrics.gauge(RdpConnectionRelay.RDP_TIMER_PENDING_GAUGE, () -> () -> _timer.getPendingTimeouts());
+
+    int reactorThreads = Math.max(1, config.getRdpReactorThreads());
+    _reactors = new NioReactor[reactorThreads];
+    ThreadFactory reactorThreadFactory = new ThreadFactoryBuilder().setNameFormat("rdp-reactor-%d")
+                                                                   .build();
+    _reactorService = Executors.newFixedThreadPool(reactorThreads, reactorThreadFactory);
+    for (int i = 0; i < reactorThreads; i++) {
+      _reactors[i] = new NioReactor(_timer);
+      _reactorService.submit(_reactors[i]);
+    }
+    _setupService = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("rdp-setup-%d")
+                                                                            .build());
+
+    _connectionCounter = metrics.counter(RdpConnectionRelay.RDP_CONNECTIONS_COUNTER);
+    _relayLatencyClientToServer = new LatencyRecorder(metrics,
+        RdpConnectionRelay.RDP_CONNECTION_TIMER_CLIENT_TO_SERVER, config.getRdpRelayLatencySampleRate());
+    _relayLatencyServerToClient = new LatencyRecorder(metrics,
+        RdpConnectionRelay.RDP_CONNECTION_TIMER_SERVER_TO_CLIENT, config.getRdpRelayLatencySampleRate());
+    _connectionMeterClientToServer = metrics.meter(RdpConnectionRelay.RDP_CONNECTION_METER_CLIENT_TO_SERVER);
+    _connectionMeterServerToClient = metrics.meter(RdpConnectionRelay.RDP_CONNECTION_METER_SERVER_TO_CLIENT);
+    _connectionTeardownTimer = metrics.timer(RdpConnectionRelay.RDP_CONNECTION_TEARDOWN_TIMER);
+    _acceptMeter = metrics.meter(RdpConnectionRelay.RDP_ACCEPT_METER);
+    _acceptHandoffTimer = metrics.timer(RdpConnectionRelay.RDP_ACCEPT_HANDOFF_TIMER);
+    _admission = new AdmissionController(config, metrics);
+    _bandwidthShaper = new BandwidthShaper(config, metrics);
+  }
+
+  @Override
+  public boolean isListening() {
+    return _listening.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    stopListening();
+    for (Session session : _sessionMap.values()) {
+      session._reactor.execute(() -> session.close());
+    }
+    for (NioReactor reactor : _reactors) {
+      Utils.closeQuietly(reactor);
+    }
+    _reactorService.shutdown();
+    // the reactors run the queued session closes on the way out, which hand
+    // store sessions to the setup service
+    try {
+      _reactorService.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+    }
+    _setupService.shutdownNow();
+    Utils.closeQuietly(_backendHealth);
+    Utils.closeQuietly(_timer);
+  }
+
+  @Override
+  public Map<String, ConnectionProxyInstance> getConnectionMap() {
+    return _sessions.asMap();
+  }
+
+  @Override
+  public SessionRegistry getSessionRegistry() {
+    return _sessions;
+  }
+
+  @Override
+  public void kill(String id) {
+    Session session = _sessionMap.get(id);
+    if (session != null) {
+      LOGGER.info("Killing connection {}", id);
+      long triggeredAt = System.nanoTime();
+      session._reactor.execute(() -> session.close(triggeredAt));
+    } else {
+      LOGGER.info("Connection not found {}", id);
+    }
+  }
+
+  @Override
+  public BackendHealthRegistry getBackendHealthRegistry() {
+    return _backendHealth;
+  }
+
+  @Override
+  public BandwidthShaper getBandwidthShaper() {
+    return _bandwidthShaper;
+  }
+
+  @Override
+  public synchronized void startListening() {
+    if (_listening.get()) {
+      return;
+    }
+    int listeners = ReusePort.getListenerCount(_config.getRdpAcceptors());
+    try {
+      InetAddress bindAddr = InetAddress.getByName(_config.getRdpBindAddress());
+      InetSocketAddress address = new InetSocketAddress(bindAddr, _config.getRdpPort());
+      for (int i = 0; i < listeners; i++) {
+        ServerSocketChannel serverChannel = ReusePort.openChannel(address, _config.getRdpBacklog(), listeners > 1);
+        serverChannel.configureBlocking(false);
+        _serverChannels.add(serverChannel);
+      }
+    } catch (IOException e) {
+      LOGGER.error("Could not start listener", e);
+      closeServerChannels();
+      return;
+    }
+    _listening.set(true);
+    // each listener accepts on its own reactor
+    for (int i = 0; i < _serverChannels.size(); i++) {
+      ServerSocketChannel serverChannel = _serverChannels.get(i);
+      NioReactor reactor = _reactors[i % _reactors.length];
+      reactor.execute(() -> {
+        try {
+          serverChannel.register(reactor.getSelector(), SelectionKey.OP_ACCEPT, new Acceptor(serverChannel));
+        } catch (IOException e) {
+          LOGGER.error("Could not register listener", e);
+        }
+      });
+    }
+  }
+
+  @Override
+  public synchronized void stopListening() {
+    _listening.set(false);
+    closeServerChannels();
+  }
+
+  private void closeServerChannels() {
+    for (int i = 0; i < _serverChannels.size(); i++) {
+      Utils.closeQuietly(_serverChannels.get(i));
+      // wake the accepting reactor so the cancelled key is flushed
+      _reactors[i % _reactors.length].execute(() -> {
+      });
+    }
+    _serverChannels.clear();
+  }
+
+  private NioReactor nextReactor() {
+    int index = (_nextReactor.getAndIncrement() & Integer.MAX_VALUE) % _reactors.length;
+    return _reactors[index];
+  }
+
+  private class Acceptor implements NioReactor.Handler {
+
+    private final ServerSocketChannel _serverChannel;
+
+    Acceptor(ServerSocketChannel serverChannel) {
+      _serverChannel = serverChannel;
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+      for (int i = 0; i < MAX_ACCEPTS_PER_EVENT; i++) {
+        SocketChannel channel;
+        try {
+          channel = _serverChannel.accept();
+        } catch (IOException e) {
+          LOGGER.error("Unknown error", e);
+          return;
+        }
+        if (channel == null) {
+          return;
+        }
+        _acceptMeter.mark();
+        NioReactor reactor = nextReactor();
+        if (!_admission.tryAdmit()) {
+          reactor.execute(() -> new Rejection(reactor, channel).start());
+          continue;
+        }
+        long accepted = System.nanoTime();
+        reactor.execute(() -> {
+          _acceptHandoffTimer.update(System.nanoTime() - accepted, TimeUnit.NANOSECONDS);
+          new Session(reactor, channel).start();
+        });
+      }
+    }
+
+    @Override
+    public void close() {
+      Utils.closeQuietly(_serverChannel);
+    }
+
+  }
+
+  /**
+   * Reads the connection request of a client that was not admitted, answers
+   * with a negotiation failure and hangs up.
+   */
+  private class Rejection implements NioReactor.Handler {
+
+    private final NioReactor _reactor;
+    private final SocketChannel _channel;
+    private final ByteBuffer _buffer = ByteBuffer.allocate(REJECT_BUFFER_SIZE);
+    private ScheduledTask _timeout;
+
+    Rejection(NioReactor reactor, SocketChannel channel) {
+      _reactor = reactor;
+      _channel = channel;
+    }
+
+    void start() {
+      try {
+        _channel.configureBlocking(false);
+        _channel.register(_reactor.getSelector(), SelectionKey.OP_READ, this);
+        _timeout = _reactor.timeout(() -> close(), REJECT_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    @Override
+    public void handle(SelectionKey key) throws IOException {
+      if (_channel.read(_buffer) == -1) {
+        close();
+        return;
+      }
+      if (_buffer.position() < TPKT_HEADER_LENGTH) {
+        return;
+      }
+      int length = ((_buffer.get(2) & 0xFF) << 8) + (_buffer.get(3) & 0xFF);
+      if (_buffer.position() < length && _buffer.hasRemaining()) {
+        return;
+      }
+      _channel.write(ByteBuffer.wrap(AdmissionController.getNegotiationFailure()));
+      close();
+    }
+
+    @Override
+    public void close() {
+      if (_timeout != null) {
+        _timeout.cancel();
+      }
+      Utils.closeQuietly(_channel);
+    }
+
+  }
+
+  private enum State {
+    FIRST_MESSAGE, LOOKUP, CONNECTING, RELAY, CLOSED
+  }
+
+  private class Session {
+
+    private final NioReactor _reactor;
+    private final SocketChannel _client;
+    private final NioReactor.Handler _clientHandler = new NioReactor.Handler() {
+      @Override
+      public void handle(SelectionKey key) throws IOException {
+        onClientEvent(key);
+      }
+
+      @Override
+      public void close() {
+        Session.this.close();
+      }
+    };
+    private final NioReactor.Handler _serverHandler = new NioReactor.Handler() {
+      @Override
+      public void handle(SelectionKey key) throws IOException {
+        onServerEvent(key);
+      }
+
+      @Override
+      public void close() {
+        Session.this.close();
+      }
+    };
+
+    private State _state = State.FIRST_MESSAGE;
+    private SocketInfo _clientInfo;
+    private SelectionKey _clientKey;
+    private SocketChannel _server;
+    private SelectionKey _serverKey;
+    private String _cookie;
+    private Closeable _storeSession;
+    private ScheduledTask _firstMessageTimeout;
+    private ScheduledTask _lookupTimeout;
+    private IdleReaper _idleReaper;
+    private boolean _handshaking = true;
+    private List<ConnectionInfo> _connectionInfos;
+    private final List<ConnectAttempt> _connectAttempts = new ArrayList<>();
+    private ScheduledTask _nextConnectAttempt;
+    private int _nextConnectionInfo;
+    private int _failedConnectAttempts;
+    private ConnectionInfo _connectionInfo;
+    private int _attempt;
+    private String _id;
+    private SessionCounters _counters;
+    private long _clientToServerPendingSince;
+    private long _serverToClientPendingSince;
+    private SessionShaper _shaper;
+    private ScheduledTask _clientToServerResume;
+    private ScheduledTask _serverToClientResume;
+    private ByteBuffer _clientToServer;
+    private ByteBuffer _serverToClient;
+
+    Session(NioReactor reactor, SocketChannel client) {
+      _reactor = reactor;
+      _client = client;
+    }
+
+    void start() {
+      _connectionCounter.inc();
+      try {
+        _clientToServer = _bufferPool.acquire(_bufferSize);
+        _serverToClient = _bufferPool.acquire(_bufferSize);
+        Socket socket = _client.socket();
+        _clientInfo = SocketInfo.create(socket);
+        LOGGER.debug("Socket {} new connection", socket);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        _client.configureBlocking(false);
+        _clientKey = _client.register(_reactor.getSelector(), SelectionKey.OP_READ, _clientHandler);
+        if (_handshakeTimeout > 0) {
+          _firstMessageTimeout = _reactor.timeout(() -> {
+            LOGGER.info("Socket {} no connection request within {} ms, hang up", _clientInfo, _handshakeTimeout);
+            close();
+          }, _handshakeTimeout, TimeUnit.MILLISECONDS);
+        }
+      } catch (IOException e) {
+        LOGGER.error("Unknown error, during new connection setup", e);
+        close();
+      }
+    }
+
+    private void onClientEvent(SelectionKey key) throws IOException {
+      switch (_state) {
+      case FIRST_MESSAGE:
+        readFirstMessage();
+        return;
+      case RELAY:
+        if (key.isValid() && key.isReadable()) {
+          pump(_client, _server, _clientToServer, _clientKey, _serverKey, true);
+        }
+        if (key.isValid() && key.isWritable()) {
+          drain(_serverToClient, _client, _serverKey, _clientKey, false);
+        }
+        return;
+      default:
+        return;
+      }
+    }
+
+    private void onServerEvent(SelectionKey key) throws IOException {
+      switch (_state) {
+      case RELAY:
+        if (key.isValid() && key.isReadable()) {
+          pump(_server, _client, _serverToClient, _serverKey, _clientKey, false);
+        }
+        if (key.isValid() && key.isWritable()) {
+          drain(_clientToServer, _server, _clientKey, _serverKey, true);
+        }
+        return;
+      default:
+        return;
+      }
+    }
+
+    private void readFirstMessage() throws IOException {
+      if (_client.read(_clientToServer) == -1) {
+        close();
+        return;
+      }
+      if (_clientToServer.position() < TPKT_HEADER_LENGTH) {
+        return;
+      }
+      if (_clientToServer.get(0) != 3) {
+        LOGGER.error("Unknown client, hang up");
+        close();
+        return;
+      }
+      int length = ((_clientToServer.get(2) & 0xFF) << 8) + (_clientToServer.get(3) & 0xFF);
+      if (length < TPKT_HEADER_LENGTH || length > _clientToServer.capacity()) {
+        LOGGER.error("Invalid first message length {}, hang up", length);
+        close();
+        return;
+      }
+      if (_clientToServer.position() < length) {
+        return;
+      }
+      byte[] message = new byte[length];
+      for (int i = 0; i < length; i++) {
+        message[i] = _clientToServer.get(i);
+      }
+      _clientKey.interestOps(0);
+      cancelFirstMessageTimeout();
+      _state = State.LOOKUP;
+      _cookie = RdpConnectionRelay.findCookie(message, 0, length);
+      LOGGER.info("Socket {} find cookie", _clientInfo);
+      lookup();
+    }
+
+    /**
+     * Chains the async {@link RdpStore} calls, only resolving the endpoints
+     * runs on the setup pool since DNS blocks. The lookup is given up after the
+     * store timeout.
+     */
+    private void lookup() {
+      _lookupTimeout = _reactor.timeout(() -> {
+        if (_state == State.LOOKUP) {
+          LOGGER.error("Socket {} store lookup for cookie {} timed out, hang up", _clientInfo, _cookie);
+          close();
+        }
+      }, _storeTimeout, TimeUnit.MILLISECONDS);
+      _store.getConnectionInfoWithCookieAsync(_cookie)
+            .thenAcceptAsync(connectionInfoSet -> lookedUp(connectionInfoSet), _setupService)
+            .whenComplete((v, t) -> {
+              if (t != null) {
+                lookupFailed(t);
+              }
+            });
+    }
+
+    private void lookedUp(Set<ConnectionInfo> connectionInfoSet) {
+      LOGGER.info("Socket {} connectionInfo {} with cookie {} found", _clientInfo, connectionInfoSet, _cookie);
+      if (connectionInfoSet == null || connectionInfoSet.isEmpty()) {
+        LOGGER.info("Socket {} connection info for cookie {} did not find a remote connection, hang up", _clientInfo,
+            _cookie);
+        _reactor.execute(() -> close());
+        return;
+      }
+      List<ConnectionInfo> connectionInfos = BackendConnector.getConnectEndpoints(connectionInfoSet);
+      _store.createSessionAsync(_cookie)
+            .whenComplete((storeSession, t) -> {
+              if (t != null) {
+                lookupFailed(t);
+                return;
+              }
+              _reactor.execute(() -> {
+                if (_state != State.LOOKUP) {
+                  _setupService.submit(() -> Utils.closeQuietly(storeSession));
+                  return;
+                }
+                cancelLookupTimeout();
+                _storeSession = storeSession;
+                _connectionInfos = connectionInfos;
+                _state = State.CONNECTING;
+                startConnectRound();
+              });
+            });
+    }
+
+    private void lookupFailed(Throwable t) {
+      LOGGER.error("Unknown error, during new connection setup", RdpStoreExecutor.unwrap(t));
+      _reactor.execute(() -> close());
+    }
+
+    private void cancelResume() {
+      if (_clientToServerResume != null) {
+        _clientToServerResume.cancel();
+        _clientToServerResume = null;
+      }
+      if (_serverToClientResume != null) {
+        _serverToClientResume.cancel();
+        _serverToClientResume = null;
+      }
+    }
+
+    private void cancelFirstMessageTimeout() {
+      if (_firstMessageTimeout != null) {
+        _firstMessageTimeout.cancel();
+        _firstMessageTimeout = null;
+      }
+    }
+
+    private void cancelLookupTimeout() {
+      if (_lookupTimeout != null) {
+        _lookupTimeout.cancel();
+        _lookupTimeout = null;
+      }
+    }
+
+    private void startConnectRound() {
+      if (_state != State.CONNECTING) {
+        return;
+      }
+      _connectionInfos = _backendHealth.order(_connectionInfos);
+      _nextConnectionInfo = 0;
+      _failedConnectAttempts = 0;
+      startNextConnectAttempt();
+    }
+
+    /**
+     * Starts the connect to the next endpoint of the round and schedules the
+     * one after it, which starts early if this attempt fails first.
+     */
+    private void startNextConnectAttempt() {
+      cancelNextConnectAttempt();
+      if (_state != State.CONNECTING || _nextConnectionInfo >= _connectionInfos.size()) {
+        return;
+      }
+      ConnectionInfo connectionInfo = _connectionInfos.get(_nextConnectionInfo++);
+      if (_nextConnectionInfo < _connectionInfos.size()) {
+        _nextConnectAttempt = _reactor.timeout(() -> startNextConnectAttempt(), _connectAttemptDelay,
+            TimeUnit.MILLISECONDS);
+      }
+      ConnectAttempt attempt = new ConnectAttempt(connectionInfo);
+      _connectAttempts.add(attempt);
+      if (!BackendConnector.isDirect(connectionInfo.getProxy())) {
+        connectFailed(attempt, new IOException("Proxies are not supported by the nio relay"));
+        return;
+      }
+      attempt.start();
+    }
+
+    private void connectFailed(ConnectAttempt attempt, IOException e) {
+      if (_state != State.CONNECTING) {
+        return;
+      }
+      LOGGER.error("Could not connect to {}", attempt._connectionInfo);
+      LOGGER.error("Connection execption", e);
+      _backendHealth.recordFailure(attempt._connectionInfo);
+      attempt.cancel();
+      _connectAttempts.remove(attempt);
+      if (++_failedConnectAttempts < _connectionInfos.size()) {
+        startNextConnectAttempt();
+        return;
+      }
+      cancelNextConnectAttempt();
+      if (++_attempt < _maxConnectionAttempts) {
+        long backoff = BackendConnector.getBackoff(_attempt - 1, _initialWaitTimeBetweenAttempts,
+            _waitTimeBetweenAttempts);
+        _reactor.timeout(() -> startConnectRound(), backoff, TimeUnit.MILLISECONDS);
+      } else {
+        LOGGER.error("None of the connectionInfos {} successfully connected", _connectionInfos);
+        close();
+      }
+    }
+
+    private void cancelNextConnectAttempt() {
+      if (_nextConnectAttempt != null) {
+        _nextConnectAttempt.cancel();
+        _nextConnectAttempt = null;
+      }
+    }
+
+    private void cancelConnectAttempts() {
+      cancelNextConnectAttempt();
+      for (ConnectAttempt attempt : _connectAttempts) {
+        attempt.cancel();
+      }
+      _connectAttempts.clear();
+    }
+
+    private void connected(ConnectAttempt winner) {
+      _backendHealth.recordSuccess(winner._connectionInfo);
+      winner.cancelTimeout();
+      _connectAttempts.remove(winner);
+      cancelConnectAttempts();
+      _connectionInfo = winner._connectionInfo;
+      _server = winner._channel;
+      _serverKey = winner._key;
+      _serverKey.attach(_serverHandler);
+      _state = State.RELAY;
+      _handshaking = false;
+      _admission.handshakeDone();
+      _id = UUID.randomUUID()
+                .toString();
+      SocketInfo serverConnection = SocketInfo.create(_server.socket());
+      String user = RdpConnectionRelay.getUser(_cookie);
+      _shaper = _bandwidthShaper.open(user);
+      _counters = new SessionCounters();
+      _sessions.add(ConnectionProxyInstance.builder()
+                                           .client(_clientInfo)
+                                           .server(serverConnection)
+                                           .id(_id)
+                                           .user(user)
+                                           .cookie(_cookie)
+                                           .alive(new AtomicBoolean(true))
+                                           .shaper(_shaper)
+                                           .counters(_counters)
+                                           .build());
+      _sessionMap.put(_id, this);
+      _idleReaper = new IdleReaper(_timer, _idleTimeout, _id, _counters, () -> _reactor.execute(() -> close()));
+      _idleReaper.start();
+      LOGGER.info("Connection info {} for cookie {} for remote socket", _connectionInfo, _cookie, _clientInfo);
+
+      // the first message is still buffered, forward it as the first write
+      _serverKey.interestOps(SelectionKey.OP_READ);
+      _clientKey.interestOps(SelectionKey.OP_READ);
+      _clientToServerPendingSince = System.nanoTime();
+      try {
+        drain(_clientToServer, _server, _clientKey, _serverKey, true);
+      } catch (IOException e) {
+        LOGGER.error("Could not write first message", e);
+        close();
+      }
+    }
+
+    /**
+     * Reads what is available from the source and writes as much as possible to
+     * the destination. Whatever could not be written stays in the buffer and
+     * reading from the source is paused until the destination drains it.
+     */
+    private void pump(SocketChannel source, SocketChannel destination, ByteBuffer buffer, SelectionKey sourceKey,
+        SelectionKey destinationKey, boolean clientToServer) throws IOException {
+      int read = source.read(buffer);
+      if (read == -1) {
+        close();
+        return;
+      }
+      if (read == 0) {
+        return;
+      }
+      if (clientToServer) {
+        _counters.getClientToServer()
+                 .add(read);
+        _connectionMeterClientToServer.mark(read);
+        _clientToServerPendingSince = System.nanoTime();
+      } else {
+        _counters.getServerToClient()
+                 .add(read);
+        _connectionMeterServerToClient.mark(read);
+        _serverToClientPendingSince = System.nanoTime();
+      }
+      long delay = _shaper.acquire(clientToServer, read);
+      drain(buffer, destination, sourceKey, destinationKey, clientToServer);
+      if (delay > 0 && _state == State.RELAY) {
+        throttle(sourceKey, clientToServer, delay);
+      }
+    }
+
+    /**
+     * Stops reading the direction until the rate limit allows more, TCP pushes
+     * back on the sender meanwhile.
+     */
+    private void throttle(SelectionKey sourceKey, boolean clientToServer, long delay) {
+      sourceKey.interestOps(sourceKey.interestOps() & ~SelectionKey.OP_READ);
+      ScheduledTask resume = _reactor.schedule(() -> resume(sourceKey, clientToServer), delay,
+          TimeUnit.NANOSECONDS);
+      if (clientToServer) {
+        _clientToServerResume = resume;
+      } else {
+        _serverToClientResume = resume;
+      }
+    }
+
+    private void resume(SelectionKey sourceKey, boolean clientToServer) {
+      ByteBuffer buffer;
+      if (clientToServer) {
+        _clientToServerResume = null;
+        buffer = _clientToServer;
+      } else {
+        _serverToClientResume = null;
+        buffer = _serverToClient;
+      }
+      // with data still pending drain turns reading back on once it is written
+      if (_state == State.RELAY && sourceKey.isValid() && buffer.position() == 0) {
+        sourceKey.interestOps(sourceKey.interestOps() | SelectionKey.OP_READ);
+      }
+    }
+
+    private boolean isThrottled(boolean clientToServer) {
+      return (clientToServer ? _clientToServerResume : _serverToClientResume) != null;
+    }
+
+    private void drain(ByteBuffer buffer, SocketChannel destination, SelectionKey sourceKey,
+        SelectionKey destinationKey, boolean clientToServer) throws IOException {
+      buffer.flip();
+      destination.write(buffer);
+      buffer.compact();
+      if (buffer.position() == 0) {
+        destinationKey.interestOps(destinationKey.interestOps() & ~SelectionKey.OP_WRITE);
+        if (!isThrottled(clientToServer)) {
+          sourceKey.interestOps(sourceKey.interestOps() | SelectionKey.OP_READ);
+        }
+        if (clientToServer) {
+          _relayLatencyClientToServer.record(System.nanoTime() - _clientToServerPendingSince);
+        } else {
+          _relayLatencyServerToClient.record(System.nanoTime() - _serverToClientPendingSince);
+        }
+      } else {
+        sourceKey.interestOps(sourceKey.interestOps() & ~SelectionKey.OP_READ);
+        destinationKey.interestOps(destinationKey.interestOps() | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void close() {
+      close(System.nanoTime());
+    }
+
+    void close(long triggeredAt) {
+      if (_state == State.CLOSED) {
+        return;
+      }
+      _state = State.CLOSED;
+      cancelFirstMessageTimeout();
+      cancelLookupTimeout();
+      if (_idleReaper != null) {
+        _idleReaper.cancel();
+      }
+      cancelConnectAttempts();
+      cancelResume();
+      Utils.closeQuietly(_client);
+      Utils.closeQuietly(_server);
+      _bufferPool.release(_clientToServer);
+      _bufferPool.release(_serverToClient);
+      _clientToServer = null;
+      _serverToClient = null;
+      if (_id != null) {
+        _sessions.remove(_id);
+        _sessionMap.remove(_id);
+        _connectionTeardownTimer.update(System.nanoTime() - triggeredAt, TimeUnit.NANOSECONDS);
+      }
+      Closeable storeSession = _storeSession;
+      if (storeSession != null) {
+        _setupService.submit(() -> Utils.closeQuietly(storeSession));
+      }
+      _admission.sessionClosed(_handshaking);
+      if (_shaper != null) {
+        _shaper.close();
+      }
+      _connectionCounter.dec();
+      LOGGER.debug("Socket {} closed", _clientInfo);
+    }
+
+    /**
+     * One non-blocking connect of a round, the winner's channel and key become
+     * the session's server side.
+     */
+    private class ConnectAttempt implements NioReactor.Handler {
+
+      private final ConnectionInfo _connectionInfo;
+      private SocketChannel _channel;
+      private SelectionKey _key;
+      private ScheduledTask _timeout;
+
+      ConnectAttempt(ConnectionInfo connectionInfo) {
+        _connectionInfo = connectionInfo;
+      }
+
+      void start() {
+        try {
+          _channel = SocketChannel.open();
+          _channel.configureBlocking(false);
+          Socket socket = _channel.socket();
+          socket.setTcpNoDelay(true);
+          socket.setKeepAlive(true);
+          InetSocketAddress endpoint = new InetSocketAddress(_connectionInfo.getAddress(), _connectionInfo.getPort());
+          if (_channel.connect(endpoint)) {
+            _key = _channel.register(_reactor.getSelector(), 0, this);
+            connected(this);
+          } else {
+            _key = _channel.register(_reactor.getSelector(), SelectionKey.OP_CONNECT, this);
+            _timeout = _reactor.timeout(() -> connectFailed(this, new IOException("Connect timed out")),
+                _remoteRdpTcpTimeout, TimeUnit.MILLISECONDS);
+          }
+        } catch (IOException e) {
+          connectFailed(this, e);
+        }
+      }
+
+      @Override
+      public void handle(SelectionKey key) throws IOException {
+        if (!key.isConnectable()) {
+          return;
+        }
+        try {
+          if (_channel.finishConnect()) {
+            connected(this);
+          }
+        } catch (IOException e) {
+          connectFailed(this, e);
+        }
+      }
+
+      @Override
+      public void close() {
+        Session.this.close();
+      }
+
+      void cancelTimeout() {
+        if (_timeout != null) {
+          _timeout.cancel();
+          _timeout = null;
+        }
+      }
+
+      void cancel() {
+        cancelTimeout();
+        Utils.closeQuietly(_channel);
+      }
+
+    }
+
+  }
+
+}
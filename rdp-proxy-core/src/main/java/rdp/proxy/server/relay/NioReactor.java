@@ -0,0 +1,214 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single threaded selector loop. All channels registered with a reactor, and
+ * all state attached to them, are only touched from the reactor thread. Other
+ * threads hand work to the reactor with {@link #execute(Runnable)}.
+ */
+public class NioReactor implements Runnable, Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(NioReactor.class);
+
+  private final Selector _selector;
+  private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<>();
+  private final PriorityQueue<ScheduledTask> _scheduled = new PriorityQueue<>();
+  private final AtomicBoolean _running = new AtomicBoolean(true);
+  private final HashedWheelTimer _timer;
+  private volatile Thread _thread;
+  private long _sequence;
+
+  public NioReactor(HashedWheelTimer timer) throws IOException {
+    _selector = Selector.open();
+    _timer = timer;
+  }
+
+  public Selector getSelector() {
+    return _selector;
+  }
+
+  public boolean inReactor() {
+    return Thread.currentThread() == _thread;
+  }
+
+  public void execute(Runnable task) {
+    _tasks.add(task);
+    _selector.wakeup();
+  }
+
+  /**
+   * Schedules a task to run on the reactor thread after the given delay, must
+   * be called from the reactor thread.
+   */
+  public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+    ScheduledTask scheduledTask = new ScheduledTask(System.nanoTime() + unit.toNanos(delay), _sequence++, task);
+    _scheduled.add(scheduledTask);
+    return scheduledTask;
+  }
+
+  /**
+   * Schedules a task on the shared {@link HashedWheelTimer}, for the coarse
+   * timeouts that are mostly cancelled before they fire. It still runs on the
+   * reactor thread, up to one wheel tick late. Must be called from the
+   * reactor thread.
+   */
+  public ScheduledTask timeout(Runnable task, long delay, TimeUnit unit) {
+    ScheduledTask scheduledTask = new ScheduledTask(0, 0, task);
+    scheduledTask._timeout = _timer.newTimeout(() -> execute(() -> scheduledTask.run()), delay, unit);
+    return scheduledTask;
+  }
+
+  @Override
+  public void run() {
+    _thread = Thread.currentThread();
+    while (_running.get()) {
+      try {
+        _selector.select(getSelectTimeout());
+        processSelectedKeys();
+        runTasks();
+        runScheduledTasks();
+      } catch (Throwable t) {
+        LOGGER.error("Unknown error in reactor loop", t);
+      }
+    }
+    // work handed over just before close, like closing sessions, still runs
+    runTasks();
+    for (SelectionKey key : _selector.keys()) {
+      Handler handler = (Handler) key.attachment();
+      if (handler != null) {
+        try {
+          handler.close();
+        } catch (Throwable t) {
+          LOGGER.error("Unknown error closing handler", t);
+        }
+      }
+    }
+    try {
+      _selector.close();
+    } catch (IOException e) {
+      LOGGER.error("Could not close selector", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    _running.set(false);
+    _selector.wakeup();
+  }
+
+  private void processSelectedKeys() {
+    Iterator<SelectionKey> iterator = _selector.selectedKeys()
+                                               .iterator();
+    while (iterator.hasNext()) {
+      SelectionKey key = iterator.next();
+      iterator.remove();
+      Handler handler = (Handler) key.attachment();
+      if (!key.isValid()) {
+        continue;
+      }
+      try {
+        handler.handle(key);
+      } catch (Throwable t) {
+        LOGGER.debug("Error handling key {}", key, t);
+        handler.close();
+      }
+    }
+  }
+
+  private void runTasks() {
+    Runnable task;
+    while ((task = _tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (Throwable t) {
+        LOGGER.error("Unknown error running reactor task", t);
+      }
+    }
+  }
+
+  private void runScheduledTasks() {
+    long now = System.nanoTime();
+    ScheduledTask scheduledTask;
+    while ((scheduledTask = _scheduled.peek()) != null && scheduledTask._deadline - now <= 0) {
+      _scheduled.poll();
+      scheduledTask.run();
+    }
+  }
+
+  private long getSelectTimeout() {
+    if (!_tasks.isEmpty()) {
+      return 1;
+    }
+    ScheduledTask scheduledTask = _scheduled.peek();
+    if (scheduledTask == null) {
+      return 0;
+    }
+    long millis = TimeUnit.NANOSECONDS.toMillis(scheduledTask._deadline - System.nanoTime());
+    return Math.max(1, millis);
+  }
+
+  public static interface Handler {
+
+    void handle(SelectionKey key) throws IOException;
+
+    void close();
+
+  }
+
+  public static class ScheduledTask implements Comparable<ScheduledTask> {
+
+    private final long _deadline;
+    private final long _sequence;
+    private final Runnable _task;
+    private boolean _cancelled;
+    private HashedWheelTimer.Timeout _timeout;
+
+    private ScheduledTask(long deadline, long sequence, Runnable task) {
+      _deadline = deadline;
+      _sequence = sequence;
+      _task = task;
+    }
+
+    public void cancel() {
+      _cancelled = true;
+      if (_timeout != null) {
+        _timeout.cancel();
+      }
+    }
+
+    private void run() {
+      if (_cancelled) {
+        return;
+      }
+      try {
+        _task.run();
+      } catch (Throwable t) {
+        LOGGER.error("Unknown error running scheduled reactor task", t);
+      }
+    }
+
+    @Override
+    public int compareTo(ScheduledTask o) {
+      int compare = Long.compare(_deadline - o._deadline, 0);
+      if (compare == 0) {
+        return Long.compare(_sequence, o._sequence);
+      }
+      return compare;
+    }
+
+  }
+
+}
@@ -0,0 +1,288 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the client to server stream into complete PDUs. Data is read in large
+ * chunks into a reusable buffer and every complete TPKT, TLS record and
+ * fast-path PDU found in the buffer is handed back as one contiguous batch, so
+ * the caller can forward it straight from {@link #getBuffer()}. The buffer is
+ * leased from a {@link BufferPool} and returned on {@link #close()}.
+ */
+public class PduFramer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PduFramer.class);
+
+  public static final int NEED_MORE = -1;
+  public static final int UNKNOWN = -2;
+
+  private static final int TPKT_HEADER_LENGTH = 4;
+  private static final int TLS_HEADER_LENGTH = 5;
+
+  private final InputStream _input;
+  private final BufferPool _bufferPool;
+  private final int _bufferSize;
+  private final int _standardCapacity;
+  private ByteBuffer _byteBuffer;
+  private byte[] _buffer;
+  private int _start;
+  private int _end;
+  private int _batchOffset;
+  private int _batchLength;
+  private int _batchCount;
+
+  public PduFramer(InputStream input, BufferPool bufferPool, int bufferSize) throws IOException {
+    _input = input;
+    _bufferPool = bufferPool;
+    _bufferSize = bufferSize;
+    setByteBuffer(bufferPool.acquire(bufferSize));
+    _standardCapacity = _buffer.length;
+  }
+
+  public byte[] getBuffer() {
+    return _buffer;
+  }
+
+  public int getOffset() {
+    return _batchOffset;
+  }
+
+  public int getLength() {
+    return _batchLength;
+  }
+
+  public int getPduCount() {
+    return _batchCount;
+  }
+
+  /**
+   * Frames the X.224 connection request, which has to be a TPKT. Only that
+   * single PDU is returned even if the client already sent more.
+   *
+   * @return false if the stream ended or the client is not speaking RDP
+   */
+  public boolean nextFirstMessage() throws IOException {
+    while (true) {
+      if (_end > _start) {
+        if (_buffer[_start] != 3) {
+          LOGGER.error("Unknown client, hang up");
+          return false;
+        }
+        int length = getPduLength(_buffer, _start, _end - _start);
+        if (length == UNKNOWN) {
+          logUnknown();
+          return false;
+        }
+        if (length != NEED_MORE && length <= _end - _start) {
+          setBatch(_start, length, 1);
+          return true;
+        }
+      }
+      if (!fill()) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Frames as many complete PDUs as are buffered, reading more from the input
+   * only when not even one complete PDU is available.
+   *
+   * @return false if the stream ended or an unknown PDU was found
+   */
+  public boolean next() throws IOException {
+    while (true) {
+      int position = _start;
+      int count = 0;
+      while (position < _end) {
+        int length = getPduLength(_buffer, position, _end - position);
+        if (length == UNKNOWN) {
+          if (count == 0) {
+            logUnknown();
+            return false;
+          }
+          break;
+        }
+        if (length == NEED_MORE || length > _end - position) {
+          break;
+        }
+        position += length;
+        count++;
+      }
+      if (count > 0) {
+        setBatch(_start, position - _start, count);
+        return true;
+      }
+      if (!fill()) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Returns a stream that first serves whatever is buffered past the last batch
+   * and then reads straight from the underlying input, for callers that stop
+   * framing part way through a session.
+   */
+  public InputStream getRemainingInputStream() {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        if (_start < _end) {
+          return _buffer[_start++] & 0xFF;
+        }
+        return _input.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (_start < _end) {
+          int count = Math.min(len, _end - _start);
+          System.arraycopy(_buffer, _start, b, off, count);
+          _start += count;
+          return count;
+        }
+        return _input.read(b, off, len);
+      }
+
+      @Override
+      public int available() throws IOException {
+        return (_end - _start) + _input.available();
+      }
+
+      @Override
+      public void close() throws IOException {
+        _input.close();
+      }
+    };
+  }
+
+  /**
+   * Returns the total length of the PDU starting at offset (header included),
+   * {@link #NEED_MORE} if the header is not complete yet or {@link #UNKNOWN}
+   * if the first byte is not a known PDU type or the length is invalid. The
+   * returned length may be larger than the available bytes.
+   */
+  public static int getPduLength(byte[] buffer, int offset, int available) {
+    if (available < 1) {
+      return NEED_MORE;
+    }
+    int b1 = buffer[offset] & 0xFF;
+    switch (b1) {
+    case 3: {
+      // TPKT, version 3, reserved, 16 bit length including header
+      if (available < TPKT_HEADER_LENGTH) {
+        return NEED_MORE;
+      }
+      int length = getUnsignedShort(buffer, offset + 2);
+      return length < TPKT_HEADER_LENGTH ? UNKNOWN : length;
+    }
+    case 20:
+    case 21:
+    case 22:
+    case 23: {
+      // TLS record, content type, 16 bit version, 16 bit payload length
+      if (available < TLS_HEADER_LENGTH) {
+        return NEED_MORE;
+      }
+      return getUnsignedShort(buffer, offset + 3) + TLS_HEADER_LENGTH;
+    }
+    case 96:
+    case 132:
+    case 176:
+    case 184: {
+      // fast-path, length is one byte or two if the high bit is set
+      if (available < 2) {
+        return NEED_MORE;
+      }
+      int length1 = buffer[offset + 1] & 0xFF;
+      if ((length1 & 0x80) == 0) {
+        return length1 < 2 ? UNKNOWN : length1;
+      }
+      if (available < 3) {
+        return NEED_MORE;
+      }
+      int length = ((length1 & 0x7F) << 8) + (buffer[offset + 2] & 0xFF);
+      return length < 3 ? UNKNOWN : length;
+    }
+    default:
+      return UNKNOWN;
+    }
+  }
+
+  private void setBatch(int offset, int length, int count) {
+    _batchOffset = offset;
+    _batchLength = length;
+    _batchCount = count;
+    _start = offset + length;
+  }
+
+  @Override
+  public void close() {
+    if (_byteBuffer != null) {
+      _bufferPool.release(_byteBuffer);
+      _byteBuffer = null;
+      _buffer = null;
+    }
+  }
+
+  private void setByteBuffer(ByteBuffer byteBuffer) {
+    _byteBuffer = byteBuffer;
+    _buffer = byteBuffer.array();
+  }
+
+  /**
+   * Reads the next chunk from the input. Room is made by moving the partial
+   * PDU to the front of the buffer. The buffer is only swapped for a larger
+   * one when a single PDU does not fit, and swapped back once it is empty.
+   */
+  private boolean fill() throws IOException {
+    if (_start == _end) {
+      _start = 0;
+      _end = 0;
+      if (_buffer.length > _standardCapacity) {
+        ByteBuffer smaller = _bufferPool.acquire(_bufferSize);
+        _bufferPool.release(_byteBuffer);
+        setByteBuffer(smaller);
+      }
+    } else {
+      int pending = _end - _start;
+      int required = Math.max(getPduLength(_buffer, _start, pending), pending + 1);
+      if (required > _buffer.length) {
+        ByteBuffer larger = _bufferPool.acquire(required);
+        System.arraycopy(_buffer, _start, larger.array(), 0, pending);
+        _bufferPool.release(_byteBuffer);
+        setByteBuffer(larger);
+        _start = 0;
+        _end = pending;
+      } else if (_buffer.length - _start < required || _end == _buffer.length) {
+        System.arraycopy(_buffer, _start, _buffer, 0, pending);
+        _start = 0;
+        _end = pending;
+      }
+    }
+    int read = _input.read(_buffer, _end, _buffer.length - _end);
+    if (read == -1) {
+      return false;
+    }
+    _end += read;
+    return true;
+  }
+
+  private void logUnknown() {
+    byte[] buf = Arrays.copyOfRange(_buffer, _start, _end);
+    LOGGER.error("Unknown message, available {} msg {}", buf.length - 1, RdpConnectionRelay.bytesToHex(buf));
+  }
+
+  private static int getUnsignedShort(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xFF) << 8) + (buffer[offset + 1] & 0xFF);
+  }
+
+}
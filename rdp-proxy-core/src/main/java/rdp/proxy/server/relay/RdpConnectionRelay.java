@@ -9,132 +9,239 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
-import com.codahale.metrics.Timer.Context;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import rdp.proxy.server.RdpProxyConfig;
+import rdp.proxy.server.metrics.LatencyRecorder;
+import rdp.proxy.server.util.ReusePort;
 import rdp.proxy.server.util.Utils;
+import rdp.proxy.server.util.VirtualThreads;
+import rdp.proxy.spi.BaseRdpStore;
 import rdp.proxy.spi.ConnectionInfo;
 import rdp.proxy.spi.RdpStore;
 
-public class RdpConnectionRelay implements Closeable {
+public class RdpConnectionRelay implements RdpRelay {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(RdpConnectionRelay.class);
+  private static final int REJECT_THREADS = 2;
+  private static final long THROTTLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int REJECT_QUEUE_SIZE = 1000;
+  private static final int REJECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(5);
 
   public static final String RDP_CONNECTIONS_COUNTER = "rdp.connections.counter";
   public static final String RDP_CONNECTION_TIMER_SERVER_TO_CLIENT = "rdp.connection.timer.server.to.client";
   public static final String RDP_CONNECTION_TIMER_CLIENT_TO_SERVER = "rdp.connection.timer.client.to.server";
-  public static final String BANDWIDTH_METER_CLIENT_TO_SERVER = ".bandwidth.meter.client.to.server";
-  public static final String BANDWIDTH_METER_SERVER_TO_CLIENT = ".bandwidth.meter.server.to.client";
   public static final String RDP_CONNECTION_METER_SERVER_TO_CLIENT = "rdp.connection.meter.server.to.client";
   public static final String RDP_CONNECTION_METER_CLIENT_TO_SERVER = "rdp.connection.meter.client.to.server";
+  public static final String RDP_CONNECTION_TEARDOWN_TIMER = "rdp.connection.teardown.timer";
+  public static final String RDP_ACCEPT_METER = "rdp.accept.meter";
+  public static final String RDP_ACCEPT_HANDOFF_TIMER = "rdp.accept.handoff.timer";
+  public static final String RDP_COALESCE_READS_PER_WRITE_HISTOGRAM = "rdp.coalesce.reads.per.write.histogram";
+  public static final String RDP_COALESCE_DELAY_TIMER = "rdp.coalesce.delay.timer";
+  public static final String RDP_TIMER_PENDING_GAUGE = "rdp.timer.pending.gauge";
+
+  private static final long COALESCE_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
 
   private final static char[] HES_ARRAY = "0123456789ABCDEF".toCharArray();
 
-  private final AtomicReference<Future<Void>> _futureListener = new AtomicReference<>();
-  private final AtomicReference<ServerSocket> _ss = new AtomicReference<>();
-  private final AtomicBoolean _running = new AtomicBoolean(true);
+  private final List<Future<Void>> _futureListeners = new CopyOnWriteArrayList<>();
+  private final List<ServerSocket> _serverSockets = new CopyOnWriteArrayList<>();
   private final AtomicBoolean _listening = new AtomicBoolean();
   private final ExecutorService _service;
   private final RdpStore _store;
   private final int _bufferSize;
-  private final int _remoteRdpTcpTimeout;
   private final int _soTimeout;
   private final Counter _connectionCounter;
-  private final Timer _connectionTimerClientToServer;
-  private final Timer _connectionTimerServerToClient;
-  private final Map<String, ConnectionProxyInstance> _connectionMap = new ConcurrentHashMap<>();
+  private final LatencyRecorder _relayLatencyClientToServer;
+  private final LatencyRecorder _relayLatencyServerToClient;
+  private final SessionRegistry _sessions = new SessionRegistry();
   private final MetricRegistry _metrics;
   private final Meter _connectionMeterServerToClient;
   private final Meter _connectionMeterClientToServer;
+  private final Timer _connectionTeardownTimer;
+  private final Meter _acceptMeter;
+  private final Timer _acceptHandoffTimer;
+  private final AdmissionController _admission;
+  private final BandwidthShaper _bandwidthShaper;
+  private final ExecutorService _rejectService;
   private final RdpProxyConfig _config;
-  private final long _relayCheckTime = TimeUnit.SECONDS.toMillis(1);
-  private final long _waitTimeBetweenAttempts;
-  private final int _maxConnectionAttempts;
+  private final HashedWheelTimer _timer;
+  private final long _handshakeTimeout;
+  private final long _idleTimeout;
+  private final BackendConnector _backendConnector;
+  private final BackendHealthRegistry _backendHealth;
+  private final boolean _passThroughAfterHandshake;
+  private final long _storeTimeout;
+  private final BufferPool _bufferPool;
+  private final boolean _coalesceServerToClient;
+  private final long _coalesceWindowNanos;
+  private final int _coalesceMaxBytes;
+  private final int _coalesceMinReadBytes;
+  private final Histogram _coalesceReadsPerWrite;
+  private final Timer _coalesceDelayTimer;
 
   public RdpConnectionRelay(RdpProxyConfig config, RdpStore store, MetricRegistry metrics) throws IOException {
     _metrics = metrics;
     _bufferSize = config.getRdpRelayBufferSize();
-    _remoteRdpTcpTimeout = config.getRdpRemoteTcpTimeout();
     _soTimeout = config.getRdpSoTimeout();
     _store = store;
-    _waitTimeBetweenAttempts = config.getWaitTimeBetweenAttempts();
-    _maxConnectionAttempts = config.getMaxConnectionAttempts();
+    _passThroughAfterHandshake = config.isRdpPassThroughAfterHandshake();
+    _storeTimeout = config.getRdpStoreTimeout();
     _config = config;
-
-    _service = Executors.newCachedThreadPool();
+    _bufferPool = new BufferPool(false, config.getRdpBufferPoolMaxBytes(), metrics);
+    _coalesceServerToClient = config.isRdpCoalesceServerToClient();
+    _coalesceWindowNanos = TimeUnit.MICROSECONDS.toNanos(config.getRdpCoalesceWindowMicros());
+    _coalesceMaxBytes = config.getRdpCoalesceMaxBytes();
+    _coalesceMinReadBytes = config.getRdpCoalesceMinReadBytes();
+
+    if (config.isRdpVirtualThreads()) {
+      _service = VirtualThreads.newExecutorService("rdp-relay-");
+    } else {
+      _service = Executors.newCachedThreadPool();
+    }
+    _handshakeTimeout = config.getRdpHandshakeTimeout();
+    _idleTimeout = config.getRdpIdleTimeout();
+    _timer = new HashedWheelTimer("rdp-timer-%d", config.getRdpTimerTickDuration(), TimeUnit.MILLISECONDS,
+        config.getRdpTimerWheelSize());
+    metrics.gauge(RDP_TIMER_PENDING_GAUGE, () -> () -> _timer.getPendingTimeouts());
+    _backendHealth = new BackendHealthRegistry(config, metrics);
+    _backendConnector = new BackendConnector(_service, _timer, config.getRdpRemoteTcpTimeout(), _soTimeout,
+        config.getRdpConnectAttemptDelay(), config.getInitialWaitTimeBetweenAttempts(),
+        config.getWaitTimeBetweenAttempts(), config.getMaxConnectionAttempts(), _backendHealth);
     _connectionCounter = metrics.counter(RDP_CONNECTIONS_COUNTER);
-    _connectionTimerClientToServer = metrics.timer(RDP_CONNECTION_TIMER_CLIENT_TO_SERVER);
-    _connectionTimerServerToClient = metrics.timer(RDP_CONNECTION_TIMER_SERVER_TO_CLIENT);
+    _relayLatencyClientToServer = new LatencyRecorder(metrics, RDP_CONNECTION_TIMER_CLIENT_TO_SERVER,
+        config.getRdpRelayLatencySampleRate());
+    _relayLatencyServerToClient = new LatencyRecorder(metrics, RDP_CONNECTION_TIMER_SERVER_TO_CLIENT,
+        config.getRdpRelayLatencySampleRate());
     _connectionMeterClientToServer = metrics.meter(RDP_CONNECTION_METER_CLIENT_TO_SERVER);
     _connectionMeterServerToClient = metrics.meter(RDP_CONNECTION_METER_SERVER_TO_CLIENT);
+    _connectionTeardownTimer = metrics.timer(RDP_CONNECTION_TEARDOWN_TIMER);
+    _acceptMeter = metrics.meter(RDP_ACCEPT_METER);
+    _acceptHandoffTimer = metrics.timer(RDP_ACCEPT_HANDOFF_TIMER);
+    _admission = new AdmissionController(config, metrics);
+    _bandwidthShaper = new BandwidthShaper(config, metrics);
+    ThreadPoolExecutor rejectService = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(REJECT_QUEUE_SIZE), new ThreadFactoryBuilder().setNameFormat("rdp-reject-%d")
+                                                                               .setDaemon(true)
+                                                                               .build());
+    rejectService.allowCoreThreadTimeOut(true);
+    _rejectService = rejectService;
+    _coalesceReadsPerWrite = metrics.histogram(RDP_COALESCE_READS_PER_WRITE_HISTOGRAM);
+    _coalesceDelayTimer = metrics.timer(RDP_COALESCE_DELAY_TIMER);
   }
 
+  @Override
   public boolean isListening() {
     return _listening.get();
   }
 
   @Override
   public void close() throws IOException {
-    _running.set(false);
     _listening.set(false);
-    Utils.closeQuietly(_ss.get());
+    for (ServerSocket serverSocket : _serverSockets) {
+      Utils.closeQuietly(serverSocket);
+    }
+    for (ConnectionProxyInstance connectionProxyInstance : _sessions.asMap()
+                                                                     .values()) {
+      connectionProxyInstance.getTeardown()
+                             .trigger();
+    }
     _service.shutdownNow();
+    _rejectService.shutdownNow();
+    Utils.closeQuietly(_timer);
+    Utils.closeQuietly(_backendHealth);
   }
 
+  @Override
   public Map<String, ConnectionProxyInstance> getConnectionMap() {
-    return ImmutableMap.copyOf(_connectionMap);
+    return _sessions.asMap();
+  }
+
+  @Override
+  public SessionRegistry getSessionRegistry() {
+    return _sessions;
   }
 
+  @Override
   public void kill(String id) {
-    ConnectionProxyInstance connectionProxyInstance = _connectionMap.get(id);
+    ConnectionProxyInstance connectionProxyInstance = _sessions.get(id);
     if (connectionProxyInstance != null) {
       LOGGER.info("Killing connection {}", id, connectionProxyInstance);
-      connectionProxyInstance.getAlive()
-                             .set(false);
+      connectionProxyInstance.getTeardown()
+                             .trigger();
     } else {
       LOGGER.info("Connection not found {}", id);
     }
   }
 
-  public void startListening() {
-    Future<Void> future = _futureListener.get();
-    if (future == null || future.isDone()) {
-      _listening.set(true);
-      _futureListener.set(_service.submit(getCallable()));
+  @Override
+  public BackendHealthRegistry getBackendHealthRegistry() {
+    return _backendHealth;
+  }
+
+  @Override
+  public BandwidthShaper getBandwidthShaper() {
+    return _bandwidthShaper;
+  }
+
+  @Override
+  public synchronized void startListening() {
+    for (Future<Void> future : _futureListeners) {
+      if (!future.isDone()) {
+        return;
+      }
+    }
+    _futureListeners.clear();
+    _serverSockets.clear();
+    _listening.set(true);
+    int listeners = ReusePort.getListenerCount(_config.getRdpAcceptors());
+    for (int i = 0; i < listeners; i++) {
+      _futureListeners.add(_service.submit(getCallable(listeners > 1)));
     }
   }
 
-  public void stopListening() {
-    Future<Void> future = _futureListener.get();
-    if (future != null) {
-      _listening.set(false);
-      Utils.closeQuietly(_ss.get());
+  @Override
+  public synchronized void stopListening() {
+    _listening.set(false);
+    for (ServerSocket serverSocket : _serverSockets) {
+      Utils.closeQuietly(serverSocket);
+    }
+    for (Future<Void> future : _futureListeners) {
       future.cancel(true);
     }
   }
 
-  private Callable<Void> getCallable() {
+  /**
+   * One accept loop per listener, with SO_REUSEPORT every loop has its own
+   * socket bound to the same port.
+   */
+  private Callable<Void> getCallable(boolean reusePort) {
     return new Callable<Void>() {
       @Override
       public Void call() throws Exception {
@@ -142,8 +249,13 @@ public class RdpConnectionRelay implements Closeable {
         int port = _config.getRdpPort();
         int backlog = _config.getRdpBacklog();
         InetAddress bindAddr = InetAddress.getByName(bindAddress);
-        ServerSocket serverSocket = new ServerSocket(port, backlog, bindAddr);
-        _ss.set(serverSocket);
+        ServerSocket serverSocket = ReusePort.openServerSocket(new InetSocketAddress(bindAddr, port), backlog,
+            reusePort);
+        _serverSockets.add(serverSocket);
+        if (!_listening.get()) {
+          Utils.closeQuietly(serverSocket);
+          return null;
+        }
         while (_listening.get()) {
           Socket socket;
           try {
@@ -152,7 +264,14 @@ public class RdpConnectionRelay implements Closeable {
             LOGGER.error("Unknown error", t1);
             continue;
           }
+          _acceptMeter.mark();
+          if (!_admission.tryAdmit()) {
+            rejectConnection(socket);
+            continue;
+          }
+          long accepted = System.nanoTime();
           _service.submit(() -> {
+            _acceptHandoffTimer.update(System.nanoTime() - accepted, TimeUnit.NANOSECONDS);
             try {
               handleNewConnection(socket);
               LOGGER.debug("Socket {} closed", socket);
@@ -168,265 +287,313 @@ public class RdpConnectionRelay implements Closeable {
 
   private void handleNewConnection(Socket s) throws Exception {
     _connectionCounter.inc();
+    boolean handshaking = true;
     try (Socket socket = s) {
       SocketInfo clientConnection = SocketInfo.create(socket);
       LOGGER.debug("Socket {} new connection", socket);
       socket.setTcpNoDelay(true);
       socket.setSoTimeout(_soTimeout);
       socket.setKeepAlive(true);
-      BytesRef bytesRef = new BytesRef();
       try (InputStream rcInput = socket.getInputStream(); OutputStream rcOutput = socket.getOutputStream()) {
         LOGGER.debug("Socket {} read first message", socket);
-        BytesRef message = readFirstMessage(rcInput, bytesRef);
-        if (message == null) {
-          return;
-        }
-        LOGGER.info("Socket {} find cookie", socket);
-        String cookie = findCookie(message);
-        Set<ConnectionInfo> connectionInfoSet = _store.getConnectionInfoWithCookie(cookie);
-        LOGGER.info("Socket {} connectionInfo {} with cookie {} found", socket, connectionInfoSet, cookie);
-
-        if (connectionInfoSet == null || connectionInfoSet.isEmpty()) {
-          LOGGER.info("Socket {} connection info for cookie {} did not find a remote connection, hang up", socket,
-              cookie);
-          return;
-        }
+        PduFramer framer = new PduFramer(rcInput, _bufferPool, _bufferSize);
+        try {
+          if (!readFirstMessage(socket, framer)) {
+            return;
+          }
+          LOGGER.info("Socket {} find cookie", socket);
+          String cookie = findCookie(framer.getBuffer(), framer.getOffset(), framer.getLength());
+          Set<ConnectionInfo> connectionInfoSet = Utils.await(_store.getConnectionInfoWithCookieAsync(cookie),
+              _storeTimeout);
+          LOGGER.info("Socket {} connectionInfo {} with cookie {} found", socket, connectionInfoSet, cookie);
+
+          if (connectionInfoSet == null || connectionInfoSet.isEmpty()) {
+            LOGGER.info("Socket {} connection info for cookie {} did not find a remote connection, hang up", socket,
+                cookie);
+            return;
+          }
 
-        LOGGER.info("Connection info {} for cookie {} for remote socket", connectionInfoSet, cookie, socket);
-        try (Closeable session = _store.createSession(cookie)) {
-          try (Socket rdpServer = createConnection(connectionInfoSet)) {
-            AtomicBoolean alive = new AtomicBoolean(true);
-            String id = UUID.randomUUID()
-                            .toString();
-            SocketInfo serverConnection = SocketInfo.create(rdpServer);
-            _connectionMap.put(id, ConnectionProxyInstance.builder()
-                                                          .client(clientConnection)
-                                                          .server(serverConnection)
-                                                          .id(id)
-                                                          .alive(alive)
-                                                          .build());
-            Meter bandwidthClientToServer = _metrics.meter(getClientToServerBandwidthName(id));
-            Meter bandwidthServerToClient = _metrics.meter(getServerToClientBandwidthName(id));
-            try (InputStream rsInput = rdpServer.getInputStream();
-                OutputStream rsOutput = rdpServer.getOutputStream()) {
-              rsOutput.write(message.buffer, 0, message.length);
-              rsOutput.flush();
-
-              Future<Void> f1 = startRelayReadMessages(alive, rcInput, rsOutput, _connectionTimerClientToServer,
-                  bandwidthClientToServer, _connectionMeterClientToServer, bytesRef);
-              Future<Void> f2 = startRelay(alive, rsInput, rcOutput, _connectionTimerServerToClient,
-                  bandwidthServerToClient, _connectionMeterServerToClient);
-              while (_running.get()) {
-                if (!alive.get() || shouldCloseConnection(f1, f2, rdpServer, socket)) {
-                  alive.set(false);
-                  f1.cancel(true);
-                  f2.cancel(true);
-                  return;
+          LOGGER.info("Connection info {} for cookie {} for remote socket", connectionInfoSet, cookie, socket);
+          try (Closeable session = Utils.await(_store.createSessionAsync(cookie), _storeTimeout)) {
+            try (Socket rdpServer = _backendConnector.connect(connectionInfoSet)) {
+              AtomicBoolean alive = new AtomicBoolean(true);
+              SessionTeardown teardown = new SessionTeardown(alive, socket, rdpServer);
+              String id = UUID.randomUUID()
+                              .toString();
+              SocketInfo serverConnection = SocketInfo.create(rdpServer);
+              String user = getUser(cookie);
+              SessionShaper shaper = _bandwidthShaper.open(user);
+              SessionCounters counters = new SessionCounters();
+              _sessions.add(ConnectionProxyInstance.builder()
+                                                   .client(clientConnection)
+                                                   .server(serverConnection)
+                                                   .id(id)
+                                                   .user(user)
+                                                   .cookie(cookie)
+                                                   .alive(alive)
+                                                   .teardown(teardown)
+                                                   .shaper(shaper)
+                                                   .counters(counters)
+                                                   .build());
+              IdleReaper idleReaper = new IdleReaper(_timer, _idleTimeout, id, counters, () -> teardown.trigger());
+              idleReaper.start();
+              try (InputStream rsInput = rdpServer.getInputStream();
+                  OutputStream rsOutput = rdpServer.getOutputStream()) {
+                rsOutput.write(framer.getBuffer(), framer.getOffset(), framer.getLength());
+                rsOutput.flush();
+                handshaking = false;
+                _admission.handshakeDone();
+
+                // server to client runs on its own thread, client to server on
+                // this one, whichever ends first closes both sockets
+                Future<Void> serverToClient = startRelay(alive, teardown, rsInput, rcOutput,
+                    _relayLatencyServerToClient, counters.getServerToClient(), _connectionMeterServerToClient, shaper);
+                try {
+                  relayReadMessages(alive, framer, rsOutput, _relayLatencyClientToServer,
+                      counters.getClientToServer(), _connectionMeterClientToServer, shaper);
+                } catch (IOException e) {
+                  LOGGER.debug("Socket {} client to server relay ended", socket, e);
+                } finally {
+                  teardown.trigger();
                 }
-                Thread.sleep(_relayCheckTime);
+                waitForRelay(serverToClient);
+              } finally {
+                teardown.trigger();
+                shaper.close();
+                idleReaper.cancel();
+                _sessions.remove(id);
+                _connectionTeardownTimer.update(System.nanoTime() - teardown.getTriggeredAt(), TimeUnit.NANOSECONDS);
               }
-            } finally {
-              _metrics.remove(getClientToServerBandwidthName(id));
-              _metrics.remove(getServerToClientBandwidthName(id));
-              _connectionMap.remove(id);
             }
           }
+        } finally {
+          Utils.closeQuietly(framer);
         }
       }
     } finally {
+      _admission.sessionClosed(handshaking);
       _connectionCounter.dec();
     }
   }
 
-  public static String getServerToClientBandwidthName(String id) {
-    return id + BANDWIDTH_METER_SERVER_TO_CLIENT;
-  }
-
-  public static String getClientToServerBandwidthName(String id) {
-    return id + BANDWIDTH_METER_CLIENT_TO_SERVER;
+  /**
+   * Reads the client's connection request, the socket is closed when it does
+   * not arrive within the handshake timeout.
+   */
+  private boolean readFirstMessage(Socket socket, PduFramer framer) throws IOException {
+    if (_handshakeTimeout <= 0) {
+      return framer.nextFirstMessage();
+    }
+    HashedWheelTimer.Timeout timeout = _timer.newTimeout(() -> Utils.closeQuietly(socket), _handshakeTimeout,
+        TimeUnit.MILLISECONDS);
+    boolean read;
+    try {
+      read = framer.nextFirstMessage();
+    } catch (IOException e) {
+      if (!timeout.cancel()) {
+        LOGGER.info("Socket {} no connection request within {} ms, hang up", socket, _handshakeTimeout);
+        return false;
+      }
+      throw e;
+    }
+    // the timeout may have closed the socket right after the request was read
+    if (!timeout.cancel() && read) {
+      LOGGER.info("Socket {} no connection request within {} ms, hang up", socket, _handshakeTimeout);
+      return false;
+    }
+    return read;
   }
 
-  private Socket createConnection(Set<ConnectionInfo> connectionInfoSet) throws IOException, InterruptedException {
-    for (int attempt = 0; attempt < _maxConnectionAttempts; attempt++) {
-      for (ConnectionInfo connectionInfo : connectionInfoSet) {
-        Socket rdpServer = new Socket(connectionInfo.getProxy());
-        rdpServer.setTcpNoDelay(true);
-        rdpServer.setSoTimeout(_soTimeout);
-        rdpServer.setKeepAlive(true);
-        SocketAddress _endpoint = new InetSocketAddress(connectionInfo.getAddress(), connectionInfo.getPort());
-        try {
-          rdpServer.connect(_endpoint, _remoteRdpTcpTimeout);
-          return rdpServer;
-        } catch (Exception e) {
-          LOGGER.error("Could not connect to {}", connectionInfo);
-          LOGGER.error("Connection execption", e);
+  /**
+   * Reads the client's connection request and answers with a negotiation
+   * failure, on the small reject pool so a storm does not start threads.
+   */
+  private void rejectConnection(Socket s) {
+    try {
+      _rejectService.execute(() -> {
+        try (Socket socket = s) {
+          socket.setSoTimeout(REJECT_TIMEOUT);
+          PduFramer framer = new PduFramer(socket.getInputStream(), _bufferPool, _bufferSize);
+          try {
+            if (framer.nextFirstMessage()) {
+              OutputStream output = socket.getOutputStream();
+              output.write(AdmissionController.getNegotiationFailure());
+              output.flush();
+            }
+          } finally {
+            Utils.closeQuietly(framer);
+          }
+        } catch (IOException e) {
+          LOGGER.debug("Socket {} reject failed", s, e);
         }
-      }
-      Thread.sleep(_waitTimeBetweenAttempts);
+      });
+    } catch (RejectedExecutionException e) {
+      Utils.closeQuietly(s);
     }
-    throw new IOException("None of the connectionInfos " + connectionInfoSet + " successfully connected");
   }
 
-  private boolean shouldCloseConnection(Future<Void> f1, Future<Void> f2, Socket rdpServerSocket,
-      Socket remoteClientTocket) {
-    if (f1.isDone()) {
-      return true;
-    }
-    if (f2.isDone()) {
-      return true;
-    }
-    if (rdpServerSocket.isClosed() || !rdpServerSocket.isConnected()) {
-      return true;
+  private void relayReadMessages(AtomicBoolean alive, PduFramer framer, OutputStream output,
+      LatencyRecorder latency,
+      SessionCounters.Direction counter, Meter overallBandwidth, SessionShaper shaper) throws IOException {
+    if (_passThroughAfterHandshake) {
+      relay(alive, framer.getRemainingInputStream(), output, latency, counter, overallBandwidth, shaper, true);
+      return;
     }
-    if (remoteClientTocket.isClosed() || !remoteClientTocket.isConnected()) {
-      return true;
+    while (alive.get()) {
+      if (!framer.next()) {
+        return;
+      }
+      int length = framer.getLength();
+      long start = latency.start();
+      output.write(framer.getBuffer(), framer.getOffset(), length);
+      output.flush();
+      latency.stop(start);
+      counter.add(length);
+      overallBandwidth.mark(length);
+      throttle(alive, shaper, true, length);
     }
-    return false;
   }
 
-  private Future<Void> startRelayReadMessages(AtomicBoolean alive, InputStream input, OutputStream output, Timer timer,
-      Meter bandwidth, Meter overallBandwidth, BytesRef bytesRef) {
+  private Future<Void> startRelay(AtomicBoolean alive, SessionTeardown teardown, InputStream input,
+      OutputStream output, LatencyRecorder latency, SessionCounters.Direction counter, Meter overallBandwidth,
+      SessionShaper shaper) {
     return _service.submit(() -> {
-      while (alive.get()) {
-        BytesRef message = readMessage(input, bytesRef);
-        if (message == null) {
-          return null;
-        }
-        try (Context context = timer.time()) {
-          output.write(message.buffer, 0, message.length);
-          output.flush();
-          bandwidth.mark(message.length);
-          overallBandwidth.mark(message.length);
+      try {
+        if (_coalesceServerToClient) {
+          relayCoalescing(alive, input, output, latency, counter, overallBandwidth, shaper);
+        } else {
+          relay(alive, input, output, latency, counter, overallBandwidth, shaper, false);
         }
+      } finally {
+        teardown.trigger();
       }
       return null;
     });
   }
 
-  private Future<Void> startRelay(AtomicBoolean alive, InputStream input, OutputStream output, Timer timer,
-      Meter bandwidth, Meter overallBandwidth) {
-    return _service.submit(() -> {
-      byte[] buf = new byte[_bufferSize];
+  private void waitForRelay(Future<Void> future) throws InterruptedException {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      LOGGER.debug("Relay ended", e.getCause());
+    }
+  }
+
+  private void relay(AtomicBoolean alive, InputStream input, OutputStream output, LatencyRecorder latency,
+      SessionCounters.Direction counter, Meter overallBandwidth, SessionShaper shaper, boolean clientToServer)
+      throws IOException {
+    ByteBuffer buffer = _bufferPool.acquire(_bufferSize);
+    try {
+      byte[] buf = buffer.array();
       int read;
       while (alive.get()) {
         if ((read = input.read(buf, 0, buf.length)) == -1) {
-          return null;
-        }
-        try (Context context = timer.time()) {
-          output.write(buf, 0, read);
-          output.flush();
-          bandwidth.mark(read);
-          overallBandwidth.mark(read);
+          return;
         }
+        long start = latency.start();
+        output.write(buf, 0, read);
+        output.flush();
+        latency.stop(start);
+        counter.add(read);
+        overallBandwidth.mark(read);
+        throttle(alive, shaper, clientToServer, read);
       }
-      return null;
-    });
-  }
-
-  private String findCookie(BytesRef message) {
-    StringBuilder builder = new StringBuilder();
-    for (int i = 11; i < message.length; i++) {
-      if (message.buffer[i] == 13) {
-        break;
-      }
-      builder.append((char) message.buffer[i]);
+    } finally {
+      _bufferPool.release(buffer);
     }
-    return builder.toString();
   }
 
-  private static BytesRef readMessage(InputStream input, BytesRef bytesRef) throws IOException {
-    int b1 = input.read();
-    switch (b1) {
-    case -1:
-      // socket closed
-      return null;
-
-    case 3:
-      return readMessageType1(input, b1, bytesRef);
-
-    case 20:
-    case 21:
-    case 22:
-    case 23:
-      return readMessageType2(input, b1, bytesRef);
-
-    case 96:
-    case 132:
-    case 176:
-    case 184:
-      return readMessageType3(input, b1, bytesRef);
-
-    default:
-      break;
+  /**
+   * Like {@link #relay}, but after a read of at least the minimum size it keeps
+   * collecting whatever else the server sends within the coalesce window, up
+   * to the byte threshold, and forwards it all in one write. Smaller reads are
+   * interactive traffic and are forwarded right away.
+   */
+  private void relayCoalescing(AtomicBoolean alive, InputStream input, OutputStream output,
+      LatencyRecorder latency,
+      SessionCounters.Direction counter, Meter overallBandwidth, SessionShaper shaper) throws IOException {
+    ByteBuffer buffer = _bufferPool.acquire(Math.max(_bufferSize, _coalesceMaxBytes));
+    try {
+      byte[] buf = buffer.array();
+      // a single write never carries more than the coalesce maximum, even
+      // when the relay buffer is larger
+      int limit = Math.min(buf.length, _coalesceMaxBytes);
+      while (alive.get()) {
+        int length = input.read(buf, 0, limit);
+        if (length == -1) {
+          return;
+        }
+        int reads = 1;
+        long firstRead = System.nanoTime();
+        if (length >= _coalesceMinReadBytes) {
+          long deadline = firstRead + _coalesceWindowNanos;
+          while (length < limit) {
+            int available = input.available();
+            if (available > 0) {
+              int read = input.read(buf, length, Math.min(available, limit - length));
+              if (read == -1) {
+                break;
+              }
+              length += read;
+              reads++;
+            } else if (System.nanoTime() - deadline < 0) {
+              LockSupport.parkNanos(COALESCE_POLL_NANOS);
+            } else {
+              break;
+            }
+          }
+        }
+        _coalesceDelayTimer.update(System.nanoTime() - firstRead, TimeUnit.NANOSECONDS);
+        _coalesceReadsPerWrite.update(reads);
+        long start = latency.start();
+        output.write(buf, 0, length);
+        output.flush();
+        latency.stop(start);
+        counter.add(length);
+        overallBandwidth.mark(length);
+        throttle(alive, shaper, false, length);
+      }
+    } finally {
+      _bufferPool.release(buffer);
     }
-
-    int available = input.available();
-    byte[] buf = new byte[available + 1];
-    buf[0] = (byte) b1;
-    readFully(input, buf, 1, available);
-    LOGGER.error("Unknown message, available {} msg {}", available, bytesToHex(buf));
-
-    return null;
   }
 
-  private static BytesRef readMessageType3(InputStream input, int b1, BytesRef bytesRef) throws IOException {
-    int len = input.read();
-    if (!isValidLength(len)) {
-      return null;
+  /**
+   * Holds the direction back when the session or its user is over the rate
+   * limit. Not reading lets TCP push back on the sender. Parks in short slices
+   * so a killed session ends promptly.
+   */
+  private static void throttle(AtomicBoolean alive, SessionShaper shaper, boolean clientToServer, long bytes) {
+    long delay = shaper.acquire(clientToServer, bytes);
+    if (delay <= 0) {
+      return;
     }
-    bytesRef.growSetLength(len);
-    readFully(input, bytesRef.buffer, 2, len - 2);
-    bytesRef.buffer[0] = (byte) b1;
-    bytesRef.buffer[1] = (byte) len;
-    return bytesRef;
-  }
-
-  private static boolean isValidLength(int len) {
-    return len >= 0;
-  }
-
-  private static BytesRef readMessageType2(InputStream input, int b1, BytesRef bytesRef) throws IOException {
-    int r1 = input.read();
-    int r2 = input.read();
-    int len = readUnsignedShort(input);
-    if (!isValidLength(len)) {
-      return null;
+    long deadline = System.nanoTime() + delay;
+    long remaining;
+    while (alive.get() && (remaining = deadline - System.nanoTime()) > 0) {
+      LockSupport.parkNanos(Math.min(remaining, THROTTLE_PARK_NANOS));
     }
-
-    bytesRef.growSetLength(len + 5);
-    readFully(input, bytesRef.buffer, 5, len);
-    bytesRef.buffer[0] = (byte) b1;
-    bytesRef.buffer[1] = (byte) r1;
-    bytesRef.buffer[2] = (byte) r2;
-    putShort(bytesRef.buffer, 3, (short) len);
-    return bytesRef;
   }
 
-  private static BytesRef readMessageType1(InputStream input, int b1, BytesRef bytesRef) throws IOException {
-    int r1 = input.read();
-    int len = readUnsignedShort(input);
-    if (!isValidLength(len)) {
-      return null;
+  /**
+   * The user a session is shaped as, the mstshash name or else the cookie.
+   */
+  static String getUser(String cookie) {
+    if (cookie == null) {
+      return "";
     }
-
-    bytesRef.growSetLength(len);
-    readFully(input, bytesRef.buffer, 4, len - 4);
-    bytesRef.buffer[0] = (byte) b1;
-    bytesRef.buffer[1] = (byte) r1;
-    putShort(bytesRef.buffer, 2, (short) len);
-    return bytesRef;
+    return BaseRdpStore.isCookieMstsHash(cookie) ? BaseRdpStore.getMstsHashValue(cookie) : cookie;
   }
 
-  private BytesRef readFirstMessage(InputStream input, BytesRef bytesRef) throws IOException {
-    int tpktVersion = input.read();
-    if (tpktVersion == -1) {
-      return null;
-    }
-    if (tpktVersion != 3) {
-      LOGGER.error("Unknown client, hang up");
-      return null;
+  static String findCookie(byte[] buffer, int offset, int length) {
+    StringBuilder builder = new StringBuilder();
+    for (int i = offset + 11; i < offset + length; i++) {
+      if (buffer[i] == 13) {
+        break;
+      }
+      builder.append((char) buffer[i]);
     }
-    return readMessageType1(input, tpktVersion, bytesRef);
+    return builder.toString();
   }
 
   public static short getShort(byte[] b, int off) {
@@ -452,14 +619,6 @@ public class RdpConnectionRelay implements Closeable {
     }
   }
 
-  public static int readUnsignedShort(InputStream input) throws IOException {
-    int ch1 = input.read();
-    int ch2 = input.read();
-    if ((ch1 | ch2) < 0)
-      throw new EOFException();
-    return (ch1 << 8) + (ch2 << 0);
-  }
-
   public static String bytesToHex(byte[] bytes) {
     StringBuilder builder = new StringBuilder();
     for (int j = 0; j < bytes.length; j++) {
@@ -0,0 +1,24 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.util.Map;
+
+public interface RdpRelay extends Closeable {
+
+  boolean isListening();
+
+  void startListening();
+
+  void stopListening();
+
+  Map<String, ConnectionProxyInstance> getConnectionMap();
+
+  SessionRegistry getSessionRegistry();
+
+  void kill(String id);
+
+  BackendHealthRegistry getBackendHealthRegistry();
+
+  BandwidthShaper getBandwidthShaper();
+
+}
@@ -0,0 +1,16 @@
+package rdp.proxy.server.relay;
+
+public enum RdpRelayMode {
+
+  /**
+   * Thread per relay direction using blocking socket streams.
+   */
+  BLOCKING,
+
+  /**
+   * Fixed number of selector reactors that own accept, handshake and relay for
+   * their sessions.
+   */
+  NIO
+
+}
@@ -0,0 +1,79 @@
+package rdp.proxy.server.relay;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte and PDU counters of one session, kept on the session instead of in the
+ * metric registry. Rates are only computed when read.
+ */
+public class SessionCounters {
+
+  private final long _start = System.nanoTime();
+  private final Direction _clientToServer = new Direction();
+  private final Direction _serverToClient = new Direction();
+
+  public Direction getClientToServer() {
+    return _clientToServer;
+  }
+
+  public Direction getServerToClient() {
+    return _serverToClient;
+  }
+
+  public class Direction {
+
+    private static final double ONE_MINUTE_NANOS = 60_000_000_000.0;
+
+    private final LongAdder _bytes = new LongAdder();
+    private final LongAdder _pdus = new LongAdder();
+    private long _lastTick = _start;
+    private long _lastBytes;
+    private double _oneMinuteRate;
+
+    /**
+     * One relayed PDU, or one read when relaying without framing.
+     */
+    public void add(long bytes) {
+      _bytes.add(bytes);
+      _pdus.increment();
+    }
+
+    public long getBytes() {
+      return _bytes.sum();
+    }
+
+    public long getPdus() {
+      return _pdus.sum();
+    }
+
+    /**
+     * Bytes per second over the lifetime of the session.
+     */
+    public double getMeanRate() {
+      long elapsed = System.nanoTime() - _start;
+      return elapsed <= 0 ? 0.0 : getBytes() * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * Bytes per second as an exponentially weighted moving average with a one
+     * minute time constant, folded in from the bytes since the last read.
+     */
+    public synchronized double getOneMinuteRate() {
+      long now = System.nanoTime();
+      long elapsed = now - _lastTick;
+      if (elapsed <= 0) {
+        return _oneMinuteRate;
+      }
+      long bytes = getBytes();
+      double instantRate = (bytes - _lastBytes) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+      double alpha = 1.0 - Math.exp(-elapsed / ONE_MINUTE_NANOS);
+      _oneMinuteRate += alpha * (instantRate - _oneMinuteRate);
+      _lastTick = now;
+      _lastBytes = bytes;
+      return _oneMinuteRate;
+    }
+
+  }
+
+}
@@ -0,0 +1,199 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import rdp.proxy.server.RdpProxyConfig;
+
+/**
+ * Drains the relay for a rolling deploy. The listener is stopped so no new
+ * sessions are accepted, the existing ones run until the deadline. After the
+ * deadline sessions without client input for the idle time are closed, once
+ * the force time has passed as well the rest are closed too.
+ */
+public class SessionDrainer implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SessionDrainer.class);
+
+  private static final long TICK = TimeUnit.SECONDS.toMillis(1);
+
+  public enum State {
+    RUNNING, DRAINING, DRAINED
+  }
+
+  private final RdpRelay _relay;
+  private final long _defaultTimeout;
+  private final long _idleTime;
+  private final long _forceTime;
+  private final ScheduledExecutorService _scheduler;
+  private volatile DrainProgress _progress = DrainProgress.RUNNING;
+  private ScheduledFuture<?> _future;
+  private Map<String, Activity> _activity = new HashMap<>();
+  private long _lastTick;
+
+  public SessionDrainer(RdpProxyConfig config, RdpRelay relay) {
+    _relay = relay;
+    _defaultTimeout = config.getRdpDrainTimeout();
+    _idleTime = config.getRdpDrainIdleTime();
+    _forceTime = config.getRdpDrainForceTime();
+    _scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("rdp-drain-%d")
+                                  .setDaemon(true)
+                                  .build());
+  }
+
+  /**
+   * Starts a drain with the given timeout in ms, or the configured one when
+   * null. A drain already in progress keeps its deadline.
+   */
+  public synchronized DrainProgress start(Long timeout) {
+    if (_future != null) {
+      return _progress;
+    }
+    long now = System.currentTimeMillis();
+    long deadline = now + (timeout == null ? _defaultTimeout : timeout);
+    LOGGER.info("Draining {} sessions, deadline in {} ms", _relay.getSessionRegistry()
+                                                               .size(),
+        deadline - now);
+    _relay.stopListening();
+    _activity = new HashMap<>();
+    _lastTick = now;
+    _progress = DrainProgress.builder()
+                             .state(State.DRAINING)
+                             .startedAt(now)
+                             .deadline(deadline)
+                             .forceDeadline(deadline + _forceTime)
+                             .remainingSessions(_relay.getSessionRegistry()
+                                                      .size())
+                             .build();
+    _future = _scheduler.scheduleWithFixedDelay(() -> tick(), 0, TICK, TimeUnit.MILLISECONDS);
+    return _progress;
+  }
+
+  /**
+   * Stops draining, the listener is left for the caller to start again.
+   */
+  public synchronized void cancel() {
+    if (_future != null) {
+      LOGGER.info("Drain cancelled");
+      _future.cancel(false);
+      _future = null;
+    }
+    _progress = DrainProgress.RUNNING;
+  }
+
+  public State getState() {
+    return _progress.getState();
+  }
+
+  public DrainProgress getProgress() {
+    return _progress;
+  }
+
+  @Override
+  public void close() throws IOException {
+    _scheduler.shutdownNow();
+  }
+
+  private synchronized void tick() {
+    try {
+      if (_future == null) {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      long elapsed = Math.max(1, now - _lastTick);
+      _lastTick = now;
+      DrainProgress progress = _progress;
+      boolean closeIdle = now >= progress.getDeadline();
+      boolean closeAll = now >= progress.getForceDeadline();
+      int closedIdle = progress.getClosedIdle();
+      int closedForced = progress.getClosedForced();
+      long clientToServerBytes = 0;
+      long serverToClientBytes = 0;
+      Map<String, Activity> activity = new HashMap<>();
+      for (ConnectionProxyInstance instance : _relay.getSessionRegistry()
+                                                    .asMap()
+                                                    .values()) {
+        String id = instance.getId();
+        Activity previous = _activity.get(id);
+        Activity current = Activity.create(instance, previous, now);
+        activity.put(id, current);
+        if (previous != null) {
+          clientToServerBytes += current._clientToServer - previous._clientToServer;
+          serverToClientBytes += current._serverToClient - previous._serverToClient;
+        }
+        if (previous != null && previous._killed) {
+          current._killed = true;
+        } else if (closeAll) {
+          current._killed = true;
+          closedForced++;
+          _relay.kill(id);
+        } else if (closeIdle && now - current._lastInput >= _idleTime) {
+          current._killed = true;
+          closedIdle++;
+          _relay.kill(id);
+        }
+      }
+      _activity = activity;
+      int remaining = activity.size();
+      _progress = progress.toBuilder()
+                          .state(remaining == 0 ? State.DRAINED : State.DRAINING)
+                          .remainingSessions(remaining)
+                          .clientToServerBytesPerSecond(clientToServerBytes * 1000 / elapsed)
+                          .serverToClientBytesPerSecond(serverToClientBytes * 1000 / elapsed)
+                          .closedIdle(closedIdle)
+                          .closedForced(closedForced)
+                          .build();
+      if (remaining == 0) {
+        LOGGER.info("Drained, {} idle and {} active sessions closed", closedIdle, closedForced);
+        _future.cancel(false);
+        _future = null;
+      }
+    } catch (Throwable t) {
+      LOGGER.error("Unknown error during drain", t);
+    }
+  }
+
+  private static class Activity {
+
+    final long _clientToServer;
+    final long _serverToClient;
+    final long _lastInput;
+    boolean _killed;
+
+    Activity(long clientToServer, long serverToClient, long lastInput) {
+      _clientToServer = clientToServer;
+      _serverToClient = serverToClient;
+      _lastInput = lastInput;
+    }
+
+    /**
+     * The server keeps sending updates to an idle desktop, only client to
+     * server bytes count as input.
+     */
+    static Activity create(ConnectionProxyInstance instance, Activity previous, long now) {
+      SessionCounters counters = instance.getCounters();
+      long clientToServer = counters == null ? 0
+          : counters.getClientToServer()
+                    .getBytes();
+      long serverToClient = counters == null ? 0
+          : counters.getServerToClient()
+                    .getBytes();
+      long lastInput = previous == null || previous._clientToServer != clientToServer ? now : previous._lastInput;
+      return new Activity(clientToServer, serverToClient, lastInput);
+    }
+
+  }
+
+}
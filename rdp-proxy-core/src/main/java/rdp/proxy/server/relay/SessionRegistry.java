@@ -0,0 +1,145 @@
+package rdp.proxy.server.relay;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The live sessions by id, with secondary indexes by user, cookie, backend and
+ * client address. Looking up the sessions or the session count of one key
+ * does not scan the other sessions.
+ */
+public class SessionRegistry {
+
+  private final Map<String, ConnectionProxyInstance> _sessions = new ConcurrentHashMap<>();
+  private final Index<String> _byUser = new Index<>(ConnectionProxyInstance::getUser);
+  private final Index<String> _byCookie = new Index<>(ConnectionProxyInstance::getCookie);
+  private final Index<InetSocketAddress> _byBackend = new Index<>(SessionRegistry::getBackend);
+  private final Index<InetAddress> _byClient = new Index<>(SessionRegistry::getClient);
+
+  public void add(ConnectionProxyInstance instance) {
+    _sessions.put(instance.getId(), instance);
+    _byUser.add(instance);
+    _byCookie.add(instance);
+    _byBackend.add(instance);
+    _byClient.add(instance);
+  }
+
+  public ConnectionProxyInstance remove(String id) {
+    ConnectionProxyInstance instance = _sessions.remove(id);
+    if (instance != null) {
+      _byUser.remove(instance);
+      _byCookie.remove(instance);
+      _byBackend.remove(instance);
+      _byClient.remove(instance);
+    }
+    return instance;
+  }
+
+  public ConnectionProxyInstance get(String id) {
+    return _sessions.get(id);
+  }
+
+  public int size() {
+    return _sessions.size();
+  }
+
+  public Map<String, ConnectionProxyInstance> asMap() {
+    return Collections.unmodifiableMap(_sessions);
+  }
+
+  public Collection<ConnectionProxyInstance> getByUser(String user) {
+    return _byUser.get(user);
+  }
+
+  public int countByUser(String user) {
+    return _byUser.count(user);
+  }
+
+  public Collection<ConnectionProxyInstance> getByCookie(String cookie) {
+    return _byCookie.get(cookie);
+  }
+
+  public int countByCookie(String cookie) {
+    return _byCookie.count(cookie);
+  }
+
+  public Collection<ConnectionProxyInstance> getByBackend(InetSocketAddress backend) {
+    return _byBackend.get(backend);
+  }
+
+  public int countByBackend(InetSocketAddress backend) {
+    return _byBackend.count(backend);
+  }
+
+  public Collection<ConnectionProxyInstance> getByClient(InetAddress client) {
+    return _byClient.get(client);
+  }
+
+  public int countByClient(InetAddress client) {
+    return _byClient.count(client);
+  }
+
+  private static InetSocketAddress getBackend(ConnectionProxyInstance instance) {
+    SocketInfo server = instance.getServer();
+    return server == null ? null : new InetSocketAddress(server.getInetAddress(), server.getPort());
+  }
+
+  private static InetAddress getClient(ConnectionProxyInstance instance) {
+    SocketInfo client = instance.getClient();
+    return client == null ? null : client.getInetAddress();
+  }
+
+  /**
+   * Sessions grouped by one key. The groups are changed inside compute so a
+   * group is never dropped while a session is being added to it.
+   */
+  private static class Index<K> {
+
+    private final Map<K, Map<String, ConnectionProxyInstance>> _groups = new ConcurrentHashMap<>();
+    private final Function<ConnectionProxyInstance, K> _key;
+
+    Index(Function<ConnectionProxyInstance, K> key) {
+      _key = key;
+    }
+
+    void add(ConnectionProxyInstance instance) {
+      K key = _key.apply(instance);
+      if (key == null) {
+        return;
+      }
+      _groups.compute(key, (k, group) -> {
+        Map<String, ConnectionProxyInstance> sessions = group == null ? new ConcurrentHashMap<>() : group;
+        sessions.put(instance.getId(), instance);
+        return sessions;
+      });
+    }
+
+    void remove(ConnectionProxyInstance instance) {
+      K key = _key.apply(instance);
+      if (key == null) {
+        return;
+      }
+      _groups.computeIfPresent(key, (k, group) -> {
+        group.remove(instance.getId());
+        return group.isEmpty() ? null : group;
+      });
+    }
+
+    Collection<ConnectionProxyInstance> get(K key) {
+      Map<String, ConnectionProxyInstance> group = key == null ? null : _groups.get(key);
+      return group == null ? Collections.emptyList() : Collections.unmodifiableCollection(group.values());
+    }
+
+    int count(K key) {
+      Map<String, ConnectionProxyInstance> group = key == null ? null : _groups.get(key);
+      return group == null ? 0 : group.size();
+    }
+
+  }
+
+}
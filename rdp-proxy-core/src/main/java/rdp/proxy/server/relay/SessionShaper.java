@@ -0,0 +1,102 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The rate limits of one session, see {@link BandwidthShaper}.
+ */
+public class SessionShaper implements Closeable {
+
+  private static final long THROTTLED_FLAG_TIME = TimeUnit.SECONDS.toNanos(5);
+
+  private final BandwidthShaper _shaper;
+  private final String _user;
+  private final long _burst;
+  private final TokenBucket _clientToServer;
+  private final TokenBucket _serverToClient;
+  private final TokenBucket _userClientToServer;
+  private final TokenBucket _userServerToClient;
+  private final AtomicLong _throttledCount = new AtomicLong();
+  private volatile long _lastThrottled;
+  private volatile BandwidthLimit _limit;
+  private volatile boolean _override;
+
+  SessionShaper(BandwidthShaper shaper, String user, BandwidthLimit limit, long burst,
+      TokenBucket userClientToServer, TokenBucket userServerToClient) {
+    _shaper = shaper;
+    _user = user;
+    _burst = burst;
+    _limit = limit;
+    _clientToServer = new TokenBucket(limit.getClientToServer(), burst);
+    _serverToClient = new TokenBucket(limit.getServerToClient(), burst);
+    _userClientToServer = userClientToServer;
+    _userServerToClient = userServerToClient;
+  }
+
+  public String getUser() {
+    return _user;
+  }
+
+  /**
+   * Takes the bytes from the session and user buckets and returns how long the
+   * direction should pause, 0 when it is within its limits.
+   */
+  public long acquire(boolean clientToServer, long bytes) {
+    long delay;
+    if (clientToServer) {
+      delay = Math.max(_clientToServer.reserve(bytes), _userClientToServer.reserve(bytes));
+    } else {
+      delay = Math.max(_serverToClient.reserve(bytes), _userServerToClient.reserve(bytes));
+    }
+    if (delay > 0) {
+      _lastThrottled = System.nanoTime();
+      if (_throttledCount.getAndIncrement() == 0) {
+        _shaper.throttled();
+      }
+    }
+    return delay;
+  }
+
+  /**
+   * True if the session was held back within the last few seconds.
+   */
+  public boolean isThrottled() {
+    return _throttledCount.get() > 0 && System.nanoTime() - _lastThrottled < THROTTLED_FLAG_TIME;
+  }
+
+  public long getThrottledCount() {
+    return _throttledCount.get();
+  }
+
+  public BandwidthLimit getLimit() {
+    return _limit;
+  }
+
+  /**
+   * A limit for this session only, null goes back to the session default.
+   */
+  public void setLimit(BandwidthLimit limit) {
+    _override = limit != null;
+    apply(limit == null ? _shaper.getSessionDefault() : limit);
+  }
+
+  void setDefaultLimit(BandwidthLimit limit) {
+    if (!_override) {
+      apply(limit);
+    }
+  }
+
+  private void apply(BandwidthLimit limit) {
+    _limit = limit;
+    _clientToServer.setRate(limit.getClientToServer(), _burst);
+    _serverToClient.setRate(limit.getServerToClient(), _burst);
+  }
+
+  @Override
+  public void close() {
+    _shaper.closed(this);
+  }
+
+}
@@ -0,0 +1,49 @@
+package rdp.proxy.server.relay;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rdp.proxy.server.util.Utils;
+
+/**
+ * Tears a blocking relay session down exactly once, on whichever comes first:
+ * either relay direction finishing or an admin kill. Closing both sockets
+ * unblocks the read still pending in the other direction right away.
+ */
+public class SessionTeardown {
+
+  private final AtomicBoolean _alive;
+  private final Closeable[] _closeables;
+  private volatile long _triggeredAt;
+
+  public SessionTeardown(AtomicBoolean alive, Closeable... closeables) {
+    _alive = alive;
+    _closeables = closeables;
+  }
+
+  /**
+   * @return true if this call started the teardown
+   */
+  public boolean trigger() {
+    if (!_alive.compareAndSet(true, false)) {
+      return false;
+    }
+    _triggeredAt = System.nanoTime();
+    for (Closeable closeable : _closeables) {
+      Utils.closeQuietly(closeable);
+    }
+    return true;
+  }
+
+  public boolean isAlive() {
+    return _alive.get();
+  }
+
+  /**
+   * {@link System#nanoTime()} of the first {@link #trigger()}.
+   */
+  public long getTriggeredAt() {
+    return _triggeredAt;
+  }
+
+}
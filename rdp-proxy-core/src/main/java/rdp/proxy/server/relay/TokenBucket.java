@@ -0,0 +1,80 @@
+package rdp.proxy.server.relay;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket kept as a single "theoretical arrival time" (GCRA).
+ * Taking tokens moves that time forward by the time the rate needs to produce
+ * them, a CAS makes concurrent takers safe without a lock. A rate of zero or
+ * less means unlimited.
+ */
+public class TokenBucket {
+
+  private final AtomicLong _arrival = new AtomicLong(System.nanoTime());
+  private volatile double _nanosPerToken;
+  private volatile long _burstNanos;
+
+  public TokenBucket(double tokensPerSecond, long burst) {
+    setRate(tokensPerSecond, burst);
+  }
+
+  /**
+   * Changes the rate, tokens taken under the old rate are forgotten.
+   */
+  public void setRate(double tokensPerSecond, long burst) {
+    double nanosPerToken = tokensPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / tokensPerSecond : 0;
+    _burstNanos = (long) (nanosPerToken * Math.max(1, burst));
+    _nanosPerToken = nanosPerToken;
+    _arrival.set(System.nanoTime());
+  }
+
+  public boolean isUnlimited() {
+    return _nanosPerToken == 0;
+  }
+
+  /**
+   * Takes the tokens if the bucket has them.
+   */
+  public boolean tryAcquire(long tokens) {
+    double nanosPerToken = _nanosPerToken;
+    if (nanosPerToken == 0) {
+      return true;
+    }
+    long cost = (long) (tokens * nanosPerToken);
+    while (true) {
+      long now = System.nanoTime();
+      long arrival = _arrival.get();
+      long start = arrival - now < 0 ? now : arrival;
+      long next = start + cost;
+      if (next - now > _burstNanos) {
+        return false;
+      }
+      if (_arrival.compareAndSet(arrival, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Always takes the tokens, going into debt if needed, and returns how many
+   * nanos the caller should wait before using them.
+   */
+  public long reserve(long tokens) {
+    double nanosPerToken = _nanosPerToken;
+    if (nanosPerToken == 0) {
+      return 0;
+    }
+    long cost = (long) (tokens * nanosPerToken);
+    while (true) {
+      long now = System.nanoTime();
+      long arrival = _arrival.get();
+      long start = arrival - now < 0 ? now : arrival;
+      long next = start + cost;
+      if (_arrival.compareAndSet(arrival, next)) {
+        return Math.max(0, next - now - _burstNanos);
+      }
+    }
+  }
+
+}
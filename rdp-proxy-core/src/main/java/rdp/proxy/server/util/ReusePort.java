@@ -0,0 +1,99 @@
+package rdp.proxy.server.util;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reflective access to SO_REUSEPORT (Java 9+) so several listeners can bind
+ * the same port and let the kernel spread new connections across them.
+ */
+public class ReusePort {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReusePort.class);
+
+  private static final SocketOption<Boolean> SO_REUSEPORT = findOption();
+  private static final boolean SUPPORTED = isSupportedByPlatform();
+
+  public static boolean isSupported() {
+    return SUPPORTED;
+  }
+
+  /**
+   * The number of listeners to open, one unless SO_REUSEPORT is supported.
+   */
+  public static int getListenerCount(int acceptors) {
+    if (acceptors <= 1) {
+      return 1;
+    }
+    if (!isSupported()) {
+      LOGGER.warn("SO_REUSEPORT is not supported by this JVM or platform, using a single listener");
+      return 1;
+    }
+    return acceptors;
+  }
+
+  public static ServerSocketChannel openChannel(InetSocketAddress address, int backlog, boolean reusePort)
+      throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    try {
+      if (reusePort) {
+        channel.setOption(SO_REUSEPORT, true);
+      }
+      channel.bind(address, backlog);
+      return channel;
+    } catch (IOException | RuntimeException e) {
+      Utils.closeQuietly(channel);
+      throw e;
+    }
+  }
+
+  public static ServerSocket openServerSocket(InetSocketAddress address, int backlog, boolean reusePort)
+      throws IOException {
+    ServerSocket serverSocket = new ServerSocket();
+    try {
+      if (reusePort) {
+        // ServerSocket.setOption is Java 9+
+        ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class)
+                          .invoke(serverSocket, SO_REUSEPORT, true);
+      }
+      serverSocket.bind(address, backlog);
+      return serverSocket;
+    } catch (IOException e) {
+      Utils.closeQuietly(serverSocket);
+      throw e;
+    } catch (Exception e) {
+      Utils.closeQuietly(serverSocket);
+      throw new IOException("Could not enable SO_REUSEPORT", e);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SocketOption<Boolean> findOption() {
+    try {
+      return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT")
+                                                                .get(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static boolean isSupportedByPlatform() {
+    if (SO_REUSEPORT == null) {
+      return false;
+    }
+    try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+      return channel.supportedOptions()
+                    .contains(SO_REUSEPORT);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+}
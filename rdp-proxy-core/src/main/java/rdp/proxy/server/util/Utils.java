@@ -5,17 +5,30 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 
 import rdp.proxy.server.RdpProxyConfig;
 import rdp.proxy.server.RdpProxyConfig.RdpProxyConfigBuilder;
+import rdp.proxy.server.metrics.SetupStoreCacheMetrics;
+import rdp.proxy.server.relay.NioRdpConnectionRelay;
+import rdp.proxy.server.relay.RdpConnectionRelay;
+import rdp.proxy.server.relay.RdpRelay;
+import rdp.proxy.server.relay.RdpRelayMode;
 import rdp.proxy.service.spi.RdpProxyServiceSetup;
 import rdp.proxy.spi.BaseRdpStore;
 import rdp.proxy.spi.RdpSetting;
 import rdp.proxy.spi.RdpStore;
+import rdp.proxy.spi.cache.CachingRdpStore;
+import rdp.proxy.spi.cache.StoreCache.EvictionPolicy;
 import rdp.proxy.spi.config.ConfigUtil;
 import spark.Service;
 
@@ -30,12 +43,51 @@ public class Utils {
   public static final String RDP_SO_TIMEOUT = "RDP_SO_TIMEOUT";
   public static final String RDP_REMOTE_TCP_TIMEOUT = "RDP_REMOTE_TCP_TIMEOUT";
   public static final String RDP_RELAY_BUFFER_SIZE = "RDP_RELAY_BUFFER_SIZE";
+  public static final String RDP_BUFFER_POOL_MAX_BYTES = "RDP_BUFFER_POOL_MAX_BYTES";
   public static final String RDP_BACKLOG = "RDP_BACKLOG";
+  public static final String RDP_ACCEPTORS = "RDP_ACCEPTORS";
+  public static final String RDP_MAX_SESSIONS = "RDP_MAX_SESSIONS";
+  public static final String RDP_MAX_HANDSHAKES = "RDP_MAX_HANDSHAKES";
+  public static final String RDP_NEW_SESSION_RATE = "RDP_NEW_SESSION_RATE";
+  public static final String RDP_NEW_SESSION_BURST = "RDP_NEW_SESSION_BURST";
+  public static final String RDP_SESSION_CLIENT_TO_SERVER_RATE = "RDP_SESSION_CLIENT_TO_SERVER_RATE";
+  public static final String RDP_SESSION_SERVER_TO_CLIENT_RATE = "RDP_SESSION_SERVER_TO_CLIENT_RATE";
+  public static final String RDP_USER_CLIENT_TO_SERVER_RATE = "RDP_USER_CLIENT_TO_SERVER_RATE";
+  public static final String RDP_USER_SERVER_TO_CLIENT_RATE = "RDP_USER_SERVER_TO_CLIENT_RATE";
+  public static final String RDP_BANDWIDTH_BURST_BYTES = "RDP_BANDWIDTH_BURST_BYTES";
   public static final String RDP_PROXY_SETUP_CLASSNAME = "RDP_PROXY_SETUP_CLASSNAME";
   public static final String RDP_META_STORE_CLASSNAME = "RDP_META_STORE_CLASSNAME";
+  public static final String RDP_STORE_CACHE_ENABLED = "RDP_STORE_CACHE_ENABLED";
+  public static final String RDP_STORE_CACHE_MAX_SIZE = "RDP_STORE_CACHE_MAX_SIZE";
+  public static final String RDP_STORE_CACHE_EVICTION_POLICY = "RDP_STORE_CACHE_EVICTION_POLICY";
+  public static final String RDP_STORE_CACHE_TTL = "RDP_STORE_CACHE_TTL";
+  public static final String RDP_STORE_CACHE_NEGATIVE_TTL = "RDP_STORE_CACHE_NEGATIVE_TTL";
+  public static final String RDP_STORE_CACHE_STALE_TIME = "RDP_STORE_CACHE_STALE_TIME";
+  public static final String RDP_STORE_TIMEOUT = "RDP_STORE_TIMEOUT";
   public static final String RDP_HOSTNAME_ADVERTISED = "RDP_HOSTNAME_ADVERTISED";
   public static final String RDP_BIND_ADDRESS = "RDP_BIND_ADDRESS";
   public static final String RDP_PORT = "RDP_PORT";
+  public static final String RDP_RELAY_MODE = "RDP_RELAY_MODE";
+  public static final String RDP_REACTOR_THREADS = "RDP_REACTOR_THREADS";
+  public static final String RDP_VIRTUAL_THREADS = "RDP_VIRTUAL_THREADS";
+  public static final String RDP_PASS_THROUGH_AFTER_HANDSHAKE = "RDP_PASS_THROUGH_AFTER_HANDSHAKE";
+  public static final String RDP_COALESCE_SERVER_TO_CLIENT = "RDP_COALESCE_SERVER_TO_CLIENT";
+  public static final String RDP_COALESCE_WINDOW_MICROS = "RDP_COALESCE_WINDOW_MICROS";
+  public static final String RDP_COALESCE_MAX_BYTES = "RDP_COALESCE_MAX_BYTES";
+  public static final String RDP_COALESCE_MIN_READ_BYTES = "RDP_COALESCE_MIN_READ_BYTES";
+  public static final String RDP_RELAY_LATENCY_SAMPLE_RATE = "RDP_RELAY_LATENCY_SAMPLE_RATE";
+  public static final String RDP_HANDSHAKE_TIMEOUT = "RDP_HANDSHAKE_TIMEOUT";
+  public static final String RDP_IDLE_TIMEOUT = "RDP_IDLE_TIMEOUT";
+  public static final String RDP_TIMER_TICK_DURATION = "RDP_TIMER_TICK_DURATION";
+  public static final String RDP_TIMER_WHEEL_SIZE = "RDP_TIMER_WHEEL_SIZE";
+  public static final String RDP_DRAIN_TIMEOUT = "RDP_DRAIN_TIMEOUT";
+  public static final String RDP_DRAIN_IDLE_TIME = "RDP_DRAIN_IDLE_TIME";
+  public static final String RDP_DRAIN_FORCE_TIME = "RDP_DRAIN_FORCE_TIME";
+  public static final String RDP_CONNECT_ATTEMPT_DELAY = "RDP_CONNECT_ATTEMPT_DELAY";
+  public static final String RDP_BACKEND_FAILURE_THRESHOLD = "RDP_BACKEND_FAILURE_THRESHOLD";
+  public static final String RDP_BACKEND_OPEN_TIME = "RDP_BACKEND_OPEN_TIME";
+  public static final String RDP_BACKEND_PROBE_INTERVAL = "RDP_BACKEND_PROBE_INTERVAL";
+  public static final String RDP_BACKEND_PROBE_TIMEOUT = "RDP_BACKEND_PROBE_TIMEOUT";
 
   private static final String DEFAULT_RDP = "/default.rdp";
 
@@ -49,6 +101,18 @@ public class Utils {
     return clazz.newInstance();
   }
 
+  public static RdpStore getRdpMetaStore(RdpProxyConfig config, MetricRegistry metrics) throws Exception {
+    RdpStore store = getRdpMetaStore(config);
+    if (!config.isRdpStoreCacheEnabled()) {
+      return store;
+    }
+    CachingRdpStore cachingRdpStore = new CachingRdpStore(store, config.getRdpStoreCacheMaxSize(),
+        config.getRdpStoreCacheEvictionPolicy(), config.getRdpStoreCacheTtl(), config.getRdpStoreCacheNegativeTtl(),
+        config.getRdpStoreCacheStaleTime(), TimeUnit.MILLISECONDS, SetupStoreCacheMetrics.createListener(metrics));
+    SetupStoreCacheMetrics.setup(metrics, cachingRdpStore);
+    return cachingRdpStore;
+  }
+
   public static RdpStore getRdpMetaStore(RdpProxyConfig config) throws Exception {
     String rdpMetaStoreClassname = config.getRdpMetaStoreClassname();
     if (rdpMetaStoreClassname == null) {
@@ -126,12 +190,78 @@ public class Utils {
         builder.rdpBacklog(prop);
       }
     }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_ACCEPTORS, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpAcceptors(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_MAX_SESSIONS, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpMaxSessions(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_MAX_HANDSHAKES, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpMaxHandshakes(prop);
+      }
+    }
+    {
+      Double prop = ConfigUtil.loadProperty(RDP_NEW_SESSION_RATE, value -> Double.parseDouble(value));
+      if (prop != null) {
+        builder.rdpNewSessionRate(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_NEW_SESSION_BURST, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpNewSessionBurst(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_SESSION_CLIENT_TO_SERVER_RATE, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpSessionClientToServerRate(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_SESSION_SERVER_TO_CLIENT_RATE, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpSessionServerToClientRate(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_USER_CLIENT_TO_SERVER_RATE, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpUserClientToServerRate(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_USER_SERVER_TO_CLIENT_RATE, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpUserServerToClientRate(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_BANDWIDTH_BURST_BYTES, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpBandwidthBurstBytes(prop);
+      }
+    }
     {
       Integer prop = ConfigUtil.loadProperty(RDP_RELAY_BUFFER_SIZE, value -> Integer.parseInt(value));
       if (prop != null) {
         builder.rdpRelayBufferSize(prop);
       }
     }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_BUFFER_POOL_MAX_BYTES, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpBufferPoolMaxBytes(prop);
+      }
+    }
     {
       Integer prop = ConfigUtil.loadProperty(RDP_REMOTE_TCP_TIMEOUT, value -> Integer.parseInt(value));
       if (prop != null) {
@@ -144,10 +274,190 @@ public class Utils {
         builder.rdpSoTimeout(prop);
       }
     }
+    {
+      Boolean prop = ConfigUtil.loadProperty(RDP_STORE_CACHE_ENABLED, value -> Boolean.parseBoolean(value));
+      if (prop != null) {
+        builder.rdpStoreCacheEnabled(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_STORE_CACHE_MAX_SIZE, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpStoreCacheMaxSize(prop);
+      }
+    }
+    {
+      EvictionPolicy prop = ConfigUtil.loadProperty(RDP_STORE_CACHE_EVICTION_POLICY,
+          value -> EvictionPolicy.valueOf(value.toUpperCase()));
+      if (prop != null) {
+        builder.rdpStoreCacheEvictionPolicy(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_STORE_CACHE_TTL, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpStoreCacheTtl(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_STORE_CACHE_NEGATIVE_TTL, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpStoreCacheNegativeTtl(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_STORE_CACHE_STALE_TIME, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpStoreCacheStaleTime(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_STORE_TIMEOUT, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpStoreTimeout(prop);
+      }
+    }
+    {
+      RdpRelayMode prop = ConfigUtil.loadProperty(RDP_RELAY_MODE, value -> RdpRelayMode.valueOf(value.toUpperCase()));
+      if (prop != null) {
+        builder.rdpRelayMode(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_REACTOR_THREADS, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpReactorThreads(prop);
+      }
+    }
+    {
+      Boolean prop = ConfigUtil.loadProperty(RDP_VIRTUAL_THREADS, value -> Boolean.parseBoolean(value));
+      if (prop != null) {
+        builder.rdpVirtualThreads(prop);
+      }
+    }
+    {
+      Boolean prop = ConfigUtil.loadProperty(RDP_PASS_THROUGH_AFTER_HANDSHAKE, value -> Boolean.parseBoolean(value));
+      if (prop != null) {
+        builder.rdpPassThroughAfterHandshake(prop);
+      }
+    }
+    {
+      Boolean prop = ConfigUtil.loadProperty(RDP_COALESCE_SERVER_TO_CLIENT, value -> Boolean.parseBoolean(value));
+      if (prop != null) {
+        builder.rdpCoalesceServerToClient(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_COALESCE_WINDOW_MICROS, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpCoalesceWindowMicros(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_COALESCE_MAX_BYTES, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpCoalesceMaxBytes(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_COALESCE_MIN_READ_BYTES, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpCoalesceMinReadBytes(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_RELAY_LATENCY_SAMPLE_RATE, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpRelayLatencySampleRate(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_HANDSHAKE_TIMEOUT, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpHandshakeTimeout(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_IDLE_TIMEOUT, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpIdleTimeout(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_TIMER_TICK_DURATION, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpTimerTickDuration(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_TIMER_WHEEL_SIZE, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpTimerWheelSize(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_DRAIN_TIMEOUT, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpDrainTimeout(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_DRAIN_IDLE_TIME, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpDrainIdleTime(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_DRAIN_FORCE_TIME, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpDrainForceTime(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_CONNECT_ATTEMPT_DELAY, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpConnectAttemptDelay(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_BACKEND_FAILURE_THRESHOLD, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpBackendFailureThreshold(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_BACKEND_OPEN_TIME, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpBackendOpenTime(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_BACKEND_PROBE_INTERVAL, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.rdpBackendProbeInterval(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_BACKEND_PROBE_TIMEOUT, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.rdpBackendProbeTimeout(prop);
+      }
+    }
 
     return builder.build();
   }
 
+  public static RdpRelay createRdpRelay(RdpProxyConfig config, RdpStore store, MetricRegistry metrics)
+      throws IOException {
+    switch (config.getRdpRelayMode()) {
+    case NIO:
+      return new NioRdpConnectionRelay(config, store, metrics);
+    case BLOCKING:
+    default:
+      return new RdpConnectionRelay(config, store, metrics);
+    }
+  }
+
   public static Service igniteGatewayService(RdpProxyConfig config) throws Exception {
     RdpProxyServiceSetup setup = getRdpProxySetup(config);
     Service service = Service.ignite();
@@ -181,6 +491,32 @@ public class Utils {
     return builder.build();
   }
 
+  /**
+   * Waits for an async store call, a timeout cancels the call.
+   */
+  public static <T> T await(CompletableFuture<T> future, long timeout) throws IOException {
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(false);
+      throw new IOException("Store call did not complete within " + timeout + " ms", e);
+    } catch (InterruptedException e) {
+      future.cancel(false);
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
   public static void closeQuietly(Closeable closeable) {
     if (closeable != null) {
       try {
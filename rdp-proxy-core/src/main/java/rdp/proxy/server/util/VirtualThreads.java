@@ -0,0 +1,87 @@
+package rdp.proxy.server.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reflective access to virtual threads so the project can keep compiling for
+ * Java 8 while taking advantage of them on a JVM that has them.
+ */
+public class VirtualThreads {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+  private static final String CARRIER_THREAD_CLASSNAME = "jdk.internal.misc.CarrierThread";
+
+  private static final Method OF_VIRTUAL;
+  private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+  static {
+    Method ofVirtual = null;
+    Method newThreadPerTaskExecutor = null;
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+    } catch (NoSuchMethodException e) {
+      ofVirtual = null;
+      newThreadPerTaskExecutor = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+  }
+
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Creates an executor that starts a new virtual thread per task, or a cached
+   * platform thread pool when the running JVM does not support virtual threads.
+   */
+  public static ExecutorService newExecutorService(String namePrefix) {
+    if (isSupported()) {
+      try {
+        Object builder = OF_VIRTUAL.invoke(null);
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builder = builderClass.getMethod("name", String.class, long.class)
+                              .invoke(builder, namePrefix, 0L);
+        ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory")
+                                                            .invoke(builder);
+        return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+      } catch (Exception e) {
+        LOGGER.error("Could not create virtual thread executor, falling back to platform threads", e);
+      }
+    } else {
+      LOGGER.warn("Virtual threads are not supported by this JVM, falling back to platform threads");
+    }
+    return Executors.newCachedThreadPool();
+  }
+
+  /**
+   * Counts the platform threads currently used to carry virtual threads.
+   */
+  public static int getCarrierThreadCount() {
+    ThreadGroup root = Thread.currentThread()
+                             .getThreadGroup();
+    while (root.getParent() != null) {
+      root = root.getParent();
+    }
+    Thread[] threads = new Thread[root.activeCount() * 2 + 16];
+    int count = root.enumerate(threads, true);
+    int carriers = 0;
+    for (int i = 0; i < count; i++) {
+      if (threads[i].getClass()
+                    .getName()
+                    .equals(CARRIER_THREAD_CLASSNAME)) {
+        carriers++;
+      }
+    }
+    return carriers;
+  }
+
+}
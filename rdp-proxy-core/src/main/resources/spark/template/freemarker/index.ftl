@@ -17,35 +17,167 @@
 </table>
 
 <h3>Connections</h3>
+<form id="connectionQuery">
+  Sort <select name="sort">
+    <option value="lifetime">Lifetime</option>
+    <option value="bandwidth">Bandwidth (top page)</option>
+    <option value="id">Id</option>
+  </select>
+  <select name="order">
+    <option value="desc">Descending</option>
+    <option value="asc">Ascending</option>
+  </select>
+  Backend <input type="text" name="backend" size="20"/>
+  Client <input type="text" name="client" size="15"/>
+  Cookie <input type="text" name="cookie" size="20"/>
+  User <input type="text" name="user" size="15"/>
+  Page size <input type="text" name="limit" size="4" value="100"/>
+  <input type="submit" value="Apply"/>
+</form>
+<p><span id="connectionMatched"></span>
+  <button id="connectionFirst" type="button">First page</button>
+  <button id="connectionNext" type="button" disabled>Next page</button>
+  <button id="connectionKillMatching" type="button">Kill matching</button>
+</p>
 <table border=1>
+  <thead>
    <tr>
      <th>Host</th>
      <th>Id</th>
+     <th>User</th>
+     <th>Lifetime</th>
      <th>client info</th>
      <th>c=>s Avg</th>
      <th>c=>s 1 Min Avg</th>
      <th>c=>s Total</th>
+     <th>c=>s PDUs</th>
      <th>server info</th>
      <th>s=>c Avg</th>
      <th>s=>c 1 Min Avg</th>
      <th>s=>c Total</th>
+     <th>s=>c PDUs</th>
+     <th>Throttled</th>
      <th>Kill</th>
     </tr>
-    <#list connections as connection>
+  </thead>
+  <tbody id="connections"></tbody>
+</table>
+<script>
+(function() {
+  var form = document.getElementById("connectionQuery");
+  var next = document.getElementById("connectionNext");
+  var nextCursor = null;
+
+  function cell(row, text, header) {
+    var td = document.createElement(header ? "th" : "td");
+    td.textContent = text;
+    row.appendChild(td);
+  }
+
+  function kill(id) {
+    var request = new XMLHttpRequest();
+    request.open("POST", "/kill/" + encodeURIComponent(id));
+    request.onload = function() { load(null); };
+    request.send();
+  }
+
+  function render(page) {
+    var body = document.getElementById("connections");
+    body.innerHTML = "";
+    page.connections.forEach(function(c) {
+      var row = document.createElement("tr");
+      cell(row, c.host, true);
+      cell(row, c.id);
+      cell(row, c.user || "");
+      cell(row, c.lifetime + " sec");
+      cell(row, c.rdpClient);
+      cell(row, c.clientToServerBandwidth + " KiB/s");
+      cell(row, c.clientToServerBandwidthOneMinute + " KiB/s");
+      cell(row, c.clientToServerBandwidthTotal + " KiB");
+      cell(row, c.clientToServerPdus);
+      cell(row, c.rdpServer);
+      cell(row, c.serverToClientBandwidth + " KiB/s");
+      cell(row, c.serverToClientBandwidthOneMinute + " KiB/s");
+      cell(row, c.serverToClientBandwidthTotal + " KiB");
+      cell(row, c.serverToClientPdus);
+      cell(row, c.throttled ? "throttled" : "");
+      var td = document.createElement("td");
+      var button = document.createElement("button");
+      button.textContent = "Kill";
+      button.onclick = function() { kill(c.id); };
+      td.appendChild(button);
+      row.appendChild(td);
+      body.appendChild(row);
+    });
+    document.getElementById("connectionMatched").textContent = page.matched + " matching connections";
+    nextCursor = page.nextCursor;
+    next.disabled = !nextCursor;
+  }
+
+  function params(names) {
+    var result = [];
+    names.forEach(function(name) {
+      var value = form.elements[name].value;
+      if (value) {
+        result.push(name + "=" + encodeURIComponent(value));
+      }
+    });
+    return result;
+  }
+
+  function killMatching() {
+    var filters = params(["backend", "client", "cookie", "user"]);
+    if (filters.length == 0 || !confirm("Kill all matching connections?")) {
+      return;
+    }
+    var request = new XMLHttpRequest();
+    request.open("POST", "/api/sessions/kill?" + filters.join("&"));
+    request.onload = function() { load(null); };
+    request.send();
+  }
+
+  function load(cursor) {
+    var query = params(["sort", "order", "backend", "client", "cookie", "user", "limit"]);
+    if (cursor) {
+      query.push("cursor=" + encodeURIComponent(cursor));
+    }
+    var request = new XMLHttpRequest();
+    request.open("GET", "/api/connections?" + query.join("&"));
+    request.onload = function() {
+      if (request.status == 200) {
+        render(JSON.parse(request.responseText));
+      }
+    };
+    request.send();
+  }
+
+  form.onsubmit = function(event) {
+    event.preventDefault();
+    load(null);
+  };
+  document.getElementById("connectionFirst").onclick = function() { load(null); };
+  next.onclick = function() { load(nextCursor); };
+  document.getElementById("connectionKillMatching").onclick = killMatching;
+  load(null);
+})();
+</script>
+
+<h3>Backends</h3>
+<table border=1>
+   <tr>
+     <th>Backend</th>
+     <th>State</th>
+     <th>Successes</th>
+     <th>Failures</th>
+     <th>Consecutive Failures</th>
+    </tr>
+    <#list backends as backend>
     <tr>
-      <th>${connection.host}</th>
-      <td>${connection.id}</td>
-      <td>${connection.rdpClient}</td>
-      <td>${connection.clientToServerBandwidth} KiB/s</td>
-      <td>${connection.clientToServerBandwidthOneMinute} KiB/s</td>
-      <td>${connection.clientToServerBandwidthTotal} KiB</td>
-      <td>${connection.rdpServer}</td>
-      <td>${connection.serverToClientBandwidth} KiB/s</td>
-      <td>${connection.serverToClientBandwidthOneMinute} KiB/s</td>
-      <td>${connection.serverToClientBandwidthTotal} KiB</td>
-      <form action="/kill/${connection.id}" method="post">
-        <td><input type="submit" name="kill" value="Kill"/></td>
-      </form>
+      <th>${backend.backend}</th>
+      <td>${backend.state}</td>
+      <td>${backend.successCount}</td>
+      <td>${backend.failureCount}</td>
+      <td>${backend.consecutiveFailures}</td>
     </tr>
 	</#list>
 </table>
@@ -67,6 +199,29 @@
 </form>
 </#if>
 
+<h3>Drain</h3>
+<#if drain.state == "RUNNING">
+<button type="button" onclick="drain('/drain')">Drain</button>
+<#else>
+<table border=1>
+    <tr><th>State</th><td>${drain.state}</td></tr>
+    <tr><th>Remaining Sessions</th><td>${drain.remainingSessions}</td></tr>
+    <tr><th>c=>s Bytes/s</th><td>${drain.clientToServerBytesPerSecond}</td></tr>
+    <tr><th>s=>c Bytes/s</th><td>${drain.serverToClientBytesPerSecond}</td></tr>
+    <tr><th>Closed Idle</th><td>${drain.closedIdle}</td></tr>
+    <tr><th>Closed Forced</th><td>${drain.closedForced}</td></tr>
+</table>
+<button type="button" onclick="drain('/drain/cancel')">Cancel Drain</button>
+</#if>
+<script>
+  function drain(path) {
+    var request = new XMLHttpRequest();
+    request.open("POST", path);
+    request.onload = function() { location.reload(); };
+    request.send();
+  }
+</script>
+
 
 
 </body>
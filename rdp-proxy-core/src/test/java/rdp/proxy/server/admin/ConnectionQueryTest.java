@@ -0,0 +1,207 @@
+package rdp.proxy.server.admin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import rdp.proxy.server.admin.ConnectionQuery.Sort;
+import rdp.proxy.server.relay.ConnectionProxyInstance;
+import rdp.proxy.server.relay.SessionCounters;
+import rdp.proxy.server.relay.SessionRegistry;
+import rdp.proxy.server.relay.SocketInfo;
+import rdp.proxy.spi.cache.ResolverCache;
+
+public class ConnectionQueryTest {
+
+  @Test
+  public void testPagesById() throws Exception {
+    List<ConnectionProxyInstance> sessions = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      sessions.add(createSession(String.format("id%02d", i), "10.0.0." + (i % 2)));
+    }
+    ConnectionQuery query = ConnectionQuery.builder()
+                                           .sort(Sort.ID)
+                                           .descending(false)
+                                           .limit(10)
+                                           .build();
+    List<String> ids = new ArrayList<>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      ConnectionsPage page = query.toBuilder()
+                                  .cursor(cursor)
+                                  .build()
+                                  .run(sessions);
+      assertEquals(25, page.getMatched());
+      for (ConnectionInfoAdminPage connection : page.getConnections()) {
+        ids.add(connection.getId());
+      }
+      cursor = page.getNextCursor();
+      pages++;
+    } while (cursor != null);
+    assertEquals(3, pages);
+    assertEquals(25, ids.size());
+    for (int i = 0; i < 25; i++) {
+      assertEquals(String.format("id%02d", i), ids.get(i));
+    }
+  }
+
+  @Test
+  public void testFilterByClient() throws Exception {
+    List<ConnectionProxyInstance> sessions = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      sessions.add(createSession("id" + i, "10.0.0." + (i % 2)));
+    }
+    ConnectionsPage page = ConnectionQuery.builder()
+                                          .sort(Sort.ID)
+                                          .descending(false)
+                                          .client("10.0.0.1")
+                                          .build()
+                                          .run(sessions);
+    assertEquals(2, page.getMatched());
+    assertEquals("id1", page.getConnections()
+                            .get(0)
+                            .getId());
+    assertEquals("id3", page.getConnections()
+                            .get(1)
+                            .getId());
+    assertNull(page.getNextCursor());
+  }
+
+  @Test
+  public void testHostNameFilterIsNotResolved() throws Exception {
+    SessionRegistry registry = new SessionRegistry();
+    for (int i = 0; i < 3; i++) {
+      registry.add(createSession("id" + i, "10.0.0.1"));
+    }
+    AtomicInteger lookups = new AtomicInteger();
+    ResolverCache resolverCache = ResolverCache.getInstance();
+    resolverCache.setListener((cacheName, nanos, success) -> lookups.incrementAndGet());
+    try {
+      ConnectionQuery query = ConnectionQuery.builder()
+                                             .client("no-such-host.invalid")
+                                             .build();
+      assertEquals(3, query.candidates(registry)
+                           .size());
+      assertEquals(0, query.count(registry));
+      assertEquals(0, query.run(registry)
+                           .getMatched());
+      assertEquals(0, ConnectionQuery.builder()
+                                     .backend("no-such-host.invalid:3389")
+                                     .build()
+                                     .count(registry));
+    } finally {
+      resolverCache.setListener(null);
+    }
+    assertEquals(0, lookups.get());
+  }
+
+  @Test
+  public void testFilterByIpv6Client() throws Exception {
+    SessionRegistry registry = new SessionRegistry();
+    registry.add(createSession("id0", "::1"));
+    registry.add(createSession("id1", "10.0.0.1"));
+    for (String client : new String[] { "::1", "0:0:0:0:0:0:0:1" }) {
+      ConnectionQuery query = ConnectionQuery.builder()
+                                             .client(client)
+                                             .build();
+      assertEquals(1, query.candidates(registry)
+                           .size());
+      assertEquals(1, query.count(registry));
+      ConnectionsPage page = query.run(registry);
+      assertEquals(1, page.getMatched());
+      assertEquals("id0", page.getConnections()
+                              .get(0)
+                              .getId());
+    }
+  }
+
+  @Test
+  public void testRateChangesBetweenPages() throws Exception {
+    List<ConnectionProxyInstance> sessions = new ArrayList<>();
+    for (int i = 0; i < 6; i++) {
+      sessions.add(createSession("id" + i, "10.0.0.1"));
+    }
+    ConnectionQuery query = ConnectionQuery.builder()
+                                           .limit(2)
+                                           .build();
+    assertEquals(Sort.LIFETIME, query.getSort());
+    Set<String> ids = new LinkedHashSet<>();
+    String cursor = null;
+    int pages = 0;
+    do {
+      ConnectionsPage page = query.toBuilder()
+                                  .cursor(cursor)
+                                  .build()
+                                  .run(sessions);
+      for (ConnectionInfoAdminPage connection : page.getConnections()) {
+        ids.add(connection.getId());
+      }
+      cursor = page.getNextCursor();
+      pages++;
+      // turn the bandwidth order upside down before the next page
+      for (int i = 0; i < sessions.size(); i++) {
+        SessionCounters.Direction direction = sessions.get(i)
+                                                      .getCounters()
+                                                      .getClientToServer();
+        direction.add((pages % 2 == 0 ? i + 1 : sessions.size() - i) * 1_000_000L);
+        direction.getOneMinuteRate();
+      }
+    } while (cursor != null);
+    assertEquals(3, pages);
+    assertEquals(6, ids.size());
+
+    ConnectionsPage bandwidth = query.toBuilder()
+                                     .sort(Sort.BANDWIDTH)
+                                     .build()
+                                     .run(sessions);
+    assertEquals(2, bandwidth.getConnections()
+                             .size());
+    assertEquals(6, bandwidth.getMatched());
+    assertNull(bandwidth.getNextCursor());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBandwidthRejectsCursor() throws Exception {
+    List<ConnectionProxyInstance> sessions = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      sessions.add(createSession("id" + i, "10.0.0.1"));
+    }
+    ConnectionsPage page = ConnectionQuery.builder()
+                                          .sort(Sort.ID)
+                                          .limit(1)
+                                          .build()
+                                          .run(sessions);
+    assertNotNull(page.getNextCursor());
+    ConnectionQuery.builder()
+                   .sort(Sort.BANDWIDTH)
+                   .cursor(page.getNextCursor())
+                   .build()
+                   .run(sessions);
+  }
+
+  private static ConnectionProxyInstance createSession(String id, String client) throws Exception {
+    return ConnectionProxyInstance.builder()
+                                  .id(id)
+                                  .counters(new SessionCounters())
+                                  .client(SocketInfo.builder()
+                                                    .inetAddress(InetAddress.getByName(client))
+                                                    .port(50000)
+                                                    .build())
+                                  .server(SocketInfo.builder()
+                                                    .inetAddress(InetAddress.getLoopbackAddress())
+                                                    .port(3389)
+                                                    .build())
+                                  .build();
+  }
+
+}
@@ -0,0 +1,50 @@
+package rdp.proxy.server.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Snapshot;
+
+public class HdrReservoirTest {
+
+  @Test
+  public void testPercentilesWithinPrecision() {
+    HdrReservoir reservoir = new HdrReservoir();
+    for (long i = 1; i <= 100_000; i++) {
+      reservoir.update(i * 1000);
+    }
+    Snapshot snapshot = reservoir.getSnapshot();
+    assertEquals(100_000, snapshot.size());
+    assertEquals(50_000_000, snapshot.getMedian(), 50_000_000 / 64.0);
+    assertEquals(99_000_000, snapshot.get99thPercentile(), 99_000_000 / 64.0);
+    assertEquals(99_900_000, snapshot.get999thPercentile(), 99_900_000 / 64.0);
+    assertEquals(100_000_000, snapshot.getMax(), 100_000_000 / 64.0);
+    assertEquals(1000, snapshot.getMin(), 1000 / 64.0);
+  }
+
+  @Test
+  public void testOldValuesAgeOut() {
+    AtomicLong now = new AtomicLong();
+    HdrReservoir reservoir = new HdrReservoir(50, TimeUnit.NANOSECONDS, now::get);
+    reservoir.update(1_000_000);
+    now.addAndGet(60);
+    assertEquals(1, reservoir.getSnapshot()
+                             .size());
+    reservoir.update(10);
+    now.addAndGet(10);
+    assertEquals(2, reservoir.getSnapshot()
+                             .size());
+    now.addAndGet(50);
+    // the first value was recorded before the previous window started
+    assertEquals(1, reservoir.getSnapshot()
+                             .size());
+    now.addAndGet(60);
+    assertEquals(0, reservoir.getSnapshot()
+                             .size());
+  }
+
+}
@@ -0,0 +1,27 @@
+package rdp.proxy.server.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+public class LatencyRecorderTest {
+
+  @Test
+  public void testSamplingKeepsCount() {
+    MetricRegistry metrics = new MetricRegistry();
+    LatencyRecorder recorder = new LatencyRecorder(metrics, "test", 100);
+    for (int i = 0; i < 10_000; i++) {
+      recorder.record(1000);
+      recorder.stop(recorder.start());
+    }
+    Timer timer = metrics.timer("test");
+    assertEquals(20_000, timer.getCount());
+    assertTrue(timer.getSnapshot()
+                    .size() < 2_000);
+  }
+
+}
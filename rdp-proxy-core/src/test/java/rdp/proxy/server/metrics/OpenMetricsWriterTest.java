@@ -0,0 +1,40 @@
+package rdp.proxy.server.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class OpenMetricsWriterTest {
+
+  @Test
+  public void testNamesBecomeLabels() throws IOException {
+    MetricRegistry registry = new MetricRegistry();
+    registry.meter("rdp.connection.meter.server.to.client")
+            .mark(20);
+    registry.meter("rdp.connection.meter.client.to.server")
+            .mark(10);
+    registry.gauge("127.0.0.1:3389.backend.failure.gauge", () -> () -> 2);
+    registry.counter("rdp.connections.counter")
+            .inc();
+
+    StringWriter output = new StringWriter();
+    OpenMetricsWriter writer = new OpenMetricsWriter(output);
+    writer.writeRegistry(registry);
+    writer.finish();
+
+    assertEquals("# TYPE rdp_backend_failure gauge\n"
+        + "rdp_backend_failure{backend=\"127.0.0.1:3389\"} 2\n"
+        + "# TYPE rdp_connection counter\n"
+        + "rdp_connection_total{direction=\"client_to_server\"} 10\n"
+        + "rdp_connection_total{direction=\"server_to_client\"} 20\n"
+        + "# TYPE rdp_connections gauge\n"
+        + "rdp_connections 1\n"
+        + "# EOF\n", output.toString());
+  }
+
+}
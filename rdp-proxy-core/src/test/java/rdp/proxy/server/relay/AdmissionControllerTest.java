@@ -0,0 +1,60 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import rdp.proxy.server.RdpProxyConfig;
+
+public class AdmissionControllerTest {
+
+  @Test
+  public void testLimits() {
+    MetricRegistry metrics = new MetricRegistry();
+    RdpProxyConfig config = RdpProxyConfig.builder()
+                                          .rdpMaxSessions(3)
+                                          .rdpMaxHandshakes(2)
+                                          .build();
+    AdmissionController admission = new AdmissionController(config, metrics);
+    assertTrue(admission.tryAdmit());
+    assertTrue(admission.tryAdmit());
+    // both handshake slots taken
+    assertFalse(admission.tryAdmit());
+    admission.handshakeDone();
+    assertTrue(admission.tryAdmit());
+    admission.handshakeDone();
+    // three sessions
+    assertFalse(admission.tryAdmit());
+    admission.sessionClosed(false);
+    assertTrue(admission.tryAdmit());
+    assertEquals(4, metrics.counter(AdmissionController.RDP_ADMISSION_ADMITTED_COUNTER)
+                           .getCount());
+    assertEquals(2, metrics.counter(AdmissionController.RDP_ADMISSION_REJECTED_COUNTER)
+                           .getCount());
+  }
+
+  @Test
+  public void testNewSessionRate() {
+    RdpProxyConfig config = RdpProxyConfig.builder()
+                                          .rdpNewSessionRate(1)
+                                          .rdpNewSessionBurst(2)
+                                          .build();
+    AdmissionController admission = new AdmissionController(config, new MetricRegistry());
+    assertTrue(admission.tryAdmit());
+    assertTrue(admission.tryAdmit());
+    assertFalse(admission.tryAdmit());
+  }
+
+  @Test
+  public void testNegotiationFailure() {
+    byte[] pdu = AdmissionController.getNegotiationFailure();
+    assertEquals(pdu.length, ((pdu[2] & 0xFF) << 8) + (pdu[3] & 0xFF));
+    assertEquals(pdu.length - 5, pdu[4]);
+    assertEquals(AdmissionController.INCONSISTENT_FLAGS, pdu[15]);
+  }
+
+}
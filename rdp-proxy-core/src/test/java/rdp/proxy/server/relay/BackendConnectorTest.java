@@ -0,0 +1,40 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import rdp.proxy.spi.ConnectionInfo;
+
+public class BackendConnectorTest {
+
+  @Test
+  public void testEndpointsInterleaveFamilies() throws Exception {
+    ConnectionInfo v4a = new ConnectionInfo(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 3389);
+    ConnectionInfo v4b = new ConnectionInfo(InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 }), 3389);
+    ConnectionInfo v4c = new ConnectionInfo(InetAddress.getByAddress(new byte[] { 10, 0, 0, 3 }), 3389);
+    byte[] v6Address = new byte[16];
+    v6Address[15] = 1;
+    ConnectionInfo v6 = new ConnectionInfo(InetAddress.getByAddress(v6Address), 3389);
+
+    List<ConnectionInfo> endpoints = BackendConnector.getConnectEndpoints(Arrays.asList(v4a, v4b, v6, v4c));
+    assertEquals(Arrays.asList(v4a, v6, v4b, v4c), endpoints);
+
+    endpoints = BackendConnector.getConnectEndpoints(Arrays.asList(v6, v4a, v4b));
+    assertEquals(Arrays.asList(v6, v4a, v4b), endpoints);
+  }
+
+  @Test
+  public void testBackoff() {
+    assertEquals(500, BackendConnector.getBackoff(0, 500, 6000));
+    assertEquals(1000, BackendConnector.getBackoff(1, 500, 6000));
+    assertEquals(4000, BackendConnector.getBackoff(3, 500, 6000));
+    assertEquals(6000, BackendConnector.getBackoff(4, 500, 6000));
+    assertEquals(6000, BackendConnector.getBackoff(100, 500, 6000));
+  }
+
+}
@@ -0,0 +1,38 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import rdp.proxy.server.relay.BackendHealth.State;
+
+public class BackendHealthTest {
+
+  @Test
+  public void testCircuit() throws InterruptedException {
+    BackendHealth health = new BackendHealth(new InetSocketAddress("127.0.0.1", 3389), 2, 100);
+    assertFalse(health.recordFailure());
+    assertEquals(State.CLOSED, health.getState());
+    assertTrue(health.recordFailure());
+    assertEquals(State.OPEN, health.getState());
+    assertFalse(health.isAvailable());
+    assertFalse(health.recordFailure());
+
+    Thread.sleep(150);
+    assertEquals(State.HALF_OPEN, health.getState());
+    assertTrue(health.recordFailure());
+    assertEquals(State.OPEN, health.getState());
+
+    Thread.sleep(150);
+    health.recordSuccess();
+    assertEquals(State.CLOSED, health.getState());
+    assertEquals(0, health.getConsecutiveFailures());
+    assertEquals(1, health.getSuccessCount());
+    assertEquals(4, health.getFailureCount());
+  }
+
+}
@@ -0,0 +1,51 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class BufferPoolTest {
+
+  @Test
+  public void testSizeClassesAndReuse() throws IOException {
+    BufferPool pool = new BufferPool(true, Long.MAX_VALUE, new MetricRegistry());
+    ByteBuffer buffer = pool.acquire(10_000);
+    assertTrue(buffer.isDirect());
+    assertEquals(16384, buffer.capacity());
+    assertEquals(16384, pool.getLeasedBytes());
+    pool.release(buffer);
+    assertEquals(0, pool.getLeasedBytes());
+    assertEquals(16384, pool.getPooledBytes());
+    assertSame(buffer, pool.acquire(16000));
+    assertEquals(0, pool.getPooledBytes());
+    assertEquals(1024, pool.acquire(1).capacity());
+    assertEquals(16384 + 1024, pool.getPeakLeasedBytes());
+  }
+
+  @Test
+  public void testCapEvictsPooledBeforeFailing() throws IOException {
+    BufferPool pool = new BufferPool(false, 8192, new MetricRegistry());
+    ByteBuffer small = pool.acquire(4096);
+    pool.release(small);
+    ByteBuffer large = pool.acquire(8192);
+    assertEquals(0, pool.getPooledBytes());
+    assertEquals(8192, pool.getLeasedBytes());
+    try {
+      pool.acquire(1024);
+      fail();
+    } catch (IOException e) {
+      // cap reached
+    }
+    pool.release(large);
+    assertEquals(1024, pool.acquire(1024).capacity());
+  }
+
+}
@@ -0,0 +1,60 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+  @Test
+  public void testExpireAndCancel() throws Exception {
+    try (HashedWheelTimer timer = new HashedWheelTimer("test-timer-%d", 10, TimeUnit.MILLISECONDS, 8)) {
+      AtomicInteger cancelledRuns = new AtomicInteger();
+      HashedWheelTimer.Timeout cancelled = timer.newTimeout(() -> cancelledRuns.incrementAndGet(), 50,
+          TimeUnit.MILLISECONDS);
+      // more than one round of the 8 bucket wheel
+      CountDownLatch latch = new CountDownLatch(1);
+      long start = System.nanoTime();
+      HashedWheelTimer.Timeout expired = timer.newTimeout(() -> latch.countDown(), 200, TimeUnit.MILLISECONDS);
+      assertTrue(cancelled.cancel());
+      assertFalse(cancelled.cancel());
+
+      assertTrue(latch.await(5, TimeUnit.SECONDS));
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+      assertTrue(expired.isExpired());
+      assertFalse(expired.cancel());
+      assertEquals(0, cancelledRuns.get());
+      assertEquals(0, timer.getPendingTimeouts());
+    }
+  }
+
+  @Test
+  public void testManyPendingTimeouts() throws Exception {
+    try (HashedWheelTimer timer = new HashedWheelTimer("test-timer-%d", 10, TimeUnit.MILLISECONDS, 512)) {
+      int count = 200_000;
+      HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[count];
+      AtomicInteger runs = new AtomicInteger();
+      for (int i = 0; i < count; i++) {
+        timeouts[i] = timer.newTimeout(() -> runs.incrementAndGet(), TimeUnit.MINUTES.toMillis(10),
+            TimeUnit.MILLISECONDS);
+      }
+      assertEquals(count, timer.getPendingTimeouts());
+      for (int i = 0; i < count; i += 2) {
+        timeouts[i].cancel();
+      }
+      long until = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+      while (timer.getPendingTimeouts() != count / 2 && System.currentTimeMillis() < until) {
+        Thread.sleep(10);
+      }
+      assertEquals(count / 2, timer.getPendingTimeouts());
+      assertEquals(0, runs.get());
+    }
+  }
+
+}
@@ -0,0 +1,52 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class NioReactorTest {
+
+  @Test
+  public void testCloseRunsQueuedTasksAndClosesSelector() throws Exception {
+    try (HashedWheelTimer timer = new HashedWheelTimer("test-timer-%d", 10, TimeUnit.MILLISECONDS, 8);
+        ServerSocketChannel channel = ServerSocketChannel.open()) {
+      NioReactor reactor = new NioReactor(timer);
+      channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      channel.configureBlocking(false);
+      AtomicInteger closedHandlers = new AtomicInteger();
+      channel.register(reactor.getSelector(), SelectionKey.OP_ACCEPT, new NioReactor.Handler() {
+        @Override
+        public void handle(SelectionKey key) {
+        }
+
+        @Override
+        public void close() {
+          closedHandlers.incrementAndGet();
+        }
+      });
+      AtomicInteger tasks = new AtomicInteger();
+      reactor.execute(() -> tasks.incrementAndGet());
+      // closed before the loop ever ran, like sessions closed by the relay
+      // right before it closes its reactors
+      reactor.close();
+      Thread thread = new Thread(reactor);
+      thread.start();
+      thread.join(5000);
+
+      assertFalse(thread.isAlive());
+      assertEquals(1, tasks.get());
+      assertEquals(1, closedHandlers.get());
+      assertFalse(reactor.getSelector()
+                         .isOpen());
+    }
+  }
+
+}
@@ -0,0 +1,184 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class PduFramerTest {
+
+  private final BufferPool _bufferPool = new BufferPool(false, Long.MAX_VALUE, new MetricRegistry());
+
+  @Test
+  public void testPduLengths() {
+    assertEquals(PduFramer.NEED_MORE, PduFramer.getPduLength(new byte[] { 3, 0, 0 }, 0, 3));
+    assertEquals(19, PduFramer.getPduLength(new byte[] { 3, 0, 0, 19 }, 0, 4));
+    assertEquals(PduFramer.UNKNOWN, PduFramer.getPduLength(new byte[] { 3, 0, 0, 2 }, 0, 4));
+    assertEquals(0x0105, PduFramer.getPduLength(new byte[] { 23, 3, 3, 1, 0 }, 0, 5));
+    assertEquals(12, PduFramer.getPduLength(new byte[] { (byte) 96, 12 }, 0, 2));
+    assertEquals(PduFramer.NEED_MORE, PduFramer.getPduLength(new byte[] { (byte) 96, (byte) 0x81 }, 0, 2));
+    assertEquals(0x0120, PduFramer.getPduLength(new byte[] { (byte) 96, (byte) 0x81, 0x20 }, 0, 3));
+    assertEquals(PduFramer.UNKNOWN, PduFramer.getPduLength(new byte[] { 99 }, 0, 1));
+  }
+
+  @Test
+  public void testFirstMessageThenBatches() throws IOException {
+    Random random = new Random(1);
+    List<byte[]> pdus = new ArrayList<>();
+    pdus.add(tpkt(random, 43));
+    for (int i = 0; i < 500; i++) {
+      switch (i % 3) {
+      case 0:
+        pdus.add(tpkt(random, 4 + random.nextInt(3000)));
+        break;
+      case 1:
+        pdus.add(tls(random, random.nextInt(20000)));
+        break;
+      default:
+        pdus.add(fastPath(random, 3 + random.nextInt(400)));
+        break;
+      }
+    }
+    byte[] stream = concat(pdus);
+
+    PduFramer framer = new PduFramer(new ChunkedInputStream(stream, random), _bufferPool, 1000);
+    assertTrue(framer.nextFirstMessage());
+    assertEquals(1, framer.getPduCount());
+    assertArrayEquals(pdus.get(0), copy(framer));
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    int pduCount = 1;
+    while (framer.next()) {
+      assertEquals(0, remainderAfterWholePdus(framer));
+      output.write(framer.getBuffer(), framer.getOffset(), framer.getLength());
+      pduCount += framer.getPduCount();
+    }
+    assertEquals(pdus.size(), pduCount);
+    byte[] expected = concat(pdus.subList(1, pdus.size()));
+    assertArrayEquals(expected, output.toByteArray());
+
+    framer.close();
+    assertEquals(0, _bufferPool.getLeasedBytes());
+  }
+
+  @Test
+  public void testUnknownClient() throws IOException {
+    PduFramer framer = new PduFramer(new ByteArrayInputStream(new byte[] { 22, 3, 1, 0, 1, 0 }), _bufferPool, 100);
+    assertFalse(framer.nextFirstMessage());
+  }
+
+  @Test
+  public void testUnknownMessageAfterCompletePdus() throws IOException {
+    byte[] stream = new byte[] { 3, 0, 0, 4, 3, 0, 0, 4, 99, 1, 2, 3 };
+    PduFramer framer = new PduFramer(new ByteArrayInputStream(stream), _bufferPool, 100);
+    assertTrue(framer.next());
+    assertEquals(2, framer.getPduCount());
+    assertEquals(8, framer.getLength());
+    assertFalse(framer.next());
+  }
+
+  private static int remainderAfterWholePdus(PduFramer framer) {
+    int offset = framer.getOffset();
+    int end = offset + framer.getLength();
+    int count = 0;
+    while (offset < end) {
+      offset += PduFramer.getPduLength(framer.getBuffer(), offset, end - offset);
+      count++;
+    }
+    assertEquals(framer.getPduCount(), count);
+    return offset - end;
+  }
+
+  private static byte[] copy(PduFramer framer) {
+    byte[] bs = new byte[framer.getLength()];
+    System.arraycopy(framer.getBuffer(), framer.getOffset(), bs, 0, bs.length);
+    return bs;
+  }
+
+  private static byte[] tpkt(Random random, int length) {
+    byte[] pdu = randomBytes(random, length);
+    pdu[0] = 3;
+    pdu[1] = 0;
+    pdu[2] = (byte) (length >>> 8);
+    pdu[3] = (byte) length;
+    return pdu;
+  }
+
+  private static byte[] tls(Random random, int payloadLength) {
+    byte[] pdu = randomBytes(random, payloadLength + 5);
+    pdu[0] = 23;
+    pdu[1] = 3;
+    pdu[2] = 3;
+    pdu[3] = (byte) (payloadLength >>> 8);
+    pdu[4] = (byte) payloadLength;
+    return pdu;
+  }
+
+  private static byte[] fastPath(Random random, int length) {
+    byte[] pdu = randomBytes(random, length);
+    pdu[0] = (byte) 132;
+    if (length < 0x80) {
+      pdu[1] = (byte) length;
+    } else {
+      pdu[1] = (byte) (0x80 | (length >>> 8));
+      pdu[2] = (byte) length;
+    }
+    return pdu;
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bs = new byte[length];
+    random.nextBytes(bs);
+    return bs;
+  }
+
+  private static byte[] concat(List<byte[]> pdus) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (byte[] pdu : pdus) {
+      output.write(pdu, 0, pdu.length);
+    }
+    return output.toByteArray();
+  }
+
+  private static class ChunkedInputStream extends InputStream {
+
+    private final byte[] _bytes;
+    private final Random _random;
+    private int _position;
+
+    ChunkedInputStream(byte[] bytes, Random random) {
+      _bytes = bytes;
+      _random = random;
+    }
+
+    @Override
+    public int read() throws IOException {
+      throw new IOException("single byte reads are not expected");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (_position == _bytes.length) {
+        return -1;
+      }
+      int count = Math.min(Math.min(len, 1 + _random.nextInt(5000)), _bytes.length - _position);
+      System.arraycopy(_bytes, _position, b, off, count);
+      _position += count;
+      return count;
+    }
+
+  }
+
+}
@@ -0,0 +1,117 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import rdp.proxy.server.RdpProxyConfig;
+
+public class SessionDrainerTest {
+
+  @Test
+  public void testIdleSessionsClosedAfterDeadline() throws Exception {
+    RdpProxyConfig config = RdpProxyConfig.builder()
+                                          .rdpDrainIdleTime(TimeUnit.MINUTES.toMillis(1))
+                                          .rdpDrainForceTime(TimeUnit.HOURS.toMillis(1))
+                                          .build();
+    TestRelay relay = new TestRelay();
+    for (int i = 0; i < 3; i++) {
+      relay._sessions.add(ConnectionProxyInstance.builder()
+                                                 .id("id" + i)
+                                                 .counters(new SessionCounters())
+                                                 .build());
+    }
+    try (SessionDrainer drainer = new SessionDrainer(config, relay)) {
+      drainer.start(0L);
+      assertFalse(relay._listening);
+      // the first tick runs right away, none of the sessions is idle yet
+      Thread.sleep(200);
+      DrainProgress progress = drainer.getProgress();
+      assertEquals(SessionDrainer.State.DRAINING, progress.getState());
+      assertEquals(3, progress.getRemainingSessions());
+      assertEquals(0, progress.getClosedIdle());
+
+      drainer.cancel();
+      config = config.toBuilder()
+                     .rdpDrainIdleTime(0)
+                     .build();
+    }
+    try (SessionDrainer drainer = new SessionDrainer(config, relay)) {
+      drainer.start(0L);
+      waitForDrained(drainer);
+      DrainProgress progress = drainer.getProgress();
+      assertEquals(SessionDrainer.State.DRAINED, progress.getState());
+      assertEquals(3, progress.getClosedIdle());
+      assertEquals(3, relay._killed.size());
+    }
+  }
+
+  private static void waitForDrained(SessionDrainer drainer) throws InterruptedException {
+    long until = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+    while (drainer.getState() != SessionDrainer.State.DRAINED && System.currentTimeMillis() < until) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static class TestRelay implements RdpRelay {
+
+    final SessionRegistry _sessions = new SessionRegistry();
+    final List<String> _killed = new ArrayList<>();
+    boolean _listening = true;
+
+    @Override
+    public void close() throws IOException {
+
+    }
+
+    @Override
+    public boolean isListening() {
+      return _listening;
+    }
+
+    @Override
+    public void startListening() {
+      _listening = true;
+    }
+
+    @Override
+    public void stopListening() {
+      _listening = false;
+    }
+
+    @Override
+    public Map<String, ConnectionProxyInstance> getConnectionMap() {
+      return _sessions.asMap();
+    }
+
+    @Override
+    public SessionRegistry getSessionRegistry() {
+      return _sessions;
+    }
+
+    @Override
+    public void kill(String id) {
+      _killed.add(id);
+      _sessions.remove(id);
+    }
+
+    @Override
+    public BackendHealthRegistry getBackendHealthRegistry() {
+      return null;
+    }
+
+    @Override
+    public BandwidthShaper getBandwidthShaper() {
+      return null;
+    }
+
+  }
+
+}
@@ -0,0 +1,58 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+public class SessionRegistryTest {
+
+  @Test
+  public void testIndexes() throws Exception {
+    SessionRegistry registry = new SessionRegistry();
+    for (int i = 0; i < 6; i++) {
+      registry.add(createSession("id" + i, "user" + (i % 3), "10.0.0." + (i % 2), 3389 + (i % 2)));
+    }
+    assertEquals(6, registry.size());
+    assertEquals(2, registry.countByUser("user1"));
+    assertEquals(1, registry.countByCookie("cookie-id4"));
+    assertEquals(3, registry.countByClient(InetAddress.getByName("10.0.0.1")));
+    assertEquals(3, registry.countByBackend(new InetSocketAddress(InetAddress.getLoopbackAddress(), 3389)));
+    assertEquals(0, registry.countByUser("nobody"));
+    assertTrue(registry.getByUser("nobody")
+                       .isEmpty());
+
+    registry.remove("id1");
+    registry.remove("id4");
+    assertNull(registry.get("id1"));
+    assertEquals(4, registry.size());
+    assertEquals(0, registry.countByUser("user1"));
+    assertEquals(0, registry.countByCookie("cookie-id4"));
+    assertEquals(2, registry.countByClient(InetAddress.getByName("10.0.0.1")));
+    assertEquals(2, registry.countByBackend(new InetSocketAddress(InetAddress.getLoopbackAddress(), 3389)));
+    assertEquals(2, registry.getByUser("user0")
+                            .size());
+  }
+
+  private static ConnectionProxyInstance createSession(String id, String user, String client, int backendPort)
+      throws Exception {
+    return ConnectionProxyInstance.builder()
+                                  .id(id)
+                                  .user(user)
+                                  .cookie("cookie-" + id)
+                                  .client(SocketInfo.builder()
+                                                    .inetAddress(InetAddress.getByName(client))
+                                                    .port(50000)
+                                                    .build())
+                                  .server(SocketInfo.builder()
+                                                    .inetAddress(InetAddress.getLoopbackAddress())
+                                                    .port(backendPort)
+                                                    .build())
+                                  .build();
+  }
+
+}
@@ -0,0 +1,42 @@
+package rdp.proxy.server.relay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+  @Test
+  public void testBurstThenLimited() {
+    TokenBucket bucket = new TokenBucket(10, 5);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(bucket.tryAcquire(1));
+    }
+    assertFalse(bucket.tryAcquire(1));
+  }
+
+  @Test
+  public void testReserveReturnsTheWait() {
+    TokenBucket bucket = new TokenBucket(1000, 1000);
+    assertEquals(0, bucket.reserve(1000));
+    long wait = bucket.reserve(500);
+    // 500 tokens at 1000/s, less the little time that passed
+    assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400));
+    assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500));
+  }
+
+  @Test
+  public void testUnlimited() {
+    TokenBucket bucket = new TokenBucket(0, 1);
+    assertTrue(bucket.isUnlimited());
+    assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+    bucket.setRate(1, 1);
+    assertTrue(bucket.tryAcquire(1));
+    assertFalse(bucket.tryAcquire(1));
+  }
+
+}
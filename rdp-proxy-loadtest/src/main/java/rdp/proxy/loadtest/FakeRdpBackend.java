@@ -0,0 +1,195 @@
+package rdp.proxy.loadtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rdp.proxy.server.relay.BufferPool;
+import rdp.proxy.server.relay.PduFramer;
+import rdp.proxy.server.util.Utils;
+
+/**
+ * Plays the Windows host behind the proxy. It confirms the X.224 connection
+ * request and then either echoes every client PDU back or generates screen
+ * updates following the {@link LoadProfile}. Either way the client to server
+ * latency of every stamped PDU is recorded.
+ */
+public class FakeRdpBackend implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FakeRdpBackend.class);
+
+  public enum Mode {
+    ECHO, GENERATE
+  }
+
+  private final ServerSocket _serverSocket;
+  private final Mode _mode;
+  private final LoadProfile _profile;
+  private final LoadStats _stats;
+  private final BufferPool _bufferPool;
+  private final int _bufferSize;
+  private final ExecutorService _service;
+  private final ScheduledExecutorService _scheduler;
+  private final Set<Socket> _sockets = ConcurrentHashMap.newKeySet();
+  private volatile boolean _closed;
+
+  public FakeRdpBackend(InetSocketAddress bindAddress, Mode mode, LoadProfile profile, LoadStats stats,
+      BufferPool bufferPool, int bufferSize, ExecutorService service, ScheduledExecutorService scheduler)
+      throws IOException {
+    _serverSocket = new ServerSocket();
+    _serverSocket.bind(bindAddress, 1024);
+    _mode = mode;
+    _profile = profile;
+    _stats = stats;
+    _bufferPool = bufferPool;
+    _bufferSize = bufferSize;
+    _service = service;
+    _scheduler = scheduler;
+  }
+
+  public InetSocketAddress getAddress() {
+    InetAddress address = _serverSocket.getInetAddress();
+    if (address.isAnyLocalAddress()) {
+      address = InetAddress.getLoopbackAddress();
+    }
+    return new InetSocketAddress(address, _serverSocket.getLocalPort());
+  }
+
+  public void start() {
+    _service.submit(() -> {
+      while (!_closed) {
+        try {
+          Socket socket = _serverSocket.accept();
+          _sockets.add(socket);
+          _service.submit(() -> handle(socket));
+        } catch (IOException e) {
+          if (!_closed) {
+            LOGGER.error("Unknown error while accepting", e);
+          }
+        }
+      }
+    });
+  }
+
+  private void handle(Socket socket) {
+    Update update = null;
+    try (PduFramer framer = new PduFramer(socket.getInputStream(), _bufferPool, _bufferSize)) {
+      socket.setTcpNoDelay(true);
+      OutputStream output = socket.getOutputStream();
+      if (!framer.nextFirstMessage()) {
+        return;
+      }
+      write(output, Pdus.createConnectionConfirm(), 0, 19);
+      if (_mode == Mode.GENERATE && _profile.getUpdateInterval() > 0) {
+        update = new Update(output);
+        update.schedule();
+      }
+      while (framer.next()) {
+        byte[] buffer = framer.getBuffer();
+        int offset = framer.getOffset();
+        int end = offset + framer.getLength();
+        long now = System.nanoTime();
+        for (int position = offset; position < end;) {
+          _stats.record(LoadStats.CLIENT_TO_SERVER, now - Pdus.readStamp(buffer, position));
+          position += PduFramer.getPduLength(buffer, position, end - position);
+        }
+        if (_mode == Mode.ECHO) {
+          write(output, buffer, offset, framer.getLength());
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.debug("Session ended", e);
+    } finally {
+      if (update != null) {
+        update.cancel();
+      }
+      _sockets.remove(socket);
+      Utils.closeQuietly(socket);
+    }
+  }
+
+  private void write(OutputStream output, byte[] buffer, int offset, int length) throws IOException {
+    synchronized (output) {
+      output.write(buffer, offset, length);
+    }
+  }
+
+  /**
+   * One frame of screen updates per interval, written as a single burst of
+   * records stamped just before the write.
+   */
+  private class Update implements Runnable {
+
+    private final OutputStream _output;
+    private final Random _random = new Random(ThreadLocalRandom.current()
+                                                               .nextLong());
+    private volatile boolean _cancelled;
+
+    Update(OutputStream output) {
+      _output = output;
+    }
+
+    void schedule() {
+      if (!_cancelled && !_closed) {
+        long interval = _profile.getUpdateInterval();
+        _scheduler.schedule(this, interval / 2 + (long) (_random.nextDouble() * interval), TimeUnit.MILLISECONDS);
+      }
+    }
+
+    void cancel() {
+      _cancelled = true;
+    }
+
+    @Override
+    public void run() {
+      if (_cancelled || _closed) {
+        return;
+      }
+      int[] sizes = new int[Math.max(1, _profile.getUpdateBurst())];
+      int total = 0;
+      for (int i = 0; i < sizes.length; i++) {
+        sizes[i] = Pdus.nextSize(_random, _profile.getUpdateMinSize(), _profile.getUpdateMaxSize());
+        total += sizes[i];
+      }
+      byte[] buffer = new byte[total];
+      long stamp = System.nanoTime();
+      int offset = 0;
+      for (int size : sizes) {
+        Pdus.writeRecord(buffer, offset, size, stamp);
+        offset += size;
+      }
+      try {
+        write(_output, buffer, 0, total);
+        schedule();
+      } catch (IOException e) {
+        LOGGER.debug("Update failed", e);
+        cancel();
+      }
+    }
+
+  }
+
+  @Override
+  public void close() {
+    _closed = true;
+    Utils.closeQuietly(_serverSocket);
+    for (Socket socket : _sockets) {
+      Utils.closeQuietly(socket);
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+package rdp.proxy.loadtest;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import rdp.proxy.server.relay.BufferPool;
+import rdp.proxy.server.relay.PduFramer;
+import rdp.proxy.server.util.Utils;
+
+/**
+ * Plays mstsc for one session: sends the X.224 connection request with a
+ * mstshash cookie for its user, waits for the confirm and then sends input
+ * PDUs following the {@link LoadProfile} until closed. Every stamped PDU
+ * coming back is recorded under the given histogram, the round trip when the
+ * backend echoes and the server to client latency when it generates updates.
+ */
+public class FakeRdpClient implements Runnable, Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FakeRdpClient.class);
+
+  private final InetSocketAddress _proxyAddress;
+  private final String _user;
+  private final LoadProfile _profile;
+  private final LoadStats _stats;
+  private final String _receivedHistogram;
+  private final BufferPool _bufferPool;
+  private final int _bufferSize;
+  private final ScheduledExecutorService _scheduler;
+  private final Random _random;
+  private final Socket _socket = new Socket();
+  private volatile boolean _closed;
+  private OutputStream _output;
+
+  public FakeRdpClient(InetSocketAddress proxyAddress, String user, LoadProfile profile, LoadStats stats,
+      String receivedHistogram, BufferPool bufferPool, int bufferSize, ScheduledExecutorService scheduler) {
+    _proxyAddress = proxyAddress;
+    _user = user;
+    _profile = profile;
+    _stats = stats;
+    _receivedHistogram = receivedHistogram;
+    _bufferPool = bufferPool;
+    _bufferSize = bufferSize;
+    _scheduler = scheduler;
+    _random = new Random(user.hashCode());
+  }
+
+  public String getUser() {
+    return _user;
+  }
+
+  @Override
+  public void run() {
+    long start = System.nanoTime();
+    boolean opened = false;
+    try {
+      _socket.setTcpNoDelay(true);
+      _socket.connect(_proxyAddress);
+      _output = _socket.getOutputStream();
+      byte[] request = Pdus.createConnectionRequest(_user);
+      write(request, 0, request.length);
+      DataInputStream input = new DataInputStream(_socket.getInputStream());
+      if (!Pdus.readConnectionConfirm(input)) {
+        _stats.rejected();
+        return;
+      }
+      _stats.opened(System.nanoTime() - start);
+      opened = true;
+      scheduleInput();
+      try (PduFramer framer = new PduFramer(input, _bufferPool, _bufferSize)) {
+        while (framer.next()) {
+          byte[] buffer = framer.getBuffer();
+          int offset = framer.getOffset();
+          int end = offset + framer.getLength();
+          long now = System.nanoTime();
+          for (int position = offset; position < end;) {
+            _stats.record(_receivedHistogram, now - Pdus.readStamp(buffer, position));
+            position += PduFramer.getPduLength(buffer, position, end - position);
+          }
+          _stats.received(framer.getLength());
+        }
+      }
+      if (!_closed) {
+        _stats.dropped();
+      }
+    } catch (IOException e) {
+      if (!_closed) {
+        LOGGER.debug("Session {} failed", _user, e);
+        if (opened) {
+          _stats.dropped();
+        } else {
+          _stats.failed();
+        }
+      }
+    } finally {
+      if (opened) {
+        _stats.closed();
+      }
+      close();
+    }
+  }
+
+  private void scheduleInput() {
+    long interval = _profile.getInputInterval();
+    if (interval > 0 && !_closed) {
+      _scheduler.schedule(this::sendInput, interval / 2 + (long) (_random.nextDouble() * interval),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void sendInput() {
+    if (_closed) {
+      return;
+    }
+    int size = Pdus.nextSize(_random, _profile.getInputMinSize(), _profile.getInputMaxSize());
+    byte[] record = new byte[size];
+    Pdus.writeRecord(record, 0, size, System.nanoTime());
+    try {
+      write(record, 0, size);
+      scheduleInput();
+    } catch (IOException e) {
+      LOGGER.debug("Input for {} failed", _user, e);
+    }
+  }
+
+  private void write(byte[] buffer, int offset, int length) throws IOException {
+    synchronized (_socket) {
+      _output.write(buffer, offset, length);
+    }
+    _stats.sent(length);
+  }
+
+  @Override
+  public void close() {
+    _closed = true;
+    Utils.closeQuietly(_socket);
+  }
+
+}
@@ -0,0 +1,93 @@
+package rdp.proxy.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * PDU sizes and timing of one simulated session. Sizes are whole TLS records
+ * including the header, intervals are means in milliseconds and every wait is
+ * jittered between half and one and a half of the mean so sessions do not send
+ * in lock step. An interval of 0 turns that direction off.
+ */
+@Value
+@Builder(toBuilder = true)
+public class LoadProfile {
+
+  /**
+   * Hardly any input, a clock or cursor blink on screen.
+   */
+  public static final LoadProfile IDLE = LoadProfile.builder()
+                                                    .name("IDLE")
+                                                    .inputMinSize(40)
+                                                    .inputMaxSize(60)
+                                                    .inputInterval(5_000)
+                                                    .updateMinSize(100)
+                                                    .updateMaxSize(400)
+                                                    .updateInterval(1_000)
+                                                    .updateBurst(1)
+                                                    .build();
+
+  /**
+   * Typing and scrolling in an office application.
+   */
+  public static final LoadProfile OFFICE = LoadProfile.builder()
+                                                      .name("OFFICE")
+                                                      .inputMinSize(40)
+                                                      .inputMaxSize(120)
+                                                      .inputInterval(150)
+                                                      .updateMinSize(200)
+                                                      .updateMaxSize(6_000)
+                                                      .updateInterval(100)
+                                                      .updateBurst(2)
+                                                      .build();
+
+  /**
+   * Full screen video, a frame of full TLS records 30 times a second.
+   */
+  public static final LoadProfile VIDEO = LoadProfile.builder()
+                                                     .name("VIDEO")
+                                                     .inputMinSize(40)
+                                                     .inputMaxSize(120)
+                                                     .inputInterval(500)
+                                                     .updateMinSize(16_389)
+                                                     .updateMaxSize(16_389)
+                                                     .updateInterval(33)
+                                                     .updateBurst(8)
+                                                     .build();
+
+  private static final Map<String, LoadProfile> PROFILES = new LinkedHashMap<>();
+
+  static {
+    for (LoadProfile profile : new LoadProfile[] { IDLE, OFFICE, VIDEO }) {
+      PROFILES.put(profile.getName(), profile);
+    }
+  }
+
+  String name;
+
+  int inputMinSize;
+
+  int inputMaxSize;
+
+  long inputInterval;
+
+  int updateMinSize;
+
+  int updateMaxSize;
+
+  long updateInterval;
+
+  int updateBurst;
+
+  public static LoadProfile get(String name) {
+    LoadProfile profile = PROFILES.get(name.toUpperCase());
+    if (profile == null) {
+      throw new IllegalArgumentException("Unknown profile " + name + ", known profiles " + PROFILES.keySet());
+    }
+    return profile;
+  }
+
+}
@@ -0,0 +1,113 @@
+package rdp.proxy.loadtest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+import rdp.proxy.server.metrics.HdrReservoir;
+
+/**
+ * What the simulated clients and backends measure, shared by all sessions.
+ * Latencies are kept in nanoseconds in {@link HdrReservoir} backed histograms
+ * whose window spans the whole run.
+ */
+public class LoadStats {
+
+  public static final String CONNECT = "connect";
+  public static final String CLIENT_TO_SERVER = "client.to.server";
+  public static final String SERVER_TO_CLIENT = "server.to.client";
+  public static final String ROUND_TRIP = "round.trip";
+
+  private final MetricRegistry _metrics = new MetricRegistry();
+  private final AtomicInteger _active = new AtomicInteger();
+  private final LongAdder _opened = new LongAdder();
+  private final LongAdder _rejected = new LongAdder();
+  private final LongAdder _failed = new LongAdder();
+  private final LongAdder _dropped = new LongAdder();
+  private final LongAdder _bytesSent = new LongAdder();
+  private final LongAdder _bytesReceived = new LongAdder();
+
+  public LoadStats() {
+    for (String name : new String[] { CONNECT, CLIENT_TO_SERVER, SERVER_TO_CLIENT, ROUND_TRIP }) {
+      _metrics.histogram(name, () -> new Histogram(new HdrReservoir(1, TimeUnit.DAYS)));
+    }
+  }
+
+  public MetricRegistry getMetrics() {
+    return _metrics;
+  }
+
+  public Histogram getHistogram(String name) {
+    return _metrics.histogram(name);
+  }
+
+  public void record(String name, long nanos) {
+    _metrics.histogram(name)
+            .update(nanos);
+  }
+
+  public void opened(long connectNanos) {
+    _opened.increment();
+    _active.incrementAndGet();
+    record(CONNECT, connectNanos);
+  }
+
+  public void rejected() {
+    _rejected.increment();
+  }
+
+  public void failed() {
+    _failed.increment();
+  }
+
+  /**
+   * An open session that ended without the client closing it.
+   */
+  public void dropped() {
+    _dropped.increment();
+  }
+
+  public void closed() {
+    _active.decrementAndGet();
+  }
+
+  public void sent(long bytes) {
+    _bytesSent.add(bytes);
+  }
+
+  public void received(long bytes) {
+    _bytesReceived.add(bytes);
+  }
+
+  public int getActive() {
+    return _active.get();
+  }
+
+  public long getOpened() {
+    return _opened.sum();
+  }
+
+  public long getRejected() {
+    return _rejected.sum();
+  }
+
+  public long getFailed() {
+    return _failed.sum();
+  }
+
+  public long getDropped() {
+    return _dropped.sum();
+  }
+
+  public long getBytesSent() {
+    return _bytesSent.sum();
+  }
+
+  public long getBytesReceived() {
+    return _bytesReceived.sum();
+  }
+
+}
@@ -0,0 +1,319 @@
+package rdp.proxy.loadtest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import rdp.proxy.server.RdpProxy;
+import rdp.proxy.server.RdpProxyConfig;
+import rdp.proxy.server.relay.BufferPool;
+import rdp.proxy.server.relay.RdpConnectionRelay;
+import rdp.proxy.server.util.Utils;
+import rdp.proxy.server.util.VirtualThreads;
+
+/**
+ * Drives thousands of simulated sessions through a proxy, by default one
+ * started in this JVM with {@link LoadTestRdpStore} sending every user to the
+ * fake backends. Sessions are opened at the ramp rate, held open for the
+ * duration and then closed. Reports the sessions opened per second, the
+ * latencies seen by the clients and backends, the proxy's own relay timers
+ * and the CPU and heap used per session.
+ *
+ * The CPU and heap figures are for this whole JVM, so with the in-process
+ * proxy they include the simulated clients and backends as well. Point
+ * RDP_LOAD_PROXY_ADDRESS at a proxy running on its own to keep them apart.
+ */
+public class LoadTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+
+  private static final long PROXY_WAIT = TimeUnit.SECONDS.toNanos(10);
+  private static final long SETTLE_WAIT = TimeUnit.SECONDS.toNanos(30);
+  private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  public static void main(String[] args) throws Exception {
+    new LoadTest(LoadTestConfig.getConfig()).run();
+  }
+
+  private final LoadTestConfig _config;
+  private final LoadProfile _profile;
+  private final LoadStats _stats = new LoadStats();
+  private final MemoryMXBean _memory = ManagementFactory.getMemoryMXBean();
+  private final com.sun.management.OperatingSystemMXBean _os = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+  public LoadTest(LoadTestConfig config) {
+    _config = config;
+    _profile = config.getLoadProfile();
+  }
+
+  public void run() throws Exception {
+    LOGGER.info("Load test {} {}", _config, _profile);
+    BufferPool bufferPool = new BufferPool(false, Long.MAX_VALUE, _stats.getMetrics());
+    ExecutorService service = VirtualThreads.isSupported() ? VirtualThreads.newExecutorService("rdp-load-")
+        : Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("rdp-load-%d")
+                                                                  .setDaemon(true)
+                                                                  .build());
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(_config.getSchedulerThreads(),
+        new ThreadFactoryBuilder().setNameFormat("rdp-load-scheduler-%d")
+                                  .setDaemon(true)
+                                  .build());
+    List<FakeRdpBackend> backends = new ArrayList<>();
+    List<FakeRdpClient> clients = new ArrayList<>();
+    RdpProxy proxy = null;
+    try {
+      StringBuilder backendAddresses = new StringBuilder();
+      for (int i = 0; i < _config.getBackends(); i++) {
+        int port = _config.getBackendPort() == 0 ? 0 : _config.getBackendPort() + i;
+        FakeRdpBackend backend = new FakeRdpBackend(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+            _config.getBackendMode(), _profile, _stats, bufferPool, _config.getBufferSize(), service, scheduler);
+        backend.start();
+        backends.add(backend);
+        InetSocketAddress address = backend.getAddress();
+        backendAddresses.append(i == 0 ? "" : ",")
+                        .append(address.getAddress()
+                                       .getHostAddress())
+                        .append(':')
+                        .append(address.getPort());
+      }
+      LOGGER.info("Fake backends {}={}", LoadTestRdpStore.RDP_LOAD_BACKEND_ADDRESS, backendAddresses);
+
+      InetSocketAddress proxyAddress;
+      if (_config.getProxyAddress() == null) {
+        System.setProperty(LoadTestRdpStore.RDP_LOAD_BACKEND_ADDRESS, backendAddresses.toString());
+        RdpProxyConfig proxyConfig = Utils.getConfig()
+                                          .toBuilder()
+                                          .rdpMetaStoreClassname(LoadTestRdpStore.class.getName())
+                                          .build();
+        proxy = new RdpProxy(proxyConfig);
+        proxy.start();
+        String bindAddress = proxyConfig.getRdpBindAddress();
+        InetAddress address = "0.0.0.0".equals(bindAddress) ? InetAddress.getLoopbackAddress()
+            : InetAddress.getByName(bindAddress);
+        proxyAddress = new InetSocketAddress(address, proxyConfig.getRdpPort());
+      } else {
+        String address = _config.getProxyAddress();
+        int index = address.lastIndexOf(':');
+        proxyAddress = new InetSocketAddress(address.substring(0, index),
+            Integer.parseInt(address.substring(index + 1)));
+      }
+      waitForProxy(proxyAddress);
+
+      Usage baseline = Usage.measure(_memory, _os, true);
+      String received = _config.getBackendMode() == FakeRdpBackend.Mode.ECHO ? LoadStats.ROUND_TRIP
+          : LoadStats.SERVER_TO_CLIENT;
+      long start = System.nanoTime();
+      ScheduledFuture<?> reporter = scheduler.scheduleAtFixedRate(new Reporter(start), _config.getReportInterval(),
+          _config.getReportInterval(), TimeUnit.MILLISECONDS);
+      long delay = (long) (NANOS_PER_SECOND / _config.getRampRate());
+      for (int i = 0; i < _config.getSessions(); i++) {
+        long wait = start + i * delay - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        FakeRdpClient client = new FakeRdpClient(proxyAddress, "load" + i, _profile, _stats, received, bufferPool,
+            _config.getBufferSize(), scheduler);
+        clients.add(client);
+        service.submit(client);
+      }
+      long settleDeadline = System.nanoTime() + SETTLE_WAIT;
+      while (getSettled() < _config.getSessions() && System.nanoTime() < settleDeadline) {
+        Thread.sleep(10);
+      }
+      long ramped = System.nanoTime();
+      double rampSeconds = (ramped - start) / NANOS_PER_SECOND;
+
+      Usage rampedUsage = Usage.measure(_memory, _os, true);
+      Thread.sleep(_config.getDuration());
+      Usage steadyUsage = Usage.measure(_memory, _os, false);
+      int active = _stats.getActive();
+      reporter.cancel(false);
+
+      LOGGER.info("Sessions opened {} of {} in {} s, {} sessions/s, rejected {} failed {} dropped {}",
+          _stats.getOpened(), _config.getSessions(), format(rampSeconds), format(_stats.getOpened() / rampSeconds),
+          _stats.getRejected(), _stats.getFailed(), _stats.getDropped());
+      logLatency("Connect", _stats.getHistogram(LoadStats.CONNECT)
+                                  .getSnapshot());
+      logLatency("Client to server", _stats.getHistogram(LoadStats.CLIENT_TO_SERVER)
+                                           .getSnapshot());
+      logLatency(_config.getBackendMode() == FakeRdpBackend.Mode.ECHO ? "Round trip" : "Server to client",
+          _stats.getHistogram(received)
+                .getSnapshot());
+      if (proxy != null) {
+        logLatency("Proxy relay client to server", getTimerSnapshot(proxy,
+            RdpConnectionRelay.RDP_CONNECTION_TIMER_CLIENT_TO_SERVER));
+        logLatency("Proxy relay server to client", getTimerSnapshot(proxy,
+            RdpConnectionRelay.RDP_CONNECTION_TIMER_SERVER_TO_CLIENT));
+      }
+      double steadySeconds = (steadyUsage.getNanos() - rampedUsage.getNanos()) / NANOS_PER_SECOND;
+      double cpuCores = (steadyUsage.getCpuNanos() - rampedUsage.getCpuNanos()) / NANOS_PER_SECOND / steadySeconds;
+      LOGGER.info("Traffic sent {} MB/s received {} MB/s",
+          format(_stats.getBytesSent() / ((steadyUsage.getNanos() - start) / NANOS_PER_SECOND) / 1_000_000),
+          format(_stats.getBytesReceived() / ((steadyUsage.getNanos() - start) / NANOS_PER_SECOND) / 1_000_000));
+      LOGGER.info("CPU {} cores while holding {} sessions, {} ms/s per session", format(cpuCores), active,
+          format(active == 0 ? 0 : cpuCores * 1000 / active));
+      long heapDelta = rampedUsage.getHeapUsed() - baseline.getHeapUsed();
+      LOGGER.info("Heap {} MB after ramp up, {} MB before, {} KB per session",
+          format(rampedUsage.getHeapUsed() / 1_000_000.0), format(baseline.getHeapUsed() / 1_000_000.0),
+          format(active == 0 ? 0 : heapDelta / 1024.0 / active));
+    } finally {
+      for (FakeRdpClient client : clients) {
+        client.close();
+      }
+      if (proxy != null) {
+        waitForTeardown(proxy);
+      }
+      for (FakeRdpBackend backend : backends) {
+        backend.close();
+      }
+      Utils.closeQuietly(proxy);
+      scheduler.shutdownNow();
+      service.shutdownNow();
+    }
+  }
+
+  private long getSettled() {
+    return _stats.getOpened() + _stats.getRejected() + _stats.getFailed();
+  }
+
+  private static Snapshot getTimerSnapshot(RdpProxy proxy, String name) {
+    Timer timer = proxy.getMetrics()
+                       .getTimers()
+                       .get(name);
+    return timer == null ? null : timer.getSnapshot();
+  }
+
+  /**
+   * Lets the proxy tear down the sessions the clients closed before closing
+   * it.
+   */
+  private static void waitForTeardown(RdpProxy proxy) throws InterruptedException {
+    long deadline = System.nanoTime() + SETTLE_WAIT;
+    while (proxy.getMetrics()
+                .counter(RdpConnectionRelay.RDP_CONNECTIONS_COUNTER)
+                .getCount() > 0
+        && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static void waitForProxy(InetSocketAddress address) throws IOException, InterruptedException {
+    long deadline = System.nanoTime() + PROXY_WAIT;
+    while (true) {
+      try (Socket socket = new Socket()) {
+        socket.connect(address);
+        return;
+      } catch (IOException e) {
+        if (System.nanoTime() > deadline) {
+          throw new IOException("Proxy " + address + " is not listening", e);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private static void logLatency(String name, Snapshot snapshot) {
+    if (snapshot == null || snapshot.size() == 0) {
+      LOGGER.info("{} latency no samples", name);
+      return;
+    }
+    LOGGER.info("{} latency ms p50 {} p90 {} p99 {} p99.9 {} max {}", name, millis(snapshot.getMedian()),
+        millis(snapshot.getValue(0.9)), millis(snapshot.get99thPercentile()), millis(snapshot.get999thPercentile()),
+        millis(snapshot.getMax()));
+  }
+
+  private static String millis(double nanos) {
+    return format(nanos / NANOS_PER_MILLI);
+  }
+
+  private static String format(double value) {
+    return String.format("%.3f", value);
+  }
+
+  private class Reporter implements Runnable {
+
+    private final long _start;
+    private long _lastOpened;
+    private long _lastTime;
+
+    Reporter(long start) {
+      _start = start;
+      _lastTime = start;
+    }
+
+    @Override
+    public void run() {
+      long now = System.nanoTime();
+      long opened = _stats.getOpened();
+      double seconds = (now - _lastTime) / NANOS_PER_SECOND;
+      Snapshot snapshot = _stats.getHistogram(LoadStats.CLIENT_TO_SERVER)
+                                .getSnapshot();
+      LOGGER.info("{} s active {} opened {} ({}/s) rejected {} failed {} dropped {} client to server p99 {} ms heap {} MB",
+          format((now - _start) / NANOS_PER_SECOND), _stats.getActive(), opened,
+          format((opened - _lastOpened) / seconds), _stats.getRejected(), _stats.getFailed(), _stats.getDropped(),
+          millis(snapshot.get99thPercentile()), format(_memory.getHeapMemoryUsage()
+                                                              .getUsed()
+              / 1_000_000.0));
+      _lastOpened = opened;
+      _lastTime = now;
+    }
+
+  }
+
+  private static class Usage {
+
+    private final long _nanos;
+    private final long _cpuNanos;
+    private final long _heapUsed;
+
+    private Usage(long nanos, long cpuNanos, long heapUsed) {
+      _nanos = nanos;
+      _cpuNanos = cpuNanos;
+      _heapUsed = heapUsed;
+    }
+
+    /**
+     * With gc the heap is measured after a full collection so only what is
+     * still referenced counts.
+     */
+    static Usage measure(MemoryMXBean memory, com.sun.management.OperatingSystemMXBean os, boolean gc) {
+      if (gc) {
+        memory.gc();
+      }
+      return new Usage(System.nanoTime(), os.getProcessCpuTime(), memory.getHeapMemoryUsage()
+                                                                        .getUsed());
+    }
+
+    long getNanos() {
+      return _nanos;
+    }
+
+    long getCpuNanos() {
+      return _cpuNanos;
+    }
+
+    long getHeapUsed() {
+      return _heapUsed;
+    }
+
+  }
+
+}
@@ -0,0 +1,233 @@
+package rdp.proxy.loadtest;
+
+import java.util.concurrent.TimeUnit;
+
+import rdp.proxy.spi.config.ConfigUtil;
+
+import lombok.Builder;
+import lombok.Builder.Default;
+import lombok.Value;
+
+@Value
+@Builder(toBuilder = true)
+public class LoadTestConfig {
+
+  public static final String RDP_LOAD_SESSIONS = "RDP_LOAD_SESSIONS";
+  public static final String RDP_LOAD_RAMP_RATE = "RDP_LOAD_RAMP_RATE";
+  public static final String RDP_LOAD_DURATION = "RDP_LOAD_DURATION";
+  public static final String RDP_LOAD_REPORT_INTERVAL = "RDP_LOAD_REPORT_INTERVAL";
+  public static final String RDP_LOAD_PROFILE = "RDP_LOAD_PROFILE";
+  public static final String RDP_LOAD_INPUT_SIZE = "RDP_LOAD_INPUT_SIZE";
+  public static final String RDP_LOAD_INPUT_INTERVAL = "RDP_LOAD_INPUT_INTERVAL";
+  public static final String RDP_LOAD_UPDATE_SIZE = "RDP_LOAD_UPDATE_SIZE";
+  public static final String RDP_LOAD_UPDATE_INTERVAL = "RDP_LOAD_UPDATE_INTERVAL";
+  public static final String RDP_LOAD_UPDATE_BURST = "RDP_LOAD_UPDATE_BURST";
+  public static final String RDP_LOAD_BACKEND_MODE = "RDP_LOAD_BACKEND_MODE";
+  public static final String RDP_LOAD_BACKENDS = "RDP_LOAD_BACKENDS";
+  public static final String RDP_LOAD_BACKEND_PORT = "RDP_LOAD_BACKEND_PORT";
+  public static final String RDP_LOAD_PROXY_ADDRESS = "RDP_LOAD_PROXY_ADDRESS";
+  public static final String RDP_LOAD_SCHEDULER_THREADS = "RDP_LOAD_SCHEDULER_THREADS";
+
+  /**
+   * Concurrent sessions to open.
+   */
+  @Default
+  int sessions = 1000;
+
+  /**
+   * New sessions per second while ramping up.
+   */
+  @Default
+  double rampRate = 100;
+
+  /**
+   * How long to hold all sessions open once ramped up, in milliseconds.
+   */
+  @Default
+  long duration = TimeUnit.MINUTES.toMillis(1);
+
+  @Default
+  long reportInterval = TimeUnit.SECONDS.toMillis(5);
+
+  /**
+   * One of {@link LoadProfile#get(String)}, the input and update settings
+   * below override parts of it.
+   */
+  @Default
+  String profile = LoadProfile.OFFICE.getName();
+
+  /**
+   * Record sizes as min-max or a single size.
+   */
+  String inputSize;
+
+  Long inputInterval;
+
+  String updateSize;
+
+  Long updateInterval;
+
+  Integer updateBurst;
+
+  @Default
+  FakeRdpBackend.Mode backendMode = FakeRdpBackend.Mode.GENERATE;
+
+  /**
+   * Fake backends to spread the sessions over, each on its own port.
+   */
+  @Default
+  int backends = 1;
+
+  /**
+   * First port of the fake backends, 0 for any free ports.
+   */
+  @Default
+  int backendPort = 0;
+
+  /**
+   * host:port of a proxy running on its own, when not set an RdpProxy is
+   * started in this JVM using the RDP_* settings.
+   */
+  String proxyAddress;
+
+  @Default
+  int schedulerThreads = Runtime.getRuntime()
+                                .availableProcessors();
+
+  @Default
+  int bufferSize = 32 * 1024;
+
+  public LoadProfile getLoadProfile() {
+    LoadProfile.LoadProfileBuilder builder = LoadProfile.get(profile)
+                                                        .toBuilder();
+    if (inputSize != null) {
+      int[] range = parseRange(inputSize);
+      builder.inputMinSize(range[0])
+             .inputMaxSize(range[1]);
+    }
+    if (inputInterval != null) {
+      builder.inputInterval(inputInterval);
+    }
+    if (updateSize != null) {
+      int[] range = parseRange(updateSize);
+      builder.updateMinSize(range[0])
+             .updateMaxSize(range[1]);
+    }
+    if (updateInterval != null) {
+      builder.updateInterval(updateInterval);
+    }
+    if (updateBurst != null) {
+      builder.updateBurst(updateBurst);
+    }
+    return builder.build();
+  }
+
+  private static int[] parseRange(String range) {
+    int index = range.indexOf('-');
+    if (index < 0) {
+      int size = Integer.parseInt(range.trim());
+      return new int[] { size, size };
+    }
+    return new int[] { Integer.parseInt(range.substring(0, index)
+                                             .trim()),
+        Integer.parseInt(range.substring(index + 1)
+                              .trim()) };
+  }
+
+  public static LoadTestConfig getConfig() {
+    LoadTestConfigBuilder builder = LoadTestConfig.builder();
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_LOAD_SESSIONS, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.sessions(prop);
+      }
+    }
+    {
+      Double prop = ConfigUtil.loadProperty(RDP_LOAD_RAMP_RATE, value -> Double.parseDouble(value));
+      if (prop != null) {
+        builder.rampRate(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_LOAD_DURATION, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.duration(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_LOAD_REPORT_INTERVAL, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.reportInterval(prop);
+      }
+    }
+    {
+      String prop = ConfigUtil.loadProperty(RDP_LOAD_PROFILE, value -> value);
+      if (prop != null) {
+        builder.profile(prop);
+      }
+    }
+    {
+      String prop = ConfigUtil.loadProperty(RDP_LOAD_INPUT_SIZE, value -> value);
+      if (prop != null) {
+        builder.inputSize(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_LOAD_INPUT_INTERVAL, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.inputInterval(prop);
+      }
+    }
+    {
+      String prop = ConfigUtil.loadProperty(RDP_LOAD_UPDATE_SIZE, value -> value);
+      if (prop != null) {
+        builder.updateSize(prop);
+      }
+    }
+    {
+      Long prop = ConfigUtil.loadProperty(RDP_LOAD_UPDATE_INTERVAL, value -> Long.parseLong(value));
+      if (prop != null) {
+        builder.updateInterval(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_LOAD_UPDATE_BURST, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.updateBurst(prop);
+      }
+    }
+    {
+      FakeRdpBackend.Mode prop = ConfigUtil.loadProperty(RDP_LOAD_BACKEND_MODE,
+          value -> FakeRdpBackend.Mode.valueOf(value.toUpperCase()));
+      if (prop != null) {
+        builder.backendMode(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_LOAD_BACKENDS, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.backends(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_LOAD_BACKEND_PORT, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.backendPort(prop);
+      }
+    }
+    {
+      String prop = ConfigUtil.loadProperty(RDP_LOAD_PROXY_ADDRESS, value -> value);
+      if (prop != null) {
+        builder.proxyAddress(prop);
+      }
+    }
+    {
+      Integer prop = ConfigUtil.loadProperty(RDP_LOAD_SCHEDULER_THREADS, value -> Integer.parseInt(value));
+      if (prop != null) {
+        builder.schedulerThreads(prop);
+      }
+    }
+    return builder.build();
+  }
+
+}
@@ -0,0 +1,47 @@
+package rdp.proxy.loadtest;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import rdp.proxy.spi.BaseRdpStore;
+import rdp.proxy.spi.ConnectionInfo;
+import rdp.proxy.spi.cache.ResolverCache;
+import rdp.proxy.spi.config.ConfigUtil;
+
+/**
+ * Sends every user to one of the fake backends in RDP_LOAD_BACKEND_ADDRESS, a
+ * comma separated list of host:port, picked by the hash of the cookie. Set
+ * RDP_META_STORE_CLASSNAME to this class to load test a proxy running on its
+ * own.
+ */
+public class LoadTestRdpStore extends BaseRdpStore {
+
+  public static final String RDP_LOAD_BACKEND_ADDRESS = "RDP_LOAD_BACKEND_ADDRESS";
+
+  private final List<ConnectionInfo> _backends = new ArrayList<>();
+
+  public LoadTestRdpStore() throws IOException {
+    String backends = ConfigUtil.loadProperty(RDP_LOAD_BACKEND_ADDRESS, value -> value);
+    if (backends == null) {
+      throw new IOException(RDP_LOAD_BACKEND_ADDRESS + " is not set");
+    }
+    for (String backend : backends.split(",")) {
+      String trim = backend.trim();
+      int index = trim.lastIndexOf(':');
+      InetAddress address = ResolverCache.getInstance()
+                                         .getByName(trim.substring(0, index));
+      _backends.add(new ConnectionInfo(address, Integer.parseInt(trim.substring(index + 1))));
+    }
+  }
+
+  @Override
+  public Set<ConnectionInfo> getConnectionInfoWithCookie(String cookie) throws IOException {
+    int index = Math.floorMod(cookie.hashCode(), _backends.size());
+    return Collections.singleton(_backends.get(index));
+  }
+
+}
@@ -0,0 +1,124 @@
+package rdp.proxy.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import rdp.proxy.spi.BaseRdpStore;
+
+/**
+ * The few PDUs the simulated client and backend exchange. After the X.224
+ * handshake everything is a TLS application data record whose first 8
+ * payload bytes are the {@link System#nanoTime()} it was sent at, client and
+ * backend share the JVM so the receiver can tell the one way latency.
+ */
+public class Pdus {
+
+  public static final int TLS_HEADER_LENGTH = 5;
+  public static final int MIN_RECORD_SIZE = TLS_HEADER_LENGTH + 8;
+  public static final int MAX_RECORD_SIZE = TLS_HEADER_LENGTH + 16_384;
+
+  private static final int TLS_APPLICATION_DATA = 23;
+  private static final int TPKT_HEADER_LENGTH = 4;
+  private static final int RDP_NEG_RSP = 2;
+  private static final int RDP_NEG_FAILURE = 3;
+  private static final int PROTOCOL_SSL = 1;
+  private static final byte[] FILLER = new byte[MAX_RECORD_SIZE];
+
+  static {
+    new Random(0x5EED).nextBytes(FILLER);
+  }
+
+  /**
+   * X.224 connection request with a mstshash cookie and a negotiation request
+   * for TLS, like mstsc sends it.
+   */
+  public static byte[] createConnectionRequest(String user) {
+    byte[] cookie = (BaseRdpStore.COOKIE_MSTSHASH + user + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    byte[] negotiation = { 1, 0, 8, 0, PROTOCOL_SSL, 0, 0, 0 };
+    int length = TPKT_HEADER_LENGTH + 7 + cookie.length + negotiation.length;
+    ByteArrayOutputStream output = new ByteArrayOutputStream(length);
+    writeTpktHeader(output, length);
+    output.write(length - 5);
+    output.write(0xE0);
+    output.write(new byte[5], 0, 5);
+    output.write(cookie, 0, cookie.length);
+    output.write(negotiation, 0, negotiation.length);
+    return output.toByteArray();
+  }
+
+  /**
+   * X.224 connection confirm selecting TLS.
+   */
+  public static byte[] createConnectionConfirm() {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(19);
+    writeTpktHeader(output, 19);
+    output.write(14);
+    output.write(0xD0);
+    output.write(new byte[5], 0, 5);
+    byte[] negotiation = { RDP_NEG_RSP, 0, 8, 0, PROTOCOL_SSL, 0, 0, 0 };
+    output.write(negotiation, 0, negotiation.length);
+    return output.toByteArray();
+  }
+
+  /**
+   * Reads the connection confirm, false if it carries a negotiation failure,
+   * which is also how the proxy turns a session away.
+   */
+  public static boolean readConnectionConfirm(DataInputStream input) throws IOException {
+    byte[] header = new byte[TPKT_HEADER_LENGTH];
+    input.readFully(header);
+    if (header[0] != 3) {
+      throw new IOException("Not a TPKT " + header[0]);
+    }
+    int length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+    if (length < 11) {
+      throw new IOException("Bad connection confirm length " + length);
+    }
+    byte[] body = new byte[length - TPKT_HEADER_LENGTH];
+    input.readFully(body);
+    return length < 19 || body[7] != RDP_NEG_FAILURE;
+  }
+
+  /**
+   * Writes one stamped TLS record of the given total size at offset.
+   */
+  public static void writeRecord(byte[] buffer, int offset, int size, long stamp) {
+    int payload = size - TLS_HEADER_LENGTH;
+    System.arraycopy(FILLER, 0, buffer, offset, size);
+    buffer[offset] = TLS_APPLICATION_DATA;
+    buffer[offset + 1] = 3;
+    buffer[offset + 2] = 3;
+    buffer[offset + 3] = (byte) (payload >>> 8);
+    buffer[offset + 4] = (byte) payload;
+    for (int i = 0; i < 8; i++) {
+      buffer[offset + TLS_HEADER_LENGTH + i] = (byte) (stamp >>> (56 - 8 * i));
+    }
+  }
+
+  public static long readStamp(byte[] buffer, int offset) {
+    long stamp = 0;
+    for (int i = 0; i < 8; i++) {
+      stamp = (stamp << 8) | (buffer[offset + TLS_HEADER_LENGTH + i] & 0xFF);
+    }
+    return stamp;
+  }
+
+  /**
+   * A record size between min and max, kept inside what a TLS record can hold.
+   */
+  public static int nextSize(Random random, int min, int max) {
+    int size = max > min ? min + random.nextInt(max - min + 1) : min;
+    return Math.max(MIN_RECORD_SIZE, Math.min(MAX_RECORD_SIZE, size));
+  }
+
+  private static void writeTpktHeader(ByteArrayOutputStream output, int length) {
+    output.write(3);
+    output.write(0);
+    output.write(length >>> 8);
+    output.write(length);
+  }
+
+}
@@ -0,0 +1,76 @@
+package rdp.proxy.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+import rdp.proxy.server.relay.BufferPool;
+
+public class FakeRdpBackendTest {
+
+  private static final LoadProfile PROFILE = LoadProfile.OFFICE.toBuilder()
+                                                               .inputInterval(10)
+                                                               .updateInterval(10)
+                                                               .build();
+
+  private final ExecutorService _service = Executors.newCachedThreadPool();
+  private final ScheduledExecutorService _scheduler = Executors.newScheduledThreadPool(2);
+
+  @After
+  public void tearDown() {
+    _scheduler.shutdownNow();
+    _service.shutdownNow();
+  }
+
+  @Test
+  public void testEcho() throws Exception {
+    LoadStats stats = runSession(FakeRdpBackend.Mode.ECHO, LoadStats.ROUND_TRIP);
+    assertTrue(stats.getHistogram(LoadStats.ROUND_TRIP)
+                    .getCount() > 0);
+    assertTrue(stats.getHistogram(LoadStats.CLIENT_TO_SERVER)
+                    .getCount() > 0);
+    assertEquals(0, stats.getHistogram(LoadStats.SERVER_TO_CLIENT)
+                         .getCount());
+  }
+
+  @Test
+  public void testGenerate() throws Exception {
+    LoadStats stats = runSession(FakeRdpBackend.Mode.GENERATE, LoadStats.SERVER_TO_CLIENT);
+    assertTrue(stats.getHistogram(LoadStats.SERVER_TO_CLIENT)
+                    .getCount() > 0);
+    assertTrue(stats.getHistogram(LoadStats.CLIENT_TO_SERVER)
+                    .getCount() > 0);
+    assertEquals(0, stats.getHistogram(LoadStats.ROUND_TRIP)
+                         .getCount());
+  }
+
+  private LoadStats runSession(FakeRdpBackend.Mode mode, String received) throws Exception {
+    LoadStats stats = new LoadStats();
+    BufferPool bufferPool = new BufferPool(false, Long.MAX_VALUE, stats.getMetrics());
+    try (FakeRdpBackend backend = new FakeRdpBackend(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+        mode, PROFILE, stats, bufferPool, 32 * 1024, _service, _scheduler)) {
+      backend.start();
+      FakeRdpClient client = new FakeRdpClient(backend.getAddress(), "test", PROFILE, stats, received, bufferPool,
+          32 * 1024, _scheduler);
+      _service.submit(client);
+      Thread.sleep(500);
+      assertEquals(1, stats.getOpened());
+      assertEquals(1, stats.getActive());
+      client.close();
+    }
+    Thread.sleep(100);
+    assertEquals(0, stats.getActive());
+    assertEquals(0, stats.getDropped());
+    assertEquals(0, stats.getFailed());
+    return stats;
+  }
+
+}
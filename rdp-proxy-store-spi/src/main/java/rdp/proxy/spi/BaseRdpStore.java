@@ -1,13 +1,14 @@
 package rdp.proxy.spi;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import rdp.proxy.spi.cache.ResolverCache;
+
 public abstract class BaseRdpStore implements RdpStore {
   public static final String COOKIE_MSTSHASH = "Cookie: mstshash=";
 
@@ -39,9 +40,13 @@ public abstract class BaseRdpStore implements RdpStore {
   public Set<ConnectionInfo> getConnectionInfoWithCookie(String cookie) throws IOException {
     if (isCookieMstsHash(cookie)) {
       String host = getMstsHashValue(cookie);
-      return toSet(new ConnectionInfo(InetAddress.getByName(host), 3389));
+      return toSet(new ConnectionInfo(ResolverCache.getInstance()
+                                                   .getByName(host),
+          3389));
     } else {
-      return toSet(new ConnectionInfo(InetAddress.getByName(cookie), 3389));
+      return toSet(new ConnectionInfo(ResolverCache.getInstance()
+                                                   .getByName(cookie),
+          3389));
     }
   }
 
@@ -4,6 +4,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface RdpStore {
 
@@ -72,4 +73,71 @@ public interface RdpStore {
     };
   }
 
+  /**
+   * Async form of {@link #isValidUser(String)}, by default the sync call run on
+   * the {@link RdpStoreExecutor}.
+   * 
+   * @param user
+   * @return future
+   */
+  default CompletableFuture<Boolean> isValidUserAsync(String user) {
+    return RdpStoreExecutor.call(() -> isValidUser(user));
+  }
+
+  /**
+   * Async form of {@link #getLoadBalanceInfo(String)}.
+   * 
+   * @param user
+   * @return future
+   */
+  default CompletableFuture<String> getLoadBalanceInfoAsync(String user) {
+    return RdpStoreExecutor.call(() -> getLoadBalanceInfo(user));
+  }
+
+  /**
+   * Async form of
+   * {@link #getRdpSettings(List, String, String, String, int)}.
+   * 
+   * @param defaultSettings
+   * @param user
+   * @param loadBalanceInfo
+   * @param rdpHostname
+   * @param rdpPort
+   * @return future
+   */
+  default CompletableFuture<List<RdpSetting>> getRdpSettingsAsync(List<RdpSetting> defaultSettings, String user,
+      String loadBalanceInfo, String rdpHostname, int rdpPort) {
+    return RdpStoreExecutor.call(() -> getRdpSettings(defaultSettings, user, loadBalanceInfo, rdpHostname, rdpPort));
+  }
+
+  /**
+   * Async form of {@link #getFilename(String)}.
+   * 
+   * @param user
+   * @return future
+   */
+  default CompletableFuture<String> getFilenameAsync(String user) {
+    return RdpStoreExecutor.call(() -> getFilename(user));
+  }
+
+  /**
+   * Async form of {@link #getConnectionInfoWithCookie(String)}.
+   * 
+   * @param cookie
+   * @return future
+   */
+  default CompletableFuture<Set<ConnectionInfo>> getConnectionInfoWithCookieAsync(String cookie) {
+    return RdpStoreExecutor.call(() -> getConnectionInfoWithCookie(cookie));
+  }
+
+  /**
+   * Async form of {@link #createSession(String)}.
+   * 
+   * @param cookie
+   * @return future
+   */
+  default CompletableFuture<Closeable> createSessionAsync(String cookie) {
+    return RdpStoreExecutor.call(() -> createSession(cookie));
+  }
+
 }
@@ -0,0 +1,97 @@
+package rdp.proxy.spi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rdp.proxy.spi.config.ConfigUtil;
+
+/**
+ * Bounded executor the default async {@link RdpStore} methods run the blocking
+ * store calls on. Once all threads are busy and the queue is full new calls
+ * fail fast instead of piling up.
+ */
+public class RdpStoreExecutor {
+
+  public static final String RDP_STORE_ASYNC_THREADS = "RDP_STORE_ASYNC_THREADS";
+  public static final String RDP_STORE_ASYNC_QUEUE_SIZE = "RDP_STORE_ASYNC_QUEUE_SIZE";
+
+  private static final int DEFAULT_THREADS = 32;
+  private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+  private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+  public interface StoreCall<T> {
+    T call() throws IOException;
+  }
+
+  public static Executor getExecutor() {
+    return EXECUTOR;
+  }
+
+  /**
+   * Runs the blocking call on the store executor. Cancelling the returned
+   * future does not interrupt the call.
+   */
+  public static <T> CompletableFuture<T> call(StoreCall<T> call) {
+    return call(call, EXECUTOR);
+  }
+
+  public static <T> CompletableFuture<T> call(StoreCall<T> call, Executor executor) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        T value;
+        try {
+          value = call.call();
+        } catch (Throwable t) {
+          future.completeExceptionally(t);
+          return;
+        }
+        // the caller gave up, a session nobody will close is closed here
+        if (!future.complete(value) && value instanceof Closeable) {
+          try {
+            ((Closeable) value).close();
+          } catch (IOException e) {
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.completeExceptionally(new IOException("Store executor saturated", e));
+    }
+    return future;
+  }
+
+  /**
+   * Unwraps the {@link CompletionException} that dependent stages see.
+   */
+  public static Throwable unwrap(Throwable t) {
+    while (t instanceof CompletionException && t.getCause() != null) {
+      t = t.getCause();
+    }
+    return t;
+  }
+
+  private static ThreadPoolExecutor createExecutor() {
+    Integer threads = ConfigUtil.loadProperty(RDP_STORE_ASYNC_THREADS, value -> Integer.parseInt(value));
+    Integer queueSize = ConfigUtil.loadProperty(RDP_STORE_ASYNC_QUEUE_SIZE, value -> Integer.parseInt(value));
+    int poolSize = threads == null ? DEFAULT_THREADS : threads;
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(queueSize == null ? DEFAULT_QUEUE_SIZE : queueSize), r -> {
+          Thread thread = new Thread(r, "rdp-store-" + threadCount.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+}
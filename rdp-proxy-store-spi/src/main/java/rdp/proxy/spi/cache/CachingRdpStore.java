@@ -0,0 +1,196 @@
+package rdp.proxy.spi.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rdp.proxy.spi.ConnectionInfo;
+import rdp.proxy.spi.RdpSetting;
+import rdp.proxy.spi.RdpStore;
+import rdp.proxy.spi.RdpStoreExecutor;
+import rdp.proxy.spi.cache.StoreCache.EvictionPolicy;
+import rdp.proxy.spi.cache.StoreCache.Listener;
+
+/**
+ * {@link RdpStore} decorator that puts a {@link StoreCache} in front of every
+ * lookup of the wrapped store. Sessions are not cached.
+ */
+public class CachingRdpStore implements RdpStore, Closeable {
+
+  public static final String VALID_USER_CACHE = "valid.user";
+  public static final String LOAD_BALANCE_INFO_CACHE = "load.balance.info";
+  public static final String RDP_SETTINGS_CACHE = "rdp.settings";
+  public static final String FILENAME_CACHE = "filename";
+  public static final String CONNECTION_INFO_CACHE = "connection.info";
+
+  private static final int REFRESH_THREADS = 4;
+
+  private final RdpStore _delegate;
+  private final ExecutorService _refreshService;
+  private final Executor _loadService = RdpStoreExecutor.getExecutor();
+  private final StoreCache<String, Boolean> _validUserCache;
+  private final StoreCache<String, String> _loadBalanceInfoCache;
+  private final StoreCache<RdpSettingsKey, List<RdpSetting>> _rdpSettingsCache;
+  private final StoreCache<String, String> _filenameCache;
+  private final StoreCache<String, Set<ConnectionInfo>> _connectionInfoCache;
+
+  public CachingRdpStore(RdpStore delegate, int maxSize, EvictionPolicy evictionPolicy, long ttl, long negativeTtl,
+      long staleTime, TimeUnit unit, Listener listener) {
+    _delegate = delegate;
+    AtomicInteger threadCount = new AtomicInteger();
+    _refreshService = new ThreadPoolExecutor(0, REFRESH_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+      Thread thread = new Thread(r, "rdp-store-refresh-" + threadCount.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+    _validUserCache = new StoreCache<>(VALID_USER_CACHE, user -> delegate.isValidUser(user), maxSize,
+        evictionPolicy, ttl, negativeTtl, staleTime, unit, _refreshService, listener);
+    _loadBalanceInfoCache = new StoreCache<>(LOAD_BALANCE_INFO_CACHE, user -> delegate.getLoadBalanceInfo(user),
+        maxSize, evictionPolicy, ttl, negativeTtl, staleTime, unit, _refreshService, listener);
+    _rdpSettingsCache = new StoreCache<>(RDP_SETTINGS_CACHE,
+        key -> Collections.unmodifiableList(delegate.getRdpSettings(key._defaultSettings, key._user,
+            key._loadBalanceInfo, key._rdpHostname, key._rdpPort)),
+        maxSize, evictionPolicy, ttl, negativeTtl, staleTime, unit, _refreshService, listener);
+    _filenameCache = new StoreCache<>(FILENAME_CACHE, user -> delegate.getFilename(user), maxSize, evictionPolicy,
+        ttl, negativeTtl, staleTime, unit, _refreshService, listener);
+    _connectionInfoCache = new StoreCache<>(CONNECTION_INFO_CACHE, cookie -> {
+      Set<ConnectionInfo> connectionInfos = delegate.getConnectionInfoWithCookie(cookie);
+      return connectionInfos == null ? null : Collections.unmodifiableSet(connectionInfos);
+    }, maxSize, evictionPolicy, ttl, negativeTtl, staleTime, unit, _refreshService, listener);
+  }
+
+  public List<StoreCache<?, ?>> getCaches() {
+    return Arrays.asList(_validUserCache, _loadBalanceInfoCache, _rdpSettingsCache, _filenameCache,
+        _connectionInfoCache);
+  }
+
+  @Override
+  public boolean isValidUser(String user) throws IOException {
+    Boolean valid = _validUserCache.get(user);
+    return valid != null && valid;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> isValidUserAsync(String user) {
+    return _validUserCache.getAsync(user, _loadService)
+                          .thenApply(valid -> valid != null && valid);
+  }
+
+  @Override
+  public String getLoadBalanceInfo(String user) throws IOException {
+    return _loadBalanceInfoCache.get(user);
+  }
+
+  @Override
+  public CompletableFuture<String> getLoadBalanceInfoAsync(String user) {
+    return _loadBalanceInfoCache.getAsync(user, _loadService);
+  }
+
+  @Override
+  public List<RdpSetting> getRdpSettings(List<RdpSetting> defaultSettings, String user, String loadBalanceInfo,
+      String rdpHostname, int rdpPort) throws IOException {
+    List<RdpSetting> rdpSettings = _rdpSettingsCache.get(
+        new RdpSettingsKey(defaultSettings, user, loadBalanceInfo, rdpHostname, rdpPort));
+    return rdpSettings == null ? null : new ArrayList<>(rdpSettings);
+  }
+
+  @Override
+  public CompletableFuture<List<RdpSetting>> getRdpSettingsAsync(List<RdpSetting> defaultSettings, String user,
+      String loadBalanceInfo, String rdpHostname, int rdpPort) {
+    RdpSettingsKey key = new RdpSettingsKey(defaultSettings, user, loadBalanceInfo, rdpHostname, rdpPort);
+    return _rdpSettingsCache.getAsync(key, _loadService)
+                            .thenApply(rdpSettings -> rdpSettings == null ? null : new ArrayList<>(rdpSettings));
+  }
+
+  @Override
+  public String getFilename(String user) throws IOException {
+    return _filenameCache.get(user);
+  }
+
+  @Override
+  public CompletableFuture<String> getFilenameAsync(String user) {
+    return _filenameCache.getAsync(user, _loadService);
+  }
+
+  @Override
+  public Set<ConnectionInfo> getConnectionInfoWithCookie(String cookie) throws IOException {
+    return _connectionInfoCache.get(cookie);
+  }
+
+  @Override
+  public CompletableFuture<Set<ConnectionInfo>> getConnectionInfoWithCookieAsync(String cookie) {
+    return _connectionInfoCache.getAsync(cookie, _loadService);
+  }
+
+  @Override
+  public Closeable createSession(String cookie) throws IOException {
+    return _delegate.createSession(cookie);
+  }
+
+  @Override
+  public CompletableFuture<Closeable> createSessionAsync(String cookie) {
+    return _delegate.createSessionAsync(cookie);
+  }
+
+  @Override
+  public void close() throws IOException {
+    _refreshService.shutdownNow();
+    if (_delegate instanceof Closeable) {
+      ((Closeable) _delegate).close();
+    }
+  }
+
+  /**
+   * The default settings are the same list for every call, they are compared
+   * by identity.
+   */
+  private static class RdpSettingsKey {
+
+    final List<RdpSetting> _defaultSettings;
+    final String _user;
+    final String _loadBalanceInfo;
+    final String _rdpHostname;
+    final int _rdpPort;
+
+    RdpSettingsKey(List<RdpSetting> defaultSettings, String user, String loadBalanceInfo, String rdpHostname,
+        int rdpPort) {
+      _defaultSettings = defaultSettings;
+      _user = user;
+      _loadBalanceInfo = loadBalanceInfo;
+      _rdpHostname = rdpHostname;
+      _rdpPort = rdpPort;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(_defaultSettings), _user, _loadBalanceInfo, _rdpHostname,
+          _rdpPort);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj)
+        return true;
+      if (!(obj instanceof RdpSettingsKey))
+        return false;
+      RdpSettingsKey other = (RdpSettingsKey) obj;
+      return _defaultSettings == other._defaultSettings && _rdpPort == other._rdpPort
+          && Objects.equals(_user, other._user) && Objects.equals(_loadBalanceInfo, other._loadBalanceInfo)
+          && Objects.equals(_rdpHostname, other._rdpHostname);
+    }
+
+  }
+
+}
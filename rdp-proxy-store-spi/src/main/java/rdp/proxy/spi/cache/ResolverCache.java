@@ -0,0 +1,132 @@
+package rdp.proxy.spi.cache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import rdp.proxy.spi.RdpStoreExecutor;
+import rdp.proxy.spi.cache.StoreCache.EvictionPolicy;
+import rdp.proxy.spi.cache.StoreCache.Listener;
+import rdp.proxy.spi.config.ConfigUtil;
+
+/**
+ * Caches forward and reverse DNS lookups so a slow resolver only stalls the
+ * first lookup of a name. Unknown names and addresses without a name are
+ * cached for the negative ttl, expired entries are served for the stale time
+ * while they are resolved again in the background.
+ */
+public class ResolverCache {
+
+  public static final String RDP_DNS_CACHE_MAX_SIZE = "RDP_DNS_CACHE_MAX_SIZE";
+  public static final String RDP_DNS_CACHE_TTL = "RDP_DNS_CACHE_TTL";
+  public static final String RDP_DNS_CACHE_NEGATIVE_TTL = "RDP_DNS_CACHE_NEGATIVE_TTL";
+  public static final String RDP_DNS_CACHE_STALE_TIME = "RDP_DNS_CACHE_STALE_TIME";
+
+  public static final String FORWARD_CACHE = "forward";
+  public static final String REVERSE_CACHE = "reverse";
+
+  private static final ResolverCache INSTANCE = createDefault();
+
+  private final StoreCache<String, List<InetAddress>> _forwardCache;
+  private final StoreCache<InetAddress, String> _reverseCache;
+  private volatile Listener _listener;
+
+  public ResolverCache(int maxSize, long ttl, long negativeTtl, long staleTime, TimeUnit unit,
+      Executor refreshExecutor) {
+    Listener listener = (cacheName, nanos, success) -> {
+      Listener l = _listener;
+      if (l != null) {
+        l.loaded(cacheName, nanos, success);
+      }
+    };
+    _forwardCache = new StoreCache<>(FORWARD_CACHE, host -> resolve(host), maxSize, EvictionPolicy.LRU, ttl,
+        negativeTtl, staleTime, unit, refreshExecutor, listener);
+    _reverseCache = new StoreCache<>(REVERSE_CACHE, address -> reverse(address), maxSize, EvictionPolicy.LRU, ttl,
+        negativeTtl, staleTime, unit, refreshExecutor, listener);
+  }
+
+  /**
+   * The resolver shared by the proxy and the store implementations.
+   */
+  public static ResolverCache getInstance() {
+    return INSTANCE;
+  }
+
+  public void setListener(Listener listener) {
+    _listener = listener;
+  }
+
+  public List<StoreCache<?, ?>> getCaches() {
+    return Arrays.asList(_forwardCache, _reverseCache);
+  }
+
+  public InetAddress getByName(String host) throws UnknownHostException {
+    return getAllByName(host).get(0);
+  }
+
+  public List<InetAddress> getAllByName(String host) throws UnknownHostException {
+    List<InetAddress> addresses;
+    try {
+      addresses = _forwardCache.get(host);
+    } catch (UnknownHostException e) {
+      throw e;
+    } catch (IOException e) {
+      throw (UnknownHostException) new UnknownHostException(host).initCause(e);
+    }
+    if (addresses == null) {
+      throw new UnknownHostException(host);
+    }
+    return addresses;
+  }
+
+  /**
+   * The host name of the address, or the address literal if it has none.
+   */
+  public String getHostName(InetAddress address) {
+    String hostName;
+    try {
+      hostName = _reverseCache.get(address);
+    } catch (IOException e) {
+      hostName = null;
+    }
+    return hostName == null ? address.getHostAddress() : hostName;
+  }
+
+  private static List<InetAddress> resolve(String host) {
+    try {
+      return Collections.unmodifiableList(Arrays.asList(InetAddress.getAllByName(host)));
+    } catch (UnknownHostException e) {
+      return null;
+    }
+  }
+
+  private static String reverse(InetAddress address) {
+    // a fresh copy so a name already attached to the key is not returned
+    String hostName;
+    try {
+      hostName = InetAddress.getByAddress(address.getAddress())
+                            .getHostName();
+    } catch (UnknownHostException e) {
+      return null;
+    }
+    return hostName.equals(address.getHostAddress()) ? null : hostName;
+  }
+
+  private static ResolverCache createDefault() {
+    Integer maxSize = ConfigUtil.loadProperty(RDP_DNS_CACHE_MAX_SIZE, value -> Integer.parseInt(value));
+    Long ttl = ConfigUtil.loadProperty(RDP_DNS_CACHE_TTL, value -> Long.parseLong(value));
+    Long negativeTtl = ConfigUtil.loadProperty(RDP_DNS_CACHE_NEGATIVE_TTL, value -> Long.parseLong(value));
+    Long staleTime = ConfigUtil.loadProperty(RDP_DNS_CACHE_STALE_TIME, value -> Long.parseLong(value));
+    return new ResolverCache(maxSize == null ? 10_000 : maxSize,
+        ttl == null ? TimeUnit.MINUTES.toMillis(1) : ttl,
+        negativeTtl == null ? TimeUnit.SECONDS.toMillis(10) : negativeTtl,
+        staleTime == null ? TimeUnit.MINUTES.toMillis(10) : staleTime, TimeUnit.MILLISECONDS,
+        RdpStoreExecutor.getExecutor());
+  }
+
+}
@@ -0,0 +1,333 @@
+package rdp.proxy.spi.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rdp.proxy.spi.RdpStoreExecutor;
+
+/**
+ * Bounded read-through cache for store lookups.
+ * <ul>
+ * <li>Entries live for the ttl, negative results (null, false or an empty
+ * collection) for the negative ttl.</li>
+ * <li>For the stale time after the ttl an expired positive entry is still
+ * returned while one background load refreshes it.</li>
+ * <li>Concurrent misses for the same key share a single load.</li>
+ * <li>When full the least recently used entry is evicted, or with
+ * {@link EvictionPolicy#LFU} the least frequently used of the least recently
+ * used few.</li>
+ * </ul>
+ */
+public class StoreCache<K, V> {
+
+  public enum EvictionPolicy {
+    LRU, LFU
+  }
+
+  public interface Loader<K, V> {
+    V load(K key) throws IOException;
+  }
+
+  public interface Listener {
+    /**
+     * Called after every load from the store, successful or not.
+     */
+    void loaded(String cacheName, long nanos, boolean success);
+  }
+
+  private static final int LFU_SAMPLE_SIZE = 8;
+
+  private final String _name;
+  private final Loader<K, V> _loader;
+  private final int _maxSize;
+  private final EvictionPolicy _evictionPolicy;
+  private final long _ttl;
+  private final long _negativeTtl;
+  private final long _staleTime;
+  private final Executor _refreshExecutor;
+  private final Listener _listener;
+  private final LinkedHashMap<K, Entry<V>> _entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<K, CompletableFuture<V>> _loading = new ConcurrentHashMap<>();
+  private final AtomicLong _hits = new AtomicLong();
+  private final AtomicLong _staleHits = new AtomicLong();
+  private final AtomicLong _misses = new AtomicLong();
+  private final AtomicLong _loads = new AtomicLong();
+  private final AtomicLong _loadFailures = new AtomicLong();
+  private final AtomicLong _loadTime = new AtomicLong();
+  private final AtomicLong _evictions = new AtomicLong();
+
+  public StoreCache(String name, Loader<K, V> loader, int maxSize, EvictionPolicy evictionPolicy, long ttl,
+      long negativeTtl, long staleTime, TimeUnit unit, Executor refreshExecutor, Listener listener) {
+    _name = name;
+    _loader = loader;
+    _maxSize = Math.max(1, maxSize);
+    _evictionPolicy = evictionPolicy;
+    _ttl = unit.toNanos(ttl);
+    _negativeTtl = unit.toNanos(negativeTtl);
+    _staleTime = unit.toNanos(staleTime);
+    _refreshExecutor = refreshExecutor;
+    _listener = listener;
+  }
+
+  public String getName() {
+    return _name;
+  }
+
+  public V get(K key) throws IOException {
+    Entry<V> entry = getEntry(key);
+    return entry != null ? entry._value : load(key);
+  }
+
+  /**
+   * Same as {@link #get(Object)} but a miss is loaded on the given executor,
+   * hits complete right away.
+   */
+  public CompletableFuture<V> getAsync(K key, Executor executor) {
+    Entry<V> entry = getEntry(key);
+    if (entry != null) {
+      return CompletableFuture.completedFuture(entry._value);
+    }
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = _loading.putIfAbsent(key, future);
+    if (existing != null) {
+      return existing.thenApply(value -> value);
+    }
+    RdpStoreExecutor.call(() -> loadAndStore(key), executor)
+                    .whenComplete((value, t) -> {
+                      _loading.remove(key, future);
+                      if (t != null) {
+                        future.completeExceptionally(RdpStoreExecutor.unwrap(t));
+                      } else {
+                        future.complete(value);
+                      }
+                    });
+    return future.thenApply(value -> value);
+  }
+
+  public void invalidate(K key) {
+    synchronized (_entries) {
+      _entries.remove(key);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized (_entries) {
+      _entries.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (_entries) {
+      return _entries.size();
+    }
+  }
+
+  public long getHitCount() {
+    return _hits.get();
+  }
+
+  public long getStaleHitCount() {
+    return _staleHits.get();
+  }
+
+  public long getMissCount() {
+    return _misses.get();
+  }
+
+  public long getLoadCount() {
+    return _loads.get();
+  }
+
+  public long getLoadFailureCount() {
+    return _loadFailures.get();
+  }
+
+  public long getTotalLoadTimeNanos() {
+    return _loadTime.get();
+  }
+
+  public long getEvictionCount() {
+    return _evictions.get();
+  }
+
+  public static boolean isNegative(Object value) {
+    if (value == null || Boolean.FALSE.equals(value)) {
+      return true;
+    }
+    return value instanceof Collection && ((Collection<?>) value).isEmpty();
+  }
+
+  /**
+   * The entry if it is fresh, or stale with a refresh started, otherwise null.
+   */
+  private Entry<V> getEntry(K key) {
+    Entry<V> entry;
+    synchronized (_entries) {
+      entry = _entries.get(key);
+      if (entry != null) {
+        entry._frequency++;
+      }
+    }
+    if (entry != null) {
+      long now = System.nanoTime();
+      if (now - entry._expiresAt < 0) {
+        _hits.incrementAndGet();
+        return entry;
+      }
+      if (now - entry._staleUntil < 0) {
+        _staleHits.incrementAndGet();
+        refresh(key, entry._value);
+        return entry;
+      }
+    }
+    _misses.incrementAndGet();
+    return null;
+  }
+
+  private V load(K key) throws IOException {
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = _loading.putIfAbsent(key, future);
+    if (existing != null) {
+      return await(existing);
+    }
+    try {
+      V value = loadAndStore(key);
+      future.complete(value);
+      return value;
+    } catch (IOException | RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      _loading.remove(key, future);
+    }
+  }
+
+  /**
+   * Reloads the key in the background unless a load is already running.
+   * Callers that join the refresh get the stale value if the refresh could
+   * not be started.
+   */
+  private void refresh(K key, V staleValue) {
+    CompletableFuture<V> future = new CompletableFuture<>();
+    if (_loading.putIfAbsent(key, future) != null) {
+      return;
+    }
+    try {
+      _refreshExecutor.execute(() -> {
+        try {
+          future.complete(loadAndStore(key));
+        } catch (Throwable t) {
+          future.complete(staleValue);
+        } finally {
+          _loading.remove(key, future);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      _loading.remove(key, future);
+      future.complete(staleValue);
+    }
+  }
+
+  private V loadAndStore(K key) throws IOException {
+    long start = System.nanoTime();
+    boolean success = false;
+    V value;
+    try {
+      value = _loader.load(key);
+      success = true;
+    } finally {
+      long nanos = System.nanoTime() - start;
+      _loads.incrementAndGet();
+      _loadTime.addAndGet(nanos);
+      if (!success) {
+        _loadFailures.incrementAndGet();
+      }
+      if (_listener != null) {
+        _listener.loaded(_name, nanos, success);
+      }
+    }
+    boolean negative = isNegative(value);
+    long ttl = negative ? _negativeTtl : _ttl;
+    if (ttl > 0) {
+      long now = System.nanoTime();
+      long expiresAt = now + ttl;
+      put(key, new Entry<>(value, expiresAt, negative ? expiresAt : expiresAt + _staleTime));
+    }
+    return value;
+  }
+
+  private void put(K key, Entry<V> entry) {
+    synchronized (_entries) {
+      _entries.put(key, entry);
+      while (_entries.size() > _maxSize) {
+        evict();
+        _evictions.incrementAndGet();
+      }
+    }
+  }
+
+  private void evict() {
+    Iterator<Entry<V>> iterator = _entries.values()
+                                          .iterator();
+    if (_evictionPolicy == EvictionPolicy.LRU) {
+      iterator.next();
+      iterator.remove();
+      return;
+    }
+    Entry<V> victim = null;
+    for (int i = 0; i < LFU_SAMPLE_SIZE && iterator.hasNext(); i++) {
+      Entry<V> entry = iterator.next();
+      if (victim == null || entry._frequency < victim._frequency) {
+        victim = entry;
+      }
+    }
+    _entries.values()
+            .remove(victim);
+  }
+
+  private static <V> V await(CompletableFuture<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread()
+            .interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static class Entry<V> {
+
+    final V _value;
+    final long _expiresAt;
+    final long _staleUntil;
+    int _frequency;
+
+    Entry(V value, long expiresAt, long staleUntil) {
+      _value = value;
+      _expiresAt = expiresAt;
+      _staleUntil = staleUntil;
+    }
+
+  }
+
+}
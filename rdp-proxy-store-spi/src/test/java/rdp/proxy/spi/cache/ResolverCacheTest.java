@@ -0,0 +1,40 @@
+package rdp.proxy.spi.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ResolverCacheTest {
+
+  @Test
+  public void testForwardLookupsAreCached() throws Exception {
+    ResolverCache resolverCache = new ResolverCache(10, 1, 1, 0, TimeUnit.MINUTES, Runnable::run);
+    StoreCache<?, ?> forward = resolverCache.getCaches()
+                                            .get(0);
+    InetAddress address = resolverCache.getByName("127.0.0.1");
+    assertEquals(address, resolverCache.getByName("127.0.0.1"));
+    assertEquals(1, forward.getLoadCount());
+    assertEquals(1, forward.getHitCount());
+  }
+
+  @Test
+  public void testUnknownHostIsNegativelyCached() throws Exception {
+    ResolverCache resolverCache = new ResolverCache(10, 1, 1, 0, TimeUnit.MINUTES, Runnable::run);
+    StoreCache<?, ?> forward = resolverCache.getCaches()
+                                            .get(0);
+    for (int i = 0; i < 2; i++) {
+      try {
+        resolverCache.getByName("unknown.invalid");
+        fail();
+      } catch (UnknownHostException e) {
+      }
+    }
+    assertEquals(1, forward.getLoadCount());
+  }
+
+}
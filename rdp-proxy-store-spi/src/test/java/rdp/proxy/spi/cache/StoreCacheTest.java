@@ -0,0 +1,105 @@
+package rdp.proxy.spi.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import rdp.proxy.spi.cache.StoreCache.EvictionPolicy;
+
+public class StoreCacheTest {
+
+  private final ExecutorService _service = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    _service.shutdownNow();
+  }
+
+  @Test
+  public void testConcurrentMissesShareOneLoad() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    StoreCache<String, String> cache = new StoreCache<>("test", key -> {
+      loads.incrementAndGet();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return key + "-value";
+    }, 10, EvictionPolicy.LRU, 1, 1, 0, TimeUnit.MINUTES, _service, null);
+
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      futures.add(_service.submit(() -> cache.get("a")));
+    }
+    Thread.sleep(100);
+    release.countDown();
+    for (Future<String> future : futures) {
+      assertEquals("a-value", future.get());
+    }
+    assertEquals(1, loads.get());
+    assertEquals(1, cache.getLoadCount());
+    assertEquals("a-value", cache.get("a"));
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void testNegativeTtlAndStaleWhileRevalidate() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    StoreCache<String, String> cache = new StoreCache<>("test", key -> {
+      int load = loads.incrementAndGet();
+      return key.equals("missing") ? null : key + load;
+    }, 10, EvictionPolicy.LRU, 50, 0, 10_000, TimeUnit.MILLISECONDS, _service, null);
+
+    assertNull(cache.get("missing"));
+    assertNull(cache.get("missing"));
+    assertEquals(2, loads.get());
+
+    assertEquals("a3", cache.get("a"));
+    Thread.sleep(100);
+    // expired but still within the stale time, served while refreshed
+    assertEquals("a3", cache.get("a"));
+    assertEquals(1, cache.getStaleHitCount());
+    for (int i = 0; i < 100 && cache.getLoadCount() < 4; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals("a4", cache.get("a"));
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    StoreCache<String, String> lru = new StoreCache<>("test", key -> key, 2, EvictionPolicy.LRU, 1, 1, 0,
+        TimeUnit.MINUTES, _service, null);
+    lru.get("a");
+    lru.get("b");
+    lru.get("a");
+    lru.get("c");
+    assertEquals(2, lru.size());
+    assertEquals(1, lru.getEvictionCount());
+    lru.get("a");
+    assertEquals(3, lru.getLoadCount());
+
+    StoreCache<String, String> lfu = new StoreCache<>("test", key -> key, 2, EvictionPolicy.LFU, 1, 1, 0,
+        TimeUnit.MINUTES, _service, null);
+    lfu.get("a");
+    lfu.get("a");
+    lfu.get("a");
+    lfu.get("b");
+    lfu.get("c");
+    lfu.get("a");
+    assertEquals(3, lfu.getLoadCount());
+  }
+
+}